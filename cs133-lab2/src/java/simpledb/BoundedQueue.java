@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free multi-producer/multi-consumer queue backed by a ring
+ * buffer. Every slot carries a sequence number that tells producers and
+ * consumers whether the slot is free to write or ready to read, so offer and
+ * poll only ever contend on a single compare-and-set of the tail or head
+ * counter.
+ * <p>
+ * put and take wait for space or elements by spinning briefly and then
+ * parking for short intervals; they never take a lock.
+ *
+ * @Threadsafe
+ */
+public class BoundedQueue<E> {
+
+    private static final int SPINS_BEFORE_PARKING = 64;
+    private static final long PARK_NANOS = 20000L;
+
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(0); // next slot to read
+    private final AtomicLong tail = new AtomicLong(0); // next slot to write
+
+    /**
+     * Creates a queue that holds at least capacity elements (the capacity is
+     * rounded up to a power of two).
+     */
+    public BoundedQueue(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        items = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    /** @return the number of elements the queue can hold */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds e to the queue if there is space for it.
+     *
+     * @return true if e was added, false if the queue is full
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) pos & mask;
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(slot, e);
+                    sequences.set(slot, pos + 1); // publish to consumers
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // slot still holds an unread element
+            }
+            // otherwise another producer claimed pos first; retry
+        }
+    }
+
+    /**
+     * Removes the element at the head of the queue, if any.
+     *
+     * @return the removed element, or null if the queue is empty
+     */
+    public E poll() {
+        while (true) {
+            long pos = head.get();
+            int slot = (int) pos & mask;
+            long diff = sequences.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E e = items.get(slot);
+                    items.lazySet(slot, null);
+                    sequences.set(slot, pos + mask + 1); // free for producers
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null; // slot not yet written
+            }
+        }
+    }
+
+    /**
+     * Adds e to the queue, waiting for space if necessary.
+     *
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    public void put(E e) throws InterruptedException {
+        int spins = 0;
+        while (!offer(e))
+            spins = backOff(spins);
+    }
+
+    /**
+     * Removes the element at the head of the queue, waiting for one to
+     * arrive if necessary.
+     *
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    public E take() throws InterruptedException {
+        int spins = 0;
+        E e;
+        while ((e = poll()) == null)
+            spins = backOff(spins);
+        return e;
+    }
+
+    /** Discards every element currently in the queue. */
+    public void clear() {
+        while (poll() != null)
+            ;
+    }
+
+    private static int backOff(int spins) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (spins < SPINS_BEFORE_PARKING)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+        return spins + 1;
+    }
+}
@@ -2,8 +2,17 @@ package simpledb;
 
 import java.io.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -25,9 +34,43 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    // how often the page writer writes out logged images, and how many
+    static final long WRITER_INTERVAL_MILLIS = 50;
+    static final int WRITER_BATCH = 16;
     
     final int numPages;   // number of pages -- currently, not enforced
     final ConcurrentHashMap<PageId,Page> pages; // hash table storing current pages in memory
+    final LockManager lockManager;
+    // the rows inserted and deleted by each running transaction, in order
+    final ConcurrentHashMap<TransactionId, List<RowChange>> rowChanges;
+    // the running transactions whose pages have been flushed to commit them
+    final Set<TransactionId> committing;
+    // the images of pages logged but not written to disk yet, each with
+    // the LSN of the record that logged it
+    final ConcurrentHashMap<PageId, HeapPage> unwritten;
+    // the dirty page table: the LSN of the first update logged of each
+    // page in unwritten since the page was last written (its recLSN)
+    final ConcurrentHashMap<PageId, Long> recLsns;
+    // guards writer, the thread writing unwritten images in the background
+    private final Object writerLock = new Object();
+    private PageWriter writer = null;
+    private volatile boolean rowLocking = true;
+    final VersionStore versionStore;
+    private volatile boolean multiVersion = false;
+
+    /** A row a transaction inserted or deleted, undone if it aborts. */
+    private static class RowChange {
+        final Tuple tuple;
+        final RecordId rid;
+        final boolean inserted;
+
+        RowChange(Tuple tuple, RecordId rid, boolean inserted) {
+            this.tuple = tuple;
+            this.rid = rid;
+            this.inserted = inserted;
+        }
+    }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -38,6 +81,47 @@ public class BufferPool {
         // some code goes here
     	this.numPages = numPages;
         this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.lockManager = new LockManager();
+        this.rowChanges = new ConcurrentHashMap<TransactionId, List<RowChange>>();
+        this.committing = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+        this.unwritten = new ConcurrentHashMap<PageId, HeapPage>();
+        this.recLsns = new ConcurrentHashMap<PageId, Long>();
+        this.versionStore = new VersionStore();
+    }
+
+    /** @return the lock manager that grants this pool's locks */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** Sets whether inserts and deletes lock individual rows, or lock the
+        pages they modify exclusively. Row locking is on by default. */
+    public void setRowLocking(boolean rowLocking) {
+        this.rowLocking = rowLocking;
+    }
+
+    /** @return whether inserts and deletes lock individual rows */
+    public boolean isRowLocking() {
+        return rowLocking;
+    }
+
+    /** @return the store of the row versions snapshot reads need */
+    public VersionStore getVersionStore() {
+        return versionStore;
+    }
+
+    /** Sets whether scans read a snapshot of the table as of the start of
+        their transaction instead of locking its pages, and whether inserts
+        and deletes keep the versions of rows those snapshots need (see
+        {@link VersionStore}). Multi-version mode is off by default; it
+        should only be switched while no transactions are running. */
+    public void setMultiVersion(boolean multiVersion) {
+        this.multiVersion = multiVersion;
+    }
+
+    /** @return whether scans read snapshots instead of locking pages */
+    public boolean isMultiVersion() {
+        return multiVersion;
     }
     
     public static int getPageSize() {
@@ -62,6 +146,139 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        // lock before entering the monitor, so that waiting for a lock does
+        // not block transactions fetching other pages
+        if (perm == Permissions.READ_WRITE) {
+            lockManager.lockTable(tid, pid.getTableId(), LockManager.Mode.IX);
+            lockManager.lockPage(tid, pid, LockManager.Mode.X);
+        } else {
+            lockManager.lockTable(tid, pid.getTableId(), LockManager.Mode.IS);
+            lockManager.lockPage(tid, pid, LockManager.Mode.S);
+        }
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve the specified page to insert or delete individual rows of it.
+     * The page and its table are locked with intention exclusive locks, so
+     * other transactions may modify other rows of the page at the same time;
+     * each row must then be locked with {@link #lockRow} or
+     * {@link #tryLockRow} before it is modified, with the page's monitor
+     * held while its contents change. If row locking is off, the page is
+     * locked exclusively instead.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    public Page getPageForRows(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        lockManager.lockTable(tid, pid.getTableId(), LockManager.Mode.IX);
+        lockManager.lockPage(tid, pid, rowLocking ? LockManager.Mode.IX : LockManager.Mode.X);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve the specified page under an intention shared lock, which does
+     * not conflict with row writers or page readers. Only used to look for
+     * free space before locking the page with {@link #getPageForRows}; its
+     * tuples must not be read.
+     */
+    Page peekPage(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        lockManager.lockTable(tid, pid.getTableId(), LockManager.Mode.IS);
+        lockManager.lockPage(tid, pid, LockManager.Mode.IS);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Locks a row exclusively, waiting while another transaction holds it.
+     * The page of the row must have been retrieved with
+     * {@link #getPageForRows}.
+     */
+    public void lockRow(TransactionId tid, RecordId rid)
+        throws TransactionAbortedException {
+        if (rowLocking)
+            lockManager.lockRow(tid, rid, LockManager.Mode.X);
+    }
+
+    /**
+     * Locks a row exclusively if no other transaction holds it, without
+     * waiting. Used to claim an empty slot, which a transaction that deleted
+     * its row holds until it completes.
+     *
+     * @return whether the row was locked
+     */
+    public boolean tryLockRow(TransactionId tid, RecordId rid) {
+        return !rowLocking || lockManager.tryLockRow(tid, rid, LockManager.Mode.X);
+    }
+
+    /** Records that tid inserted t, to be deleted again if tid aborts. */
+    void rowInserted(TransactionId tid, Tuple t) {
+        changesOf(tid).add(new RowChange(t, t.getRecordId(), true));
+        if (multiVersion)
+            versionStore.inserted(tid, t);
+    }
+
+    /** Records that tid deleted t from rid, to be restored if tid aborts. */
+    void rowDeleted(TransactionId tid, Tuple t, RecordId rid) {
+        changesOf(tid).add(new RowChange(t, rid, false));
+        if (multiVersion)
+            versionStore.deleted(tid, t, rid);
+    }
+
+    /**
+     * Checks that the row at rid is the version the snapshot of tid sees,
+     * before tid deletes it; the first of two transactions updating a row
+     * concurrently wins, and the other aborts. Called with the row locked
+     * and the page's monitor held.
+     *
+     * @throws TransactionAbortedException if another transaction changed the
+     *         row since tid's snapshot
+     */
+    void checkSnapshot(TransactionId tid, RecordId rid)
+        throws TransactionAbortedException {
+        if (multiVersion && !versionStore.canDelete(tid, rid))
+            throw new TransactionAbortedException();
+    }
+
+    /**
+     * Registers the snapshot of a starting transaction in multi-version
+     * mode, so that it sees the database as of its start rather than as of
+     * its first read.
+     */
+    void transactionStarted(TransactionId tid) {
+        if (multiVersion)
+            versionStore.snapshot(tid);
+    }
+
+    /**
+     * Returns the tuples of a page the snapshot of tid sees, without
+     * locking the page, so neither waits for the other's writers. The page's
+     * monitor is held only while they are copied.
+     *
+     * @param tid the ID of the transaction reading the page
+     * @param pid the ID of the page to read
+     */
+    List<Tuple> readSnapshot(TransactionId tid, PageId pid) throws DbException {
+        HeapPage p = (HeapPage) fetchPage(pid);
+        synchronized (p) {
+            return versionStore.visibleTuples(tid, p);
+        }
+    }
+
+    private List<RowChange> changesOf(TransactionId tid) {
+        List<RowChange> changes = rowChanges.get(tid);
+        if (changes == null) {
+            List<RowChange> fresh = Collections.synchronizedList(new ArrayList<RowChange>());
+            changes = rowChanges.putIfAbsent(tid, fresh);
+            if (changes == null)
+                changes = fresh;
+        }
+        return changes;
+    }
+
+    /** @return the page pid, read into the pool if it is not there */
+    private Page fetchPage(PageId pid) throws DbException {
     	Page p;
         synchronized(this) {
             p = pages.get(pid);
@@ -95,8 +312,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -107,26 +323,53 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. On commit the pages it dirtied are flushed to disk.
+     * On abort the rows it inserted or deleted on pages shared with other
+     * transactions are restored and those pages flushed, and the pages it
+     * locked exclusively are discarded, so they are read back from disk as
+     * they were before the transaction. The row versions it created become
+     * visible to later snapshots, or are dropped if it aborts.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        try {
+            if (commit) {
+                flushPages(tid);
+                List<RowChange> changes = rowChanges.remove(tid);
+                if (changes != null)
+                    updateStats(changes);
+            } else {
+                List<RowChange> changes = rowChanges.remove(tid);
+                if (changes != null)
+                    flushPages(undo(tid, changes));
+                discardPages(tid);
+            }
+            // the result cache sees a commit at the same time as snapshots
+            // do (see ResultCache#keyFor)
+            synchronized (versionStore.commitLock) {
+                if (commit)
+                    versionStore.commit(tid);
+                else
+                    versionStore.abort(tid);
+                Database.getResultCache().transactionComplete(tid);
+            }
+        } finally {
+            committing.remove(tid);
+            lockManager.releaseAll(tid);
+        }
     }
 
     /**
@@ -147,6 +390,7 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
             DbFile fileToModify = Database.getCatalog().getDatabaseFile(tableId);
             fileToModify.insertTuple(tid, t);
+            Database.getResultCache().tableModified(tid, tableId);
         }
 
         /**
@@ -163,9 +407,11 @@ public class BufferPool {
          */
         public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        	HeapPage pageToDeleteFrom = (HeapPage) getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-            pageToDeleteFrom.deleteTuple(t);
-            pageToDeleteFrom.markDirty(true, tid);
+            if (t.getRecordId() == null)
+                throw new DbException("tuple is not stored in a table");
+            int tableId = t.getRecordId().getPageId().getTableId();
+            Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+            Database.getResultCache().tableModified(tid, tableId);
         }
 
     /**
@@ -176,8 +422,10 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         Iterator<PageId> iter = pages.keySet().iterator();
         while(iter.hasNext()){
-        	flushPage(iter.next());
+        	flushPage(iter.next(), null);
         }
+        for (PageId pid : unwritten.keySet())
+            writePage(pid);
 
     }
 
@@ -187,39 +435,342 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+        pages.remove(pid);
+        unwritten.remove(pid);
+        recLsns.remove(pid);
+    }
+
+    /** @return a copy of the image of the page last logged, if the page is
+        in the buffer pool, or null */
+    byte[] loggedPageData(PageId pid) {
+        Page p = pages.get(pid);
+        if (p == null)
+            return null;
+        return ((HeapPage) p).getBeforeImageData().clone();
+    }
+
+    /** @return a copy of the dirty page table: the pages whose images
+        were logged but not written yet, with the LSN of the first update
+        logged since each was last written */
+    Map<PageId, Long> dirtyPages() {
+        return new HashMap<PageId, Long>(recLsns);
+    }
+
+    /** Discards the pages the specified transaction dirtied while holding
+        them exclusively. */
+    private synchronized void discardPages(TransactionId tid) {
+        Iterator<Page> iter = pages.values().iterator();
+        while (iter.hasNext()) {
+            Page p = iter.next();
+            if (tid.equals(p.isDirty()) && lockManager.holdsExclusive(tid, p.getId())) {
+                iter.remove();
+                unwritten.remove(p.getId());
+                recLsns.remove(p.getId());
+            }
+        }
+    }
+
+    /** @return the pages the changes were made on */
+    private static HashSet<PageId> changedPages(List<RowChange> changes) {
+        HashSet<PageId> pids = new HashSet<PageId>();
+        synchronized (changes) {
+            for (RowChange c : changes)
+                pids.add(c.rid.getPageId());
+        }
+        return pids;
+    }
+
+    /**
+     * Undoes the row changes of an aborting transaction, latest first, on
+     * the pages it shares with other transactions; pages it holds
+     * exclusively are discarded instead.
+     *
+     * @return the pages changed back
+     */
+    private HashSet<PageId> undo(TransactionId tid, List<RowChange> changes)
+        throws IOException {
+        HashSet<PageId> undone = new HashSet<PageId>();
+        synchronized (changes) {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                RowChange c = changes.get(i);
+                PageId pid = c.rid.getPageId();
+                if (lockManager.holdsExclusive(tid, pid))
+                    continue;
+                try {
+                    HeapPage p = (HeapPage) fetchPage(pid);
+                    synchronized (p) {
+                        if (c.inserted)
+                            p.deleteTuple(c.tuple);
+                        else
+                            p.insertTuple(c.tuple, c.rid.tupleno());
+                        p.markDirty(true, tid);
+                    }
+                    undone.add(pid);
+                } catch (DbException e) {
+                    throw new IOException("cannot undo a change to " + pid + ": " + e.getMessage());
+                }
+            }
+        }
+        return undone;
+    }
+
+    /** Applies the rows a committed transaction changed to the statistics
+        of their tables, one table at a time. */
+    private static void updateStats(List<RowChange> changes) {
+        HashMap<Integer, ArrayList<Tuple>> inserted = new HashMap<Integer, ArrayList<Tuple>>();
+        HashMap<Integer, ArrayList<Tuple>> deleted = new HashMap<Integer, ArrayList<Tuple>>();
+        synchronized (changes) {
+            for (RowChange c : changes) {
+                int tableid = c.rid.getPageId().getTableId();
+                if (!inserted.containsKey(tableid)) {
+                    inserted.put(tableid, new ArrayList<Tuple>());
+                    deleted.put(tableid, new ArrayList<Tuple>());
+                }
+                (c.inserted ? inserted : deleted).get(tableid).add(c.tuple);
+            }
+        }
+        for (int tableid : inserted.keySet())
+            TableStats.tuplesCommitted(tableid, inserted.get(tableid), deleted.get(tableid));
+    }
+
+    /** Writes the specified pages to disk, if they are in the pool. */
+    private void flushPages(HashSet<PageId> pids) throws IOException {
+        for (PageId pid : pids)
+            flushPage(pid, null);
     }
 
     /**
      * Flushes a certain page to disk
+     * The page's image is logged (see {@link #logPage}), the log is forced
+     * through it, and the latest image logged of the page is written.
      * @param pid an ID indicating the page to flush
+     * @param committer the transaction committing the page, or null
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages.get(pid));
+    private void flushPage(PageId pid, TransactionId committer) throws IOException {
+        logPage(pid, committer);
+        writePage(pid);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Logs the image of a page to be written to disk, if it changed since
+     * the last one logged. The image leaves out the rows inserted and
+     * deleted by running transactions other than the committer and those
+     * already committing, so that disk only holds committed changes; the
+     * page stays dirty while it holds others. A page held exclusively is
+     * logged whole, on behalf of its holder. The image is logged as an
+     * update of the committer (or of the holder) along with the image
+     * logged before it, so that {@link LogFile#recover} can redo or undo it,
+     * and is kept until {@link #writePage} writes it.
+     * <p>
+     * Logging holds the log's monitor and then the page's monitor, so that
+     * no page is logged between the pages of a committing transaction and
+     * its commit record (see {@link LogFile#logCommit}).
+     * @param pid an ID indicating the page to log
+     * @param committer the transaction committing the page, or null
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+    private void logPage(PageId pid, TransactionId committer) throws IOException {
+        Page p = pages.get(pid);
+        if (p == null)
+            return;
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            synchronized (p) {
+                TransactionId dirtier = p.isDirty();
+                if (dirtier == null)
+                    return;
+                TransactionId owner = committer;
+                if (owner == null && lockManager.holdsExclusive(dirtier, pid))
+                    owner = dirtier;
+                HeapPage page = (HeapPage) p;
+                List<RowChange> pending = pendingChanges(pid, owner);
+                HeapPage image = committedImage(page, pending);
+                byte[] data = image.getPageData();
+                if (!Arrays.equals(data, page.getBeforeImageData())) {
+                    long lsn = log.logWrite(owner != null ? owner : dirtier, pid,
+                                            page.getBeforeImageData(), data);
+                    page.setBeforeImage(data);
+                    page.setLsn(lsn);
+                    image.setLsn(lsn);
+                    unwritten.put(pid, image);
+                    recLsns.putIfAbsent(pid, lsn);
+                    startWriter();
+                }
+                if (pending.isEmpty())
+                    p.markDirty(false, null);
+            }
+        }
+    }
+
+    /**
+     * Writes the latest image logged of a page to disk, once the log is
+     * forced through the LSN of its update record, its pageLSN (write-ahead
+     * logging). Images are written under the
+     * page's monitor, so an older image never overwrites a newer one.
+     */
+    private void writePage(PageId pid) throws IOException {
+        LogFile log = Database.getLogFile();
+        while (true) {
+            HeapPage logged = unwritten.get(pid);
+            Page p = pages.get(pid);
+            if (logged == null || p == null)
+                return;
+            log.forceTo(logged.getLsn());
+            synchronized (p) {
+                if (unwritten.get(pid) != logged)
+                    continue; // a newer image was logged meanwhile
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(logged);
+                unwritten.remove(pid, logged);
+                recLsns.remove(pid);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the row changes on pid of the running transactions other
+     *         than owner that are not committing, latest last for each
+     */
+    private List<RowChange> pendingChanges(PageId pid, TransactionId owner) {
+        List<RowChange> pending = new ArrayList<RowChange>();
+        for (Map.Entry<TransactionId, List<RowChange>> e : rowChanges.entrySet()) {
+            if (e.getKey().equals(owner) || committing.contains(e.getKey()))
+                continue;
+            List<RowChange> changes = e.getValue();
+            synchronized (changes) {
+                for (RowChange c : changes) {
+                    if (c.rid.getPageId().equals(pid))
+                        pending.add(c);
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return a copy of page with the pending row changes undone. Rows
+     *         changed by different transactions are in different slots, so
+     *         only the order of each transaction's changes matters.
+     */
+    private static HeapPage committedImage(HeapPage page, List<RowChange> pending)
+        throws IOException {
+        HeapPage image = new HeapPage(page.getId(), page.getPageData());
+        try {
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                RowChange c = pending.get(i);
+                if (c.inserted)
+                    image.deleteTuple(c.tuple);
+                else
+                    image.insertTuple(c.tuple, c.rid.tupleno());
+            }
+        } catch (DbException e) {
+            throw new IOException("cannot leave a change out of " + page.getId() + ": " + e.getMessage());
+        }
+        return image;
+    }
+
+    /** Write all pages of the specified transaction to disk, including the
+        pages it inserted or deleted rows on, and treat its rows as
+        committed from then on.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        for (PageId pid : logPages(tid))
+            writePage(pid);
+    }
+
+    /**
+     * Logs the images of all pages of the specified transaction (see
+     * {@link #logPage}), to be written once the log is forced through them,
+     * and treats its rows as committed from then on. Called by
+     * {@link LogFile#logCommit} before the commit record, with the log's
+     * monitor held.
+     *
+     * @return the pages of the transaction
+     */
+    HashSet<PageId> logPages(TransactionId tid) throws IOException {
+        committing.add(tid);
+        HashSet<PageId> pids = new HashSet<PageId>();
+        for (Page p : pages.values()) {
+            if (tid.equals(p.isDirty()))
+                pids.add(p.getId());
+        }
+        List<RowChange> changes = rowChanges.get(tid);
+        if (changes != null)
+            pids.addAll(changedPages(changes));
+        for (PageId pid : pids)
+            logPage(pid, tid);
+        return pids;
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean pages are evicted (NO STEAL), so that the changes of a
+     * transaction never reach disk before it commits, and only once their
+     * latest image logged is written.
      */
     private synchronized  void evictPage() throws DbException {
-    	Iterator<PageId> iter = pages.keySet().iterator();
-    	PageId next = iter.next();
-    	try {
-			flushPage(next);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	pages.remove(next);
+        Iterator<Page> iter = pages.values().iterator();
+        while (iter.hasNext()) {
+            Page p = iter.next();
+            if (p.isDirty() == null && !unwritten.containsKey(p.getId())) {
+                iter.remove();
+                return;
+            }
+        }
+        throw new DbException("all pages in the buffer pool are dirty");
+    }
+
+    private void startWriter() {
+        synchronized (writerLock) {
+            if (writer == null) {
+                writer = new PageWriter();
+                writer.start();
+            }
+        }
+    }
+
+    /** Trickles the images logged but not written yet out to disk in the
+        background, those of the oldest recLSN first, so that checkpoints
+        need not write pages and recovery starts from a recent point of the
+        log. Exits once every image is written, or once the pool is no
+        longer the database's. */
+    private class PageWriter extends Thread {
+        PageWriter() {
+            super("page writer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(WRITER_INTERVAL_MILLIS);
+                    synchronized (writerLock) {
+                        // a pool replaced by Database.reset is dropped
+                        if (unwritten.isEmpty() || Database.getBufferPool() != BufferPool.this) {
+                            writer = null;
+                            return;
+                        }
+                    }
+                    List<Map.Entry<PageId, Long>> oldest =
+                        new ArrayList<Map.Entry<PageId, Long>>(dirtyPages().entrySet());
+                    Collections.sort(oldest, new Comparator<Map.Entry<PageId, Long>>() {
+                        public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+                            return a.getValue().compareTo(b.getValue());
+                        }
+                    });
+                    for (int i = 0; i < oldest.size() && i < WRITER_BATCH; i++)
+                        writePage(oldest.get(i).getKey());
+                }
+            } catch (InterruptedException e) {
+                synchronized (writerLock) {
+                    writer = null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (writerLock) {
+                    writer = null;
+                }
+            }
+        }
     }
 
 }
@@ -7,6 +7,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -24,6 +25,8 @@ public class Catalog {
     private final Map<String, Integer> name2id;
     private final Map<Integer, String> id2name;
     private final Map<Integer, String> pkey;
+    // incremented whenever a table is added or removed
+    private final AtomicLong version = new AtomicLong();
 	
     /**
      * Constructor.
@@ -63,6 +66,7 @@ public class Catalog {
         id2name.put(file.getId(), name);
 
         pkey.put(file.getId(), pkeyField);
+        version.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -140,6 +144,16 @@ public class Catalog {
         name2id.clear();
         id2name.clear();
         pkey.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return a number that changes whenever a table is added to or removed
+     *     from the catalog, so that plans built against an older catalog can
+     *     be recognized (see {@link StatementCache})
+     */
+    public long getVersion() {
+        return version.get();
     }
     
     /**
@@ -17,6 +17,8 @@ public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final StatementCache _statementcache;
+    private final ResultCache _resultcache;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -24,6 +26,8 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _statementcache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
+        _resultcache = new ResultCache();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -50,6 +54,16 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the cache of query plans of the static Database instance */
+    public static StatementCache getStatementCache() {
+        return _instance.get()._statementcache;
+    }
+
+    /** Return the cache of query results of the static Database instance */
+    public static ResultCache getResultCache() {
+        return _instance.get()._resultcache;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -0,0 +1,293 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange runs several copies of a plan fragment concurrently, one worker
+ * thread per copy, and gathers their output for the consuming operator. This
+ * is the only operator that crosses threads: everything below an Exchange
+ * runs on its workers, everything above it on the thread calling next().
+ * <p>
+ * Workers hand tuples to the consumer in batches of up to BATCH_SIZE through
+ * a lock-free {@link BoundedQueue}, so a worker that outruns the consumer
+ * blocks once QUEUE_BATCHES batches are pending. Tuples from different
+ * workers are interleaved in no particular order.
+ * <p>
+ * Each worker opens its fragment when the Exchange is opened (or rewound) and
+ * closes it when it runs dry or the Exchange is closed. An Exchange that is
+ * rewound often, such as the inner side of a nested-loops {@link Join}, can
+ * instead keep its output and replay it on rewind (see
+ * {@link #setReplayOnRewind}), so its workers run only once.
+ * <p>
+ * The first exception thrown by any fragment stops all workers and is
+ * rethrown by every call to next() until the Exchange is rewound or closed.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of tuples a worker passes to the consumer at once. */
+    public static final int BATCH_SIZE = 64;
+
+    /** Maximum number of batches buffered between the workers and the consumer. */
+    public static final int QUEUE_BATCHES = 32;
+
+    // marks that one worker has finished; never handed out as a batch
+    private static final Tuple[] END_OF_STREAM = new Tuple[0];
+
+    private DbIterator[] fragments;
+
+    private transient BoundedQueue<Tuple[]> queue;
+    private transient Thread[] workers;
+    private transient AtomicReference<Throwable> failure;
+    private transient volatile boolean stopping;
+    private transient Tuple[] batch;
+    private int batchPos;
+    private int finished;
+
+    private boolean replayOnRewind;
+    // the tuples returned since the workers started, if they are replayed
+    private transient ArrayList<Tuple> output;
+    private transient boolean replaying;
+    private int replayPos;
+
+    /**
+     * Constructor.
+     *
+     * @param fragments
+     *            the copies of the plan fragment to run concurrently, one per
+     *            worker. They must all produce tuples with the same TupleDesc
+     *            and must not share any operator instances.
+     */
+    public Exchange(DbIterator[] fragments) {
+        if (fragments.length == 0)
+            throw new IllegalArgumentException("Exchange needs at least one fragment");
+        this.fragments = fragments.clone();
+    }
+
+    /** @return the degree of parallelism, i.e., the number of workers */
+    public int getDegreeOfParallelism() {
+        return fragments.length;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return fragments[0].getTupleDesc();
+    }
+
+    /**
+     * Sets whether rewinding replays the tuples returned since this operator
+     * was opened instead of running the fragments again, once they have all
+     * been returned. The tuples are kept in memory until it is closed.
+     */
+    public void setReplayOnRewind(boolean replay) {
+        replayOnRewind = replay;
+    }
+
+    /** @return whether rewinding replays the tuples returned so far */
+    public boolean getReplayOnRewind() {
+        return replayOnRewind;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        startWorkers();
+    }
+
+    public void close() {
+        super.close();
+        stopWorkers();
+        failure = null;
+        output = null;
+        replaying = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (replaying || (output != null && workers != null
+                && finished == workers.length && failure.get() == null)) {
+            stopWorkers();
+            replaying = true;
+            replayPos = 0;
+            return;
+        }
+        stopWorkers();
+        startWorkers();
+    }
+
+    /**
+     * Called before the workers are started each time this operator is
+     * opened or rewound, while no worker is running. Subclasses override this
+     * to reset state shared by the fragments.
+     */
+    protected void beforeStart() {
+    }
+
+    /**
+     * Prepares the fragments for a run driven by another operator's threads
+     * instead of this Exchange's workers (see {@link ParallelAggregate}) and
+     * returns them. The caller opens and closes each fragment itself.
+     */
+    DbIterator[] prepareFragments() {
+        beforeStart();
+        return getFragments();
+    }
+
+    /** @return the fragments run by the workers, even if a subclass reports
+        other operators as its children */
+    DbIterator[] getFragments() {
+        return fragments.clone();
+    }
+
+    private void startWorkers() {
+        beforeStart();
+        queue = new BoundedQueue<Tuple[]>(QUEUE_BATCHES);
+        failure = new AtomicReference<Throwable>();
+        stopping = false;
+        batch = null;
+        batchPos = 0;
+        finished = 0;
+        output = replayOnRewind ? new ArrayList<Tuple>() : null;
+        replaying = false;
+        workers = new Thread[fragments.length];
+        for (int i = 0; i < fragments.length; i++) {
+            workers[i] = new Thread(new Worker(fragments[i], queue),
+                    getClass().getSimpleName() + "-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /** Signals every worker to stop and waits for them to exit. */
+    private void stopWorkers() {
+        if (workers == null)
+            return;
+        stopping = true;
+        for (Thread w : workers)
+            w.interrupt();
+        boolean interrupted = false;
+        for (Thread w : workers) {
+            while (w.isAlive()) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        workers = null;
+        queue = null;
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (replaying)
+            return replayPos < output.size() ? output.get(replayPos++) : null;
+        Tuple t = nextFromWorkers();
+        if (t != null && output != null)
+            output.add(t);
+        return t;
+    }
+
+    private Tuple nextFromWorkers() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (batch != null && batchPos < batch.length)
+                return batch[batchPos++];
+            // a failed worker still ends its stream, so check for failures
+            // before deciding that every worker is done
+            if (failure != null)
+                rethrowFailure();
+            if (workers == null || finished == workers.length)
+                return null;
+            Tuple[] b;
+            try {
+                b = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for exchange workers");
+            }
+            if (b == END_OF_STREAM) {
+                finished++;
+            } else {
+                batch = b;
+                batchPos = 0;
+            }
+        }
+    }
+
+    /** Stops the workers and rethrows the first exception one of them
+        raised, if any; it is kept to rethrow again until a rewind or close. */
+    private void rethrowFailure() throws DbException, TransactionAbortedException {
+        Throwable t = failure.get();
+        if (t == null)
+            return;
+        stopWorkers();
+        if (t instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) t;
+        if (t instanceof DbException)
+            throw (DbException) t;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        throw new DbException("exchange worker failed: " + t);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return fragments.clone();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.fragments = children.clone();
+    }
+
+    /** Drains one fragment into the queue in batches. */
+    private class Worker implements Runnable {
+        private final DbIterator fragment;
+        private final BoundedQueue<Tuple[]> out;
+        private final AtomicReference<Throwable> failed;
+
+        Worker(DbIterator fragment, BoundedQueue<Tuple[]> out) {
+            this.fragment = fragment;
+            this.out = out;
+            this.failed = failure;
+        }
+
+        public void run() {
+            try {
+                fragment.open();
+                try {
+                    Tuple[] buf = new Tuple[BATCH_SIZE];
+                    int n = 0;
+                    while (!stopping && fragment.hasNext()) {
+                        buf[n++] = fragment.next();
+                        if (n == BATCH_SIZE) {
+                            out.put(buf);
+                            buf = new Tuple[BATCH_SIZE];
+                            n = 0;
+                        }
+                    }
+                    if (n > 0)
+                        out.put(Arrays.copyOf(buf, n));
+                } finally {
+                    fragment.close();
+                }
+            } catch (InterruptedException e) {
+                return; // the exchange is being closed
+            } catch (Throwable t) {
+                if (stopping)
+                    return;
+                failed.compareAndSet(null, t);
+            }
+            try {
+                out.put(END_OF_STREAM);
+            } catch (InterruptedException e) {
+                // the exchange is being closed
+            }
+        }
+    }
+}
@@ -121,6 +121,8 @@ public class HeapFile implements DbFile {
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			fIO.close();
 		}
     	
     }
@@ -138,42 +140,85 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
     	
     	ArrayList<Page> affectedPages = new ArrayList<Page>();
+    	BufferPool bp = Database.getBufferPool();
     	for(int i = 0; i<numPages(); i++) {
     		HeapPageId pid = new HeapPageId(getId(), i);
-    		
-			HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    		// look for free space under an intention shared lock, which only
+    		// conflicts with whole-page writers, and give the lock back right
+    		// away on pages the transaction had not locked before
+    		boolean held = bp.holdsLock(tid, pid);
+			HeapPage pg = (HeapPage) bp.peekPage(tid, pid);
 			if(pg.getNumEmptySlots()>0){
-	    		pg.insertTuple(t);
-	    		pg.markDirty(true, tid);
-	    		writePage(pg);
-	    		affectedPages.add(pg);
-	    		return affectedPages;
+				pg = (HeapPage) bp.getPageForRows(tid, pid);
+				if(insertInto(tid, pg, t)){
+		    		affectedPages.add(pg);
+		    		return affectedPages;
+				}
+			}
+			if(!held){
+				bp.releasePage(tid, pid);
 			}
-    		
-    		
     	}
-    	HeapPageId newPid = new HeapPageId(getId(), numPages());
-    	HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
-    	newPage.insertTuple(t);
-    	newPage.markDirty(true, tid);
-    	writePage(newPage);
-    	affectedPages.add(newPage);
-    	return affectedPages;
-    	
+    	while(true) {
+    		HeapPageId newPid;
+    		synchronized(this) {
+    			// extend the file with an empty page that no one else can claim
+    			newPid = new HeapPageId(getId(), numPages());
+    			writePage(new HeapPage(newPid, HeapPage.createEmptyPageData()));
+    		}
+    		HeapPage newPage = (HeapPage) bp.getPageForRows(tid, newPid);
+    		if(insertInto(tid, newPage, t)){
+    			affectedPages.add(newPage);
+    			return affectedPages;
+    		}
+    	}
+    }
+
+    /**
+     * Inserts t into the first empty slot of pg whose row lock tid gets
+     * without waiting; slots of rows deleted by running transactions stay
+     * locked until they complete.
+     *
+     * @return whether t was inserted
+     */
+    private boolean insertInto(TransactionId tid, HeapPage pg, Tuple t) throws DbException {
+    	BufferPool bp = Database.getBufferPool();
+    	synchronized(pg) {
+    		if(pg.getNumEmptySlots() == 0)
+    			return false;
+    		for(int slot = 0; slot < pg.getNumSlots(); slot++) {
+    			if(!pg.isSlotUsed(slot) && bp.tryLockRow(tid, new RecordId(pg.getId(), slot))) {
+    				pg.insertTuple(t, slot);
+    				pg.markDirty(true, tid);
+    				bp.rowInserted(tid, t);
+    				return true;
+    			}
+    		}
+    	}
+    	return false;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
+    	RecordId rid = t.getRecordId();
+    	if(rid == null || rid.getPageId().getTableId() != getId())
+    		throw new DbException("tuple is not stored in this table");
     	ArrayList<Page> affectedPages = new ArrayList<Page>();
-    	HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-    	pg.deleteTuple(t);
-    	pg.markDirty(true, tid);
-    	
+    	BufferPool bp = Database.getBufferPool();
+    	HeapPage pg = (HeapPage) bp.getPageForRows(tid, rid.getPageId());
+    	bp.lockRow(tid, rid);
+    	synchronized(pg) {
+    		// remember the stored tuple, as t may be a projection of it
+    		int slot = rid.tupleno();
+    		Tuple stored = slot >= 0 && slot < pg.getNumSlots() ? pg.getTuple(slot) : null;
+    		bp.checkSnapshot(tid, rid);
+    		pg.deleteTuple(t);
+    		pg.markDirty(true, tid);
+    		bp.rowDeleted(tid, stored, rid);
+    	}
     	affectedPages.add(pg);
     	return affectedPages;
-    	
-    	
     }
 
     // see DbFile.java for javadocs
@@ -182,6 +227,22 @@ public class HeapFile implements DbFile {
     	return new HeapFileIterator(this, tid);
     }
 
+    /**
+     * Returns an iterator over the tuples stored on pages
+     * <tt>[firstPage, lastPage)</tt> of this file. Used to split a scan of
+     * the file into independent page ranges that can be read concurrently.
+     *
+     * @param tid
+     *            the transaction the pages are read on behalf of
+     * @param firstPage
+     *            the first page to read
+     * @param lastPage
+     *            one past the last page to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int lastPage) {
+        return new HeapFileIterator(this, tid, firstPage, lastPage);
+    }
+
 }
 class HeapFileIterator implements DbFileIterator {
 
@@ -191,14 +252,27 @@ class HeapFileIterator implements DbFileIterator {
 
     TransactionId tid;
     HeapFile hf;
+    final int firstPage;
+    final int lastPage; // exclusive; -1 reads through the end of the file
 
     public HeapFileIterator(HeapFile hf, TransactionId tid) {
+        this(hf, tid, 0, -1);
+    }
+
+    public HeapFileIterator(HeapFile hf, TransactionId tid, int firstPage, int lastPage) {
         this.hf = hf;
         this.tid = tid;
+        this.firstPage = firstPage;
+        this.lastPage = lastPage;
     }
 
     public void open() throws DbException, TransactionAbortedException {
-        curpgno = -1;
+        curpgno = firstPage - 1;
+    }
+
+    private int endPage() {
+        int numPages = hf.numPages();
+        return (lastPage < 0 || lastPage > numPages) ? numPages : lastPage;
     }
     
 	public boolean hasNext() throws DbException, TransactionAbortedException {
@@ -222,12 +296,16 @@ class HeapFileIterator implements DbFileIterator {
         if (it != null && !it.hasNext())
             it = null;
 
-        while (it == null && curpgno < hf.numPages() - 1) {
+        BufferPool bp = Database.getBufferPool();
+        while (it == null && curpgno < endPage() - 1) {
             curpgno++;
             HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
-            HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
-                    curpid, Permissions.READ_ONLY);
-            it = curp.iterator();
+            if (bp.isMultiVersion()) {
+                it = bp.readSnapshot(tid, curpid).iterator();
+            } else {
+                HeapPage curp = (HeapPage) bp.getPage(tid, curpid, Permissions.READ_ONLY);
+                it = curp.iterator();
+            }
             if (!it.hasNext())
                 it = null;
         }
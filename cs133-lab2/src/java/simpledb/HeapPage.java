@@ -19,8 +19,9 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
-    byte[] oldData;
+    volatile byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
+    private volatile long lsn = 0; // of the last update logged of this page
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -116,6 +117,18 @@ public class HeapPage implements Page {
         }
     }
 
+    /** @return the data of the before image, which must not be modified */
+    byte[] getBeforeImageData() {
+        return oldData;
+    }
+
+    /** Sets the before image to data, the image of this page last logged
+        to be written to disk, which leaves out the rows of running
+        transactions */
+    void setBeforeImage(byte[] data) {
+        oldData = data;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -185,17 +198,15 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
+        byte[] emptySlot = new byte[td.getSize()];
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
+                try {
+                    dos.write(emptySlot, 0, emptySlot.length);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 continue;
             }
@@ -252,17 +263,14 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        //Iterate until we find the tuple to delete and update the header to show that the slot is now empty
-    	for(int i = 0; i < numSlots; i++) {
-    		if (isSlotUsed(i)) {
-    			if (tuples[i].equals(t)) {
-    				tuples[i] = null;
-    				markSlotUsed(i, false);
-    				return;
-    			}
-    		}
-    	}
-    	throw new DbException("The tuple you tried to delete doesn't exist.");
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("The tuple you tried to delete is not on this page.");
+        int i = rid.tupleno();
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            throw new DbException("The tuple you tried to delete doesn't exist.");
+        tuples[i] = null;
+        markSlotUsed(i, false);
     }
 
     /**
@@ -275,15 +283,30 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         for (int i = 0; i < numSlots; i++) {
         	if (!isSlotUsed(i)) {
-        		tuples[i] = t;
-                markSlotUsed(i, true);
-                RecordId newId = new RecordId(pid, i);
-                t.setRecordId(newId);
+        		insertTuple(t, i);
                 return;
         	}
         }
         throw new DbException(null);
     }
+
+    /**
+     * Adds the specified tuple to an empty slot of the page, and updates its
+     * record id.
+     * @throws DbException if the slot is in use or does not exist
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (slot < 0 || slot >= numSlots || isSlotUsed(slot))
+            throw new DbException("slot " + slot + " of " + pid + " is not empty");
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /** @return the number of slots on this page */
+    int getNumSlots() {
+        return numSlots;
+    }
     
     private boolean isDirty;
     private TransactionId dirtyTransaction;
@@ -309,6 +332,20 @@ public class HeapPage implements Page {
         return dirtyTransaction;
     }
 
+    /**
+     * @return the LSN of the last update record logged of this page (its
+     *         pageLSN), or 0 if none was logged since it was read
+     * @see LogFile#forceTo
+     */
+    long getLsn() {
+        return lsn;
+    }
+
+    /** Sets the LSN of the last update record logged of this page */
+    void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
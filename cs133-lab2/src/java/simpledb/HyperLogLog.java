@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values added to
+ * it in a fixed amount of memory (one byte per register). With the default
+ * precision of 12 (4096 registers) the standard error of the estimate is
+ * about 1.6%.
+ * <p>
+ * Values are hashed to 64 bits; the first p bits of the hash select a
+ * register, which records the longest run of leading zeros seen in the
+ * remaining bits. Small cardinalities are estimated by linear counting over
+ * the empty registers. Sketches with the same precision can be merged to
+ * estimate the number of distinct values in the union of their inputs.
+ */
+public class HyperLogLog {
+
+    /** Precision used by {@link #HyperLogLog()}. */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int p;
+    private final byte[] registers;
+
+    /** Creates a sketch with DEFAULT_PRECISION. */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Creates a sketch with 2^precision registers.
+     *
+     * @param precision
+     *            between 4 and 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18)
+            throw new IllegalArgumentException("precision must be between 4 and 18");
+        this.p = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /** Adds an integer value to the sketch. */
+    public void add(int v) {
+        addHash(mix(v));
+    }
+
+    /** Adds a string value to the sketch. */
+    public void add(String s) {
+        long h = 0xcbf29ce484222325L; // 64-bit FNV-1a
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        addHash(mix(h));
+    }
+
+    /** Adds the value of an IntField or StringField to the sketch. */
+    public void add(Field f) {
+        if (f instanceof IntField)
+            add(((IntField) f).getValue());
+        else
+            add(((StringField) f).getValue());
+    }
+
+    private void addHash(long hash) {
+        int idx = (int) (hash >>> (64 - p));
+        // rank of the first 1 bit in the remaining 64 - p bits, starting at 1
+        long rest = hash << p;
+        int rank = rest == 0 ? 64 - p + 1 : Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > registers[idx])
+            registers[idx] = (byte) rank;
+    }
+
+    /** Finalizer of MurmurHash3's 64-bit hash; spreads every input bit. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** @return the estimated number of distinct values added to the sketch */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0.0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1.0 + 1.079 / m);
+        double e = alpha * m * (double) m / sum;
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros); // linear counting
+        return Math.round(e);
+    }
+
+    /**
+     * Adds every value seen by other to this sketch.
+     *
+     * @throws IllegalArgumentException
+     *             if the sketches have different precisions
+     */
+    public void merge(HyperLogLog other) {
+        if (other.p != p)
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /** Writes this sketch in the format read by {@link #readFrom}. */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(p);
+        out.write(registers);
+    }
+
+    /** Reads a sketch written by {@link #writeTo}. */
+    static HyperLogLog readFrom(DataInputStream in) throws IOException {
+        HyperLogLog h = new HyperLogLog(in.readByte());
+        in.readFully(h.registers);
+        return h;
+    }
+
+    /** @return the precision of this sketch */
+    public int getPrecision() {
+        return p;
+    }
+}
@@ -0,0 +1,293 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A class to represent a fixed-width histogram over a single integer-based
+ * field.
+ * <p>
+ * Each bucket covers the same number of integer values and counts how many
+ * values fall into it. Estimates assume values are spread uniformly within a
+ * bucket. Values added outside [min, max] (for instance by inserts after the
+ * histogram was built) are counted in two overflow buckets that stretch from
+ * the most extreme such value to the edge of the range.
+ */
+public class IntHistogram {
+
+    private int min;
+    private int max;
+    private double width;
+    private int[] heights;
+    private int ntups;
+    // values below min and above max, and the most extreme of them
+    private int under, over;
+    private int lowest, highest;
+
+    /**
+     * Create a new IntHistogram.
+     *
+     * This IntHistogram should maintain a histogram of integer values that it
+     * receives. It should split the histogram into "buckets" buckets.
+     *
+     * The values that are being histogrammed will be provided one-at-a-time
+     * through the "addValue()" function.
+     *
+     * @param buckets
+     *            The number of buckets to split the input value into; fewer
+     *            are used if the range holds fewer than buckets values
+     * @param min
+     *            The minimum integer value that will ever be passed to this
+     *            class for histogramming
+     * @param max
+     *            The maximum integer value that will ever be passed to this
+     *            class for histogramming
+     */
+    public IntHistogram(int buckets, int min, int max) {
+        if (buckets < 1 || max < min)
+            throw new IllegalArgumentException("need at least one bucket and min <= max");
+        this.min = min;
+        this.max = max;
+        double range = (double) max - min + 1;
+        int n = (int) Math.min(buckets, range);
+        this.width = range / n;
+        this.heights = new int[n];
+    }
+
+    private IntHistogram(int min, int max, double width, int[] heights) {
+        this.min = min;
+        this.max = max;
+        this.width = width;
+        this.heights = heights;
+    }
+
+    /** Writes this histogram in the format read by {@link #readFrom}. */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeDouble(width);
+        out.writeInt(ntups);
+        out.writeInt(heights.length);
+        for (int h : heights)
+            out.writeInt(h);
+        out.writeInt(under);
+        out.writeInt(lowest);
+        out.writeInt(over);
+        out.writeInt(highest);
+    }
+
+    /** Reads a histogram written by {@link #writeTo}. */
+    static IntHistogram readFrom(DataInputStream in) throws IOException {
+        int min = in.readInt();
+        int max = in.readInt();
+        double width = in.readDouble();
+        int ntups = in.readInt();
+        int[] heights = new int[in.readInt()];
+        for (int i = 0; i < heights.length; i++)
+            heights[i] = in.readInt();
+        IntHistogram h = new IntHistogram(min, max, width, heights);
+        h.ntups = ntups;
+        h.under = in.readInt();
+        h.lowest = in.readInt();
+        h.over = in.readInt();
+        h.highest = in.readInt();
+        return h;
+    }
+
+    private int bucket(int v) {
+        int b = (int) (((double) v - min) / width);
+        return Math.min(Math.max(b, 0), heights.length - 1);
+    }
+
+    /**
+     * Widens the range of this histogram to take in v, if v is outside it:
+     * unit-width buckets are added while there are fewer than the given
+     * number of buckets, and then the range is doubled towards v, merging
+     * adjacent buckets, until it holds v. Values already in the overflow
+     * buckets stay there, so this is meant for a histogram that is still
+     * being built. If v is too far out for the range to reach it, it is left
+     * to the overflow buckets.
+     *
+     * @param v
+     *            the value to make room for
+     * @param buckets
+     *            the number of buckets the histogram may grow to
+     */
+    void cover(int v, int buckets) {
+        if (v >= min && v <= max)
+            return;
+        int n = heights.length;
+        if (width == 1.0 && n < buckets) {
+            boolean down = v < min;
+            long span = down ? (long) max - v + 1 : (long) v - min + 1;
+            int added = (int) Math.min(buckets, span) - n;
+            int[] h = new int[n + added];
+            System.arraycopy(heights, 0, h, down ? added : 0, n);
+            if (down)
+                min -= added;
+            else
+                max += added;
+            heights = h;
+            n = h.length;
+        }
+        while (v < min || v > max) {
+            boolean down = v < min;
+            long range = (long) max - min + 1;
+            long lo = down ? min - range : min;
+            long hi = down ? max : max + range;
+            if (lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE)
+                return;
+            // old bucket k covers [k, k + 1) in units of the old width,
+            // counted from the new min, and lands in new bucket position / 2
+            int[] h = new int[n];
+            for (int k = 0; k < n; k++)
+                h[((down ? n : 0) + k) / 2] += heights[k];
+            heights = h;
+            min = (int) lo;
+            max = (int) hi;
+            width *= 2;
+        }
+    }
+
+    /**
+     * Add a value to the set of values that you are keeping a histogram of.
+     *
+     * @param v
+     *            Value to add to the histogram; values outside [min, max] are
+     *            counted in the overflow buckets
+     */
+    public void addValue(int v) {
+        if (v < min) {
+            lowest = under == 0 ? v : Math.min(lowest, v);
+            under++;
+        } else if (v > max) {
+            highest = over == 0 ? v : Math.max(highest, v);
+            over++;
+        } else {
+            heights[bucket(v)]++;
+        }
+        ntups++;
+    }
+
+    /**
+     * Remove a value previously added to the histogram.
+     *
+     * @param v
+     *            Value to remove; ignored if its bucket is already empty
+     */
+    public void removeValue(int v) {
+        if (v < min) {
+            if (under == 0)
+                return;
+            under--;
+        } else if (v > max) {
+            if (over == 0)
+                return;
+            over--;
+        } else {
+            int b = bucket(v);
+            if (heights[b] == 0)
+                return;
+            heights[b]--;
+        }
+        ntups--;
+    }
+
+    /** @return the number of values added to this histogram */
+    public int numValues() {
+        return ntups;
+    }
+
+    /** @return the estimated fraction of values that are strictly less than v */
+    private double fractionBelow(double v) {
+        double below = 0.0;
+        if (under > 0 && v > lowest)
+            below += under * Math.min(1.0, (v - lowest) / ((double) min - lowest));
+        if (v <= min)
+            return below / ntups;
+        if (v > max) {
+            for (int h : heights)
+                below += h;
+            if (over > 0)
+                below += over * Math.min(1.0, (v - max - 1) / ((double) highest - max));
+            return below / ntups;
+        }
+        int b = bucket((int) Math.floor(v));
+        double left = min + b * width;
+        below += heights[b] * Math.min(1.0, (v - left) / width);
+        for (int i = 0; i < b; i++)
+            below += heights[i];
+        return below / ntups;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this
+     * table.
+     *
+     * For example, if "op" is "GREATER_THAN" and "v" is 5, return your
+     * estimate of the fraction of elements that are greater than 5.
+     *
+     * @param op
+     *            Operator
+     * @param v
+     *            Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (ntups == 0)
+            return 0.0;
+        double less = fractionBelow(v);
+        double lessOrEqual = fractionBelow((double) v + 1);
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return lessOrEqual - less;
+        case NOT_EQUALS:
+            return 1.0 - (lessOrEqual - less);
+        case LESS_THAN:
+            return less;
+        case LESS_THAN_OR_EQ:
+            return lessOrEqual;
+        case GREATER_THAN:
+            return 1.0 - lessOrEqual;
+        case GREATER_THAN_OR_EQ:
+            return 1.0 - less;
+        default:
+            throw new IllegalArgumentException("unsupported operator " + op);
+        }
+    }
+
+    /**
+     * @return the average selectivity of an equality predicate against a
+     *         value drawn from this histogram's own values
+     */
+    public double avgSelectivity() {
+        if (ntups == 0)
+            return 0.0;
+        double sum = 0.0;
+        for (int h : heights) {
+            double p = (double) h / ntups;
+            sum += p * p / width;
+        }
+        if (under > 0)
+            sum += Math.pow((double) under / ntups, 2) / ((double) min - lowest);
+        if (over > 0)
+            sum += Math.pow((double) over / ntups, 2) / ((double) highest - max);
+        return Math.min(1.0, sum);
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("IntHistogram[min=").append(min).append(", max=").append(max)
+                .append(", width=").append(width).append(", values=").append(ntups)
+                .append(", under=").append(under).append(", over=").append(over)
+                .append(", heights=");
+        for (int i = 0; i < heights.length; i++)
+            sb.append(i == 0 ? "" : " ").append(heights[i]);
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinFilter selects the tuples of its child whose two fields satisfy a
+ * join predicate. It applies a join whose tables were already joined by
+ * other joins, for instance the second predicate of a join on a composite
+ * key, or the join that closes a cycle of joins.
+ */
+public class JoinFilter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child;
+
+    /**
+     * Constructor accepts a predicate to apply and a child operator to read
+     * tuples to filter from.
+     *
+     * @param p
+     *            The predicate to filter tuples with; both of its fields are
+     *            indexes into the tuples of child
+     * @param child
+     *            The child operator
+     */
+    public JoinFilter(JoinPredicate p, DbIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Returns the next tuple of the child whose two fields satisfy the
+     * predicate.
+     *
+     * @return The next tuple that passes the filter, or null if there are no
+     *         more tuples
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple next = child.next();
+            if (p.filter(next, next))
+                return next;
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.awt.GraphicsEnvironment;
 import java.util.*;
 
 import javax.swing.*;
@@ -11,9 +12,27 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Default for {@link #setExhaustiveTableLimit}. */
+    public static final int DEFAULT_EXHAUSTIVE_TABLE_LIMIT = 12;
+    /** Default for {@link #setPlanningTimeBudget}, in milliseconds. */
+    public static final long DEFAULT_PLANNING_TIME_BUDGET = 500;
+
+    private static volatile int exhaustiveTableLimit = DEFAULT_EXHAUSTIVE_TABLE_LIMIT;
+    private static volatile long planningTimeBudget = DEFAULT_PLANNING_TIME_BUDGET;
+
+    // a parallel hash join inserts every tuple of its right input into a
+    // hash table, which costs more than probing it with a left tuple
+    private static final double HASH_BUILD_COST = 2.0;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    // the join graph while ordering: the position of each table alias, and
+    // for each join, the tables it reads and the other joins sharing one
+    private HashMap<String, Integer> tableIndex;
+    private long[] joinTables;
+    private long[] neighbors;
+
     /**
      * Constructor
      * 
@@ -27,6 +46,41 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Sets the largest number of tables whose join order {@link #orderJoins}
+     * finds by dynamic programming; the joins of wider queries are ordered
+     * greedily and then improved by simulated annealing.
+     */
+    public static void setExhaustiveTableLimit(int tables) {
+        if (tables < 2)
+            throw new IllegalArgumentException("the limit must be at least 2 tables");
+        exhaustiveTableLimit = tables;
+    }
+
+    /** @return the limit set by {@link #setExhaustiveTableLimit} */
+    public static int getExhaustiveTableLimit() {
+        return exhaustiveTableLimit;
+    }
+
+    /**
+     * Sets how long {@link #orderJoins} may search for a join order. Dynamic
+     * programming that runs out of time falls back to the greedy order, and
+     * simulated annealing stops improving it once the time is up.
+     * 
+     * @param millis
+     *            the planning time budget in milliseconds
+     */
+    public static void setPlanningTimeBudget(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("the budget cannot be negative");
+        planningTimeBudget = millis;
+    }
+
+    /** @return the budget set by {@link #setPlanningTimeBudget}, in milliseconds */
+    public static long getPlanningTimeBudget() {
+        return planningTimeBudget;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -34,6 +88,14 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * Equi-joins whose left subplan is an {@link Exchange} (i.e., part of a
+     * parallel plan, see {@link LogicalPlan#setDegreeOfParallelism}) are
+     * instantiated as a {@link ParallelHashJoin}; all others as a {@link Join},
+     * whose right side replays the output of its Exchanges when rewound (see
+     * {@link Exchange#setReplayOnRewind}). A join whose tables are both in
+     * the same subplan already (plan1 == plan2) only filters it, with a
+     * {@link JoinFilter}.
      * 
      * @param lj
      *            The join being considered
@@ -44,6 +106,20 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, plan1 instanceof Exchange);
+    }
+
+    /**
+     * Like {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator)},
+     * but every equi-join of a parallel plan is a {@link ParallelHashJoin},
+     * as {@link #estimateJoinCost} assumes: a left subplan that is not an
+     * {@link Exchange} is probed by a single worker.
+     *
+     * @param parallel
+     *            whether the join is part of a parallel plan
+     */
+    static DbIterator instantiateJoin(LogicalJoinNode lj, DbIterator plan1,
+            DbIterator plan2, boolean parallel) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -68,12 +144,38 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (plan1 == plan2)
+            return new JoinFilter(p, plan1);
+        if (lj.p == Predicate.Op.EQUALS && parallel
+                && !(lj instanceof LogicalSubplanJoinNode)) {
+            // probe a hash table over the right side from each worker of
+            // the left side
+            Exchange probe = plan1 instanceof Exchange ? (Exchange) plan1
+                    : new Exchange(new DbIterator[] { plan1 });
+            j = new ParallelHashJoin(p, probe, plan2);
+        } else {
+            // the right side is rewound once per left tuple
+            replayRewinds(plan2);
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Makes each {@link Exchange} that rewinding plan rewinds replay its
+     * output instead of restarting its workers.
+     */
+    private static void replayRewinds(DbIterator plan) {
+        if (plan instanceof Exchange) {
+            ((Exchange) plan).setReplayOnRewind(true);
+        } else if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren())
+                replayRewinds(child);
+        }
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -82,7 +184,14 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
-     * 
+     * <p>
+     * A {@link Join} is a nested-loops join: it scans the left side once and
+     * the right side once per left tuple, and applies the predicate to every
+     * pair. In a parallel plan every equi-join is a {@link ParallelHashJoin}
+     * (see {@link #instantiateJoin}), which computes each side once, builds a
+     * hash table over the right side and probes it with each left tuple.
+     * Either side may be the result of other joins (see {@link #orderJoins}),
+     * in which case its cost is that of computing it.
      * 
      * @param j
      *            A LogicalJoinNode representing the join operation being
@@ -106,13 +215,10 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS && p.getDegreeOfParallelism() > 1) {
+            return cost1 + cost2 + card1 + HASH_BUILD_COST * card2;
         } else {
-            // Insert your code here.
-
-            // HINT: You likely only need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            return cost1 + card1 * cost2 + (double) card1 * card2;
         }
     }
 
@@ -150,16 +256,60 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * An equi-join is estimated as card1 * card2 / max(d1, d2), where d1 and
+     * d2 are the numbers of distinct join values on each side: card for a
+     * primary key, otherwise the HyperLogLog estimate of the column (see
+     * {@link TableStats#numDistinctValues}), capped at card since filters may
+     * have removed values. This assumes the side with fewer distinct values
+     * only holds values that also appear on the other side. Range joins are
+     * assumed to keep 30% of the cross product.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-	
-        return card <= 0 ? 1 : card;
+        double cross = (double) card1 * card2;
+        double card;
+        switch (joinOp) {
+        case EQUALS:
+        case NOT_EQUALS:
+            double d1 = t1pkey ? card1 : numDistinct(table1Alias,
+                    field1PureName, card1, stats, tableAliasToId);
+            double d2 = t2pkey ? card2 : numDistinct(table2Alias,
+                    field2PureName, card2, stats, tableAliasToId);
+            double equal = cross / Math.max(1.0, Math.max(d1, d2));
+            card = joinOp == Predicate.Op.EQUALS ? equal : cross - equal;
+            break;
+        default:
+            card = 0.3 * cross;
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card < 1 ? 1 : (int) card;
+    }
+
+    /**
+     * @return the estimated number of distinct values of a join field, at
+     *         most card; card if the table has no statistics
+     */
+    private static double numDistinct(String tableAlias, String fieldPureName,
+            int card, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        Integer tableid = tableAliasToId.get(tableAlias);
+        if (tableid == null)
+            return card;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableid));
+        if (s == null)
+            return card;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableid)
+                    .fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return card;
+        }
+        return Math.min(card, s.numDistinctValues(field));
     }
 
     /**
@@ -198,6 +348,32 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * This is Selinger-style dynamic programming: the best plan for every
+     * connected set of i joins is found by trying each of its joins as the
+     * top join (in whichever orientation is cheaper) over the best plans of
+     * the joins on either side of it, which have fewer joins. Plans may be
+     * bushy: when there are joins on both sides, the top join joins two
+     * intermediate results. As in DPccp, only connected sets of joins are
+     * enumerated, by extending each set of i - 1 joins with a plan by every
+     * join that shares a table with it, so sets that could only be joined
+     * through a cross product are never built. A join whose tables the rest
+     * of its set already connects (the second predicate of a composite-key
+     * join, or one that closes a cycle) is an extra predicate on the plan of
+     * the rest, which has merged its tables. Join sets are bitmasks (see
+     * {@link PlanCache}).
+     * <p>
+     * Queries over more tables than {@link #getExhaustiveTableLimit}, and
+     * queries whose dynamic programming exceeds the
+     * {@link #getPlanningTimeBudget planning time budget}, are ordered
+     * greedily instead: starting from each join in turn, the cheapest
+     * connected join is appended until all are placed, and the cheapest of
+     * these left-deep orders is then improved by simulated annealing over
+     * moves and swaps of joins for the rest of the budget.
+     * <p>
+     * If no plan covers every join (for instance because the joins do not
+     * connect all tables, or join more than 64 tables), the joins are
+     * returned in their original order.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -209,8 +385,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed; a join whose tables have both
+     *         been joined before joins the results of those joins (see
+     *         {@link LogicalPlan#physicalPlan}).
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -219,11 +397,390 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1-2
+        if (joins.isEmpty())
+            return joins;
+        for (LogicalJoinNode j : joins) {
+            checkTable(j.t1Alias, stats, filterSelectivities);
+            if (!(j instanceof LogicalSubplanJoinNode))
+                checkTable(j.t2Alias, stats, filterSelectivities);
+        }
+
+        int n = joins.size();
+        if (n > 64 || !joinGraph())
+            return joins;
+        long deadline = System.nanoTime() + planningTimeBudget * 1000000L;
+        PlanCache pc = new PlanCache();
+        String strategy = "dynamic programming";
+        if (tableIndex.size() > exhaustiveTableLimit
+                || !dynamicProgramming(stats, filterSelectivities, pc, deadline)) {
+            strategy = "greedy, simulated annealing";
+            int[] seq = greedyOrder(stats, filterSelectivities);
+            if (seq == null)
+                return joins;
+            seq = anneal(seq, stats, filterSelectivities, deadline);
+            pc = new PlanCache();
+            costOfOrder(seq, stats, filterSelectivities, pc);
+        }
+
+        Vector<LogicalJoinNode> order = pc.getOrder(PlanCache.allJoins(n));
+        if (order == null)
+            return joins;
+        if (explain) {
+            System.out.print(explainJoins(order, pc, stats, filterSelectivities, strategy));
+            if (!GraphicsEnvironment.isHeadless())
+                printJoins(order, pc, stats, filterSelectivities);
+        }
+        return order;
+    }
+
+    /**
+     * Fills pc with the best plan of every connected set of joins.
+     * 
+     * @return false if the deadline passed before all plans were found
+     */
+    private boolean dynamicProgramming(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc,
+            long deadline) throws ParsingException {
+        int n = joins.size();
+        long[] level = new long[n];
+        for (int i = 0; i < n; i++)
+            level[i] = PlanCache.bit(i);
+        for (int size = 1; size <= n; size++) {
+            int count = 0;
+            for (long set : level) {
+                if (System.nanoTime() - deadline > 0)
+                    return false;
+                CostCard best = null;
+                for (long r = set; r != 0; r &= r - 1) {
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, Long.numberOfTrailingZeros(r),
+                            set, best == null ? Double.MAX_VALUE : best.cost, pc);
+                    if (cc != null)
+                        best = cc;
+                }
+                if (best != null) {
+                    pc.addPlan(set, best.cost, best.card, best.plan);
+                    level[count++] = set;
+                }
+            }
+
+            // the connected sets of size + 1 joins that extend a set with a plan
+            long[] next = new long[Math.max(16, count)];
+            int found = 0;
+            for (int k = 0; k < count; k++) {
+                long set = level[k];
+                long frontier = 0;
+                for (long r = set; r != 0; r &= r - 1)
+                    frontier |= neighbors[Long.numberOfTrailingZeros(r)];
+                for (frontier &= ~set; frontier != 0; frontier &= frontier - 1) {
+                    if (found == next.length)
+                        next = Arrays.copyOf(next, found * 2);
+                    next[found++] = set | Long.lowestOneBit(frontier);
+                }
+            }
+            Arrays.sort(next, 0, found);
+            int unique = 0;
+            for (int k = 0; k < found; k++) {
+                if (unique == 0 || next[k] != next[unique - 1])
+                    next[unique++] = next[k];
+            }
+            level = Arrays.copyOf(next, unique);
+        }
+        return true;
+    }
+
+    /**
+     * Orders the joins greedily from each starting join in turn, always
+     * appending the connected join that makes the plan cheapest.
+     * 
+     * @return the positions in joins of the cheapest of these orders, or
+     *         null if the joins do not connect all tables
+     */
+    private int[] greedyOrder(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        int n = joins.size();
+        int[] best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int first = 0; first < n; first++) {
+            PlanCache pc = new PlanCache();
+            int[] seq = new int[n];
+            seq[0] = first;
+            long set = PlanCache.bit(first);
+            CostCard cc = computeCostAndCardOfSubplan(stats, filterSelectivities,
+                    first, set, Double.MAX_VALUE, pc);
+            pc.addPlan(set, cc.cost, cc.card, cc.plan);
+            for (int pos = 1; pos < n && cc != null; pos++) {
+                long frontier = 0;
+                for (long rest = set; rest != 0; rest &= rest - 1)
+                    frontier |= neighbors[Long.numberOfTrailingZeros(rest)];
+                frontier &= ~set;
+                cc = null;
+                for (; frontier != 0; frontier &= frontier - 1) {
+                    int j = Long.numberOfTrailingZeros(frontier);
+                    CostCard c = computeCostAndCardOfSubplan(stats, filterSelectivities,
+                            j, set | PlanCache.bit(j),
+                            cc == null ? Double.MAX_VALUE : cc.cost, pc);
+                    if (c != null) {
+                        cc = c;
+                        seq[pos] = j;
+                    }
+                }
+                if (cc != null) {
+                    set |= PlanCache.bit(seq[pos]);
+                    pc.addPlan(set, cc.cost, cc.card, cc.plan);
+                }
+            }
+            if (cc != null && cc.cost < bestCost) {
+                best = seq;
+                bestCost = cc.cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Improves a join order by simulated annealing: random moves of one join
+     * to another position and swaps of two joins are kept if they make the
+     * plan cheaper, and with a probability that shrinks as the search cools
+     * if they make it more expensive. The search is seeded, so the same
+     * query gets the same plan unless the deadline cuts it short.
+     * 
+     * @return the cheapest order found
+     */
+    private int[] anneal(int[] seq, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, long deadline)
+            throws ParsingException {
+        int n = seq.length;
+        if (n < 3)
+            return seq;
+        Random rand = new Random(n);
+        int[] cur = seq.clone();
+        double curCost = costOfOrder(cur, stats, filterSelectivities, null).cost;
+        int[] best = cur.clone();
+        double bestCost = curCost;
+        // the temperature is a relative cost increase that is accepted with
+        // probability 1/e
+        double temperature = 0.5;
+        int stale = 0;
+        while (temperature > 1e-3 || stale < 20 * n) {
+            if (System.nanoTime() - deadline > 0)
+                break;
+            int[] cand = cur.clone();
+            int a = rand.nextInt(n), b = rand.nextInt(n - 1);
+            if (b >= a)
+                b++;
+            if (rand.nextBoolean()) {
+                cand[a] = cur[b];
+                cand[b] = cur[a];
+            } else { // move the join at a to position b
+                int moved = cand[a];
+                if (a < b)
+                    System.arraycopy(cur, a + 1, cand, a, b - a);
+                else
+                    System.arraycopy(cur, b, cand, b + 1, a - b);
+                cand[b] = moved;
+            }
+            temperature *= 0.995;
+            stale++;
+            if (!connected(cand, neighbors))
+                continue;
+            double cost = costOfOrder(cand, stats, filterSelectivities, null).cost;
+            if (cost < curCost || rand.nextDouble() < Math.exp(-(cost / curCost - 1) / temperature)) {
+                cur = cand;
+                curCost = cost;
+                if (cost < bestCost) {
+                    best = cand;
+                    bestCost = cost;
+                    stale = 0;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** @return whether every join in seq shares a table with an earlier one */
+    private static boolean connected(int[] seq, long[] neighbors) {
+        long set = PlanCache.bit(seq[0]);
+        for (int pos = 1; pos < seq.length; pos++) {
+            if ((neighbors[seq[pos]] & set) == 0)
+                return false;
+            set |= PlanCache.bit(seq[pos]);
+        }
+        return true;
+    }
+
+    /**
+     * Costs the left-deep plan that performs the joins in the order of seq,
+     * each in its cheaper orientation.
+     * 
+     * @param pc
+     *            receives the plan of every prefix of seq, if not null
+     * @return the cost, cardinality and plan of the whole order
+     */
+    private CostCard costOfOrder(int[] seq, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc)
+            throws ParsingException {
+        if (pc == null)
+            pc = new PlanCache();
+        long set = 0;
+        CostCard cc = null;
+        for (int j : seq) {
+            set |= PlanCache.bit(j);
+            cc = computeCostAndCardOfSubplan(stats, filterSelectivities, j, set,
+                    Double.MAX_VALUE, pc);
+            pc.addPlan(set, cc.cost, cc.card, cc.plan);
+        }
+        return cc;
+    }
+
+    /**
+     * Builds the join graph used while ordering: tableIndex, joinTables and
+     * neighbors.
+     * 
+     * @return false if the joins read more than 64 tables
+     */
+    private boolean joinGraph() {
+        int n = joins.size();
+        tableIndex = new HashMap<String, Integer>();
+        joinTables = new long[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            for (String alias : new String[] { j.t1Alias, j.t2Alias }) {
+                if (alias == null)
+                    continue;
+                Integer t = tableIndex.get(alias);
+                if (t == null) {
+                    if (tableIndex.size() == 64)
+                        return false;
+                    t = tableIndex.size();
+                    tableIndex.put(alias, t);
+                }
+                joinTables[i] |= PlanCache.bit(t);
+            }
+        }
+        neighbors = new long[n];
+        for (int i = 0; i < n; i++) {
+            for (int k = i + 1; k < n; k++) {
+                if ((joinTables[i] & joinTables[k]) != 0) {
+                    neighbors[i] |= PlanCache.bit(k);
+                    neighbors[k] |= PlanCache.bit(i);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the position in joins of j, which may have had its inner and
+     *         outer swapped while ordering
+     */
+    private int joinIndex(LogicalJoinNode j) {
+        for (int i = 0; i < joins.size(); i++) {
+            LogicalJoinNode k = joins.get(i);
+            if (k == j)
+                return i;
+            if (k.t1Alias.equals(j.t2Alias) && k.t2Alias != null
+                    && k.t2Alias.equals(j.t1Alias) && k.f1PureName.equals(j.f2PureName)
+                    && k.f2PureName.equals(j.f1PureName))
+                return i;
+            if (j instanceof LogicalSubplanJoinNode && j.equals(k))
+                return i;
+        }
+        throw new NoSuchElementException("join " + j + " is not being ordered");
+    }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+    /**
+     * @return for each join of js, the set of joins in the subtree of the
+     *         plan that it is the top of
+     */
+    private long[] subtrees(Vector<LogicalJoinNode> js) {
+        HashMap<String, Long> groups = new HashMap<String, Long>();
+        long[] sets = new long[js.size()];
+        for (int i = 0; i < js.size(); i++) {
+            LogicalJoinNode j = js.get(i);
+            Long g1 = groups.get(j.t1Alias);
+            Long g2 = j.t2Alias == null ? null : groups.get(j.t2Alias);
+            sets[i] = PlanCache.bit(joinIndex(j)) | (g1 == null ? 0 : g1)
+                    | (g2 == null ? 0 : g2);
+            for (Map.Entry<String, Long> e : groups.entrySet()) {
+                if (e.getValue().equals(g1) || e.getValue().equals(g2))
+                    e.setValue(sets[i]);
+            }
+            groups.put(j.t1Alias, sets[i]);
+            if (j.t2Alias != null)
+                groups.put(j.t2Alias, sets[i]);
+        }
+        return sets;
+    }
+
+    /**
+     * Describes a join order, one line per join with the estimated cost and
+     * cardinality of the subplan it is the top of and the inputs it joins
+     * (a base table or an earlier step), and the estimated scan cost and
+     * filtered cardinality of each base table.
+     * 
+     * @param js
+     *            the join order, as returned by {@link #orderJoins}
+     * @param pc
+     *            the PlanCache holding the estimates of every subplan of js
+     * @param strategy
+     *            how the order was found
+     */
+    String explainJoins(Vector<LogicalJoinNode> js, PlanCache pc,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities, String strategy) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Join order for ").append(p.getQuery()).append(" (")
+                .append(strategy).append("):\n");
+        long[] sets = subtrees(js);
+        HashMap<String, Integer> lastStep = new HashMap<String, Integer>();
+        HashSet<String> scanned = new HashSet<String>();
+        for (int i = 0; i < js.size(); i++) {
+            LogicalJoinNode j = js.get(i);
+            Integer in1 = lastStep.get(j.t1Alias);
+            Integer in2 = j.t2Alias == null ? null : lastStep.get(j.t2Alias);
+            sb.append(String.format("  %d. %s %s %s (cost = %.1f, card = %d) <- %s, %s%n",
+                    i + 1, j.f1QuantifiedName, j.p,
+                    j instanceof LogicalSubplanJoinNode ? "subplan" : j.f2QuantifiedName,
+                    pc.getCost(sets[i]), pc.getCard(sets[i]),
+                    in1 == null ? j.t1Alias : "#" + in1,
+                    j.t2Alias == null ? "subplan" : in2 == null ? j.t2Alias : "#" + in2));
+            // every table below this join is now read through its result
+            for (Map.Entry<String, Integer> e : lastStep.entrySet()) {
+                if (e.getValue().equals(in1) || e.getValue().equals(in2))
+                    e.setValue(i + 1);
+            }
+            lastStep.put(j.t1Alias, i + 1);
+            if (j.t2Alias != null)
+                lastStep.put(j.t2Alias, i + 1);
+            for (String alias : new String[] { j.t1Alias, j.t2Alias }) {
+                if (alias == null || !scanned.add(alias))
+                    continue;
+                TableStats s = stats.get(Database.getCatalog().getTableName(
+                        p.getTableId(alias)));
+                sb.append(String.format("       scan %s (cost = %.1f, card = %d)%n",
+                        alias, s.estimateScanCost(),
+                        s.estimateTableCardinality(selectivities.get(alias))));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @throws ParsingException
+     *             if the table with this alias has no statistics or filter
+     *             selectivity
+     */
+    private void checkTable(String alias, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        Integer tableid = p.getTableId(alias);
+        if (tableid == null)
+            throw new ParsingException("Unknown table " + alias);
+        if (stats.get(Database.getCatalog().getTableName(tableid)) == null)
+            throw new ParsingException("No statistics for table " + alias);
+        if (filterSelectivities.get(alias) == null)
+            throw new ParsingException("No filter selectivity for table " + alias);
     }
 
     // ===================== Private Methods =================================
@@ -231,8 +788,17 @@ public class JoinOptimizer {
     /**
      * This is a helper method that computes the cost and cardinality of joining
      * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * the best plans for the rest of joinSet have already been computed and
+     * stored in PlanCache pc.
+     * <p>
+     * Without joinToRemove, joinSet falls apart into the joins connected to
+     * each of its tables. joinToRemove joins the best plans of these two sets
+     * (or the base table itself, if no other join touches it), so the plan
+     * is bushy if both are joins. If the rest of joinSet still connects the
+     * two tables (a cycle), joinToRemove is an extra predicate on the best
+     * plan of the rest, which scales its cardinality by the selectivity of
+     * joinToRemove over its two tables. There is no plan if the rest of
+     * joinSet does not connect all of its joins (a cross product).
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -242,152 +808,163 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the position in joins of the join to remove from joinSet
      * @param joinSet
-     *            the set of joins being considered
+     *            the set of joins being considered, as a bitmask over their
+     *            positions in joins
      * @param bestCostSoFar
      *            the best way to join joinSet so far (minimum of previous
      *            invocations of computeCostAndCardOfSubplan for this joinSet,
      *            from returned CostCard)
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
+     *            the PlanCache for this join; should have subplans for the
+     *            joins on either side of joinToRemove
      * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *         optimal subplan, or null if there is no plan cheaper than
+     *         bestCostSoFar
      * @throws ParsingException
      *             when stats, filterSelectivities, or pc object is missing
      *             tables involved in join
      */
-    @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
+            int joinToRemove, long joinSet,
             double bestCostSoFar, PlanCache pc) throws ParsingException {
 
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
+        LogicalJoinNode j = joins.get(joinToRemove);
 
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        if (j.t2Alias != null && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
-            }
-        }
+        long rest = joinSet & ~PlanCache.bit(joinToRemove);
+        long leftSet = component(rest, j.t1Alias);
+        long rightSet = j.t2Alias == null ? 0 : component(rest, j.t2Alias);
+        if ((leftSet & rightSet) != 0)
+            return leftSet == rest ? closeCycle(j, rest, stats,
+                    filterSelectivities, bestCostSoFar, pc) : null;
+        if ((leftSet | rightSet) != rest)
+            return null;
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        Input left = input(leftSet, j.t1Alias, j.f1PureName, stats,
+                filterSelectivities, pc);
+        Input right = j.t2Alias == null ? new Input() : input(rightSet,
+                j.t2Alias, j.f2PureName, stats, filterSelectivities, pc);
+        if (left == null || right == null)
+            return null;
 
+        double cost = estimateJoinCost(j, left.card, right.card, left.cost,
+                right.cost);
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
+        double cost2 = estimateJoinCost(j2, right.card, left.card, right.cost,
+                left.cost);
+        if (cost2 < cost) {
             j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+            cost = cost2;
+            Input tmp = left;
+            left = right;
+            right = tmp;
         }
-        if (cost1 >= bestCostSoFar)
+        if (cost >= bestCostSoFar)
             return null;
 
         CostCard cc = new CostCard();
+        cc.card = estimateJoinCardinality(j, left.card, right.card, left.pkey,
+                right.pkey, stats);
+        cc.cost = cost;
+        cc.plan = new Vector<LogicalJoinNode>(left.plan.size()
+                + right.plan.size() + 1);
+        cc.plan.addAll(left.plan);
+        cc.plan.addAll(right.plan);
+        cc.plan.addElement(j); // joins the results of the two subplans
+        return cc;
+    }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+    /**
+     * Costs a join whose two tables the joins in rest already connect, as a
+     * filter over the best plan of rest that evaluates it once per tuple.
+     * 
+     * @return the plan of rest followed by j, or null if rest has no plan or
+     *         the result is not cheaper than bestCostSoFar
+     */
+    private CostCard closeCycle(LogicalJoinNode j, long rest,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities,
+            double bestCostSoFar, PlanCache pc) {
+        Vector<LogicalJoinNode> plan = pc.getOrder(rest);
+        if (plan == null)
+            return null;
+        CostCard cc = new CostCard();
+        cc.cost = pc.getCost(rest) + pc.getCard(rest);
+        if (cc.cost >= bestCostSoFar)
+            return null;
+        Input t1 = input(0, j.t1Alias, j.f1PureName, stats, filterSelectivities, pc);
+        Input t2 = input(0, j.t2Alias, j.f2PureName, stats, filterSelectivities, pc);
+        double selectivity = (double) estimateJoinCardinality(j, t1.card,
+                t2.card, t1.pkey, t2.pkey, stats)
+                / Math.max(1.0, (double) t1.card * t2.card);
+        cc.card = (int) Math.max(1, Math.round(pc.getCard(rest) * Math.min(1.0, selectivity)));
+        cc.plan = new Vector<LogicalJoinNode>(plan.size() + 1);
+        cc.plan.addAll(plan);
+        cc.plan.addElement(j); // filters the result of plan
         return cc;
     }
 
+    /** One side of a join: a base table or the best plan of a set of joins. */
+    private static class Input {
+        double cost;
+        int card;
+        boolean pkey;
+        Vector<LogicalJoinNode> plan = new Vector<LogicalJoinNode>();
+    }
+
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * @return the side of a join that reads the table with the given alias,
+     *         joined by the joins in set; null if set has no cached plan
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private Input input(long set, String alias, String field,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc) {
+        Input in = new Input();
+        if (set == 0) {
+            TableStats s = stats.get(Database.getCatalog().getTableName(
+                    this.p.getTableId(alias)));
+            in.cost = s.estimateScanCost();
+            in.card = s.estimateTableCardinality(filterSelectivities.get(alias));
+            in.pkey = isPkey(alias, field);
+        } else {
+            in.plan = pc.getOrder(set);
+            if (in.plan == null)
+                return null;
+            in.cost = pc.getCost(set);
+            in.card = pc.getCard(set);
+            in.pkey = hasPkey(in.plan);
+        }
+        return in;
+    }
+
+    /**
+     * @return the joins in set that are connected, through joins in set, to
+     *         the table with the given alias
+     */
+    private long component(long set, String alias) {
+        long comp = 0;
+        long table = PlanCache.bit(tableIndex.get(alias));
+        for (long r = set; r != 0; r &= r - 1) {
+            int i = Long.numberOfTrailingZeros(r);
+            if ((joinTables[i] & table) != 0)
+                comp |= PlanCache.bit(i);
+        }
+        while (true) {
+            long grown = comp;
+            for (long r = comp; r != 0; r &= r - 1)
+                grown |= neighbors[Long.numberOfTrailingZeros(r)] & set;
+            if (grown == comp)
+                return comp;
+            comp = grown;
         }
-        return false;
     }
 
     /**
@@ -456,13 +1033,13 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        long[] sets = subtrees(js);
+        int step = 0;
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            long pathSoFar = sets[step++];
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -475,7 +1052,9 @@ public class JoinOptimizer {
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
+            DefaultMutableTreeNode left = m.get(j.t1Alias);
+            DefaultMutableTreeNode right = m.get(j.t2Alias);
+            DefaultMutableTreeNode n = left;
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
@@ -491,7 +1070,7 @@ public class JoinOptimizer {
             }
             m.put(j.t1Alias, root);
 
-            n = m.get(j.t2Alias);
+            n = right;
             if (n == null) { // never seen this table before
 
                 n = new DefaultMutableTreeNode(
@@ -513,11 +1092,12 @@ public class JoinOptimizer {
             }
             m.put(j.t2Alias, root);
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
+            // unless this table doesn't join with other tables, all tables
+            // below either input are now accessed from root
             if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
+                for (Map.Entry<String, DefaultMutableTreeNode> e : m.entrySet()) {
+                    if (e.getValue() == left || e.getValue() == right)
+                        e.setValue(root);
                 }
             }
 
@@ -0,0 +1,473 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager grants locks on tables, pages and rows to transactions on
+ * behalf of the {@link BufferPool}. Locks follow the usual multiple
+ * granularity protocol: a transaction locks a row in exclusive mode only
+ * after taking intention locks (IX) on its page and table, and reads a whole
+ * page in shared mode after an IS lock on its table, so that row writers on
+ * the same page run concurrently while whole-page readers and writers still
+ * exclude them. A transaction asking for a stronger mode on a resource it
+ * already holds has its lock upgraded once no other holder conflicts. Locks
+ * are held until {@link #releaseAll} is called when the transaction
+ * completes (strict two-phase locking), unless a page is explicitly released
+ * earlier.
+ * <p>
+ * Every resource has its own lock object, so transactions locking different
+ * resources never contend, and the locks each transaction holds are kept in a
+ * concurrent map of its own, so acquiring a lock the transaction already
+ * holds takes no lock at all.
+ * <p>
+ * Deadlocks are found with a waits-for graph: whenever a transaction blocks,
+ * and again whenever it is woken up without being granted the lock, the
+ * graph is searched for a cycle through it, and the youngest transaction in
+ * the cycle (the one with the largest id) is aborted. Optionally, a lock
+ * timeout also aborts transactions that wait too long.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock modes: intention shared and exclusive, shared, shared with
+        intention exclusive, and exclusive. */
+    public enum Mode {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  false, false, false, false }, // SIX
+            { false, false, false, false, false }, // X
+        };
+
+        /** @return whether two transactions may hold this mode and other on
+            the same resource */
+        public boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return whether holding this mode allows everything other does */
+        public boolean covers(Mode other) {
+            if (this == other || this == X)
+                return true;
+            switch (this) {
+            case SIX:
+                return other != X;
+            case IX:
+            case S:
+                return other == IS;
+            default:
+                return false;
+            }
+        }
+
+        /** @return the weakest mode that covers both this mode and other */
+        public Mode join(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            return SIX; // IX and S
+        }
+    }
+
+    /** Default time, in milliseconds, a transaction waits for a lock before
+        it is aborted; 0 waits until the lock is granted or the transaction
+        is chosen as the victim of a deadlock. */
+    public static final long DEFAULT_TIMEOUT = 0;
+
+    // how often, in milliseconds, a blocked transaction looks for a deadlock
+    // again when nothing wakes it up
+    private static final long DETECTION_INTERVAL = 500;
+
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    // locks keyed by TableKey, PageId or RecordId
+    private final ConcurrentHashMap<Object, Lock> locks =
+            new ConcurrentHashMap<Object, Lock>();
+    // the resources each transaction has locked, and in which mode
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<Object, Mode>> held =
+            new ConcurrentHashMap<TransactionId, ConcurrentHashMap<Object, Mode>>();
+    // the waits-for graph: the request each blocked transaction waits on
+    private final ConcurrentHashMap<TransactionId, Request> waitingFor =
+            new ConcurrentHashMap<TransactionId, Request>();
+    // blocked transactions chosen to be aborted to break a deadlock
+    private final Set<TransactionId> victims =
+            Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+
+    private final AtomicLong deadlocks = new AtomicLong();
+    private volatile long statsSince = System.currentTimeMillis();
+
+    /** The lock resource of a whole table. */
+    private static final class TableKey {
+        final int tableid;
+
+        TableKey(int tableid) {
+            this.tableid = tableid;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableid == tableid;
+        }
+
+        public int hashCode() {
+            return tableid * 31 + 7;
+        }
+    }
+
+    private static final class Request {
+        final Object resource;
+        final Mode mode;
+
+        Request(Object resource, Mode mode) {
+            this.resource = resource;
+            this.mode = mode;
+        }
+    }
+
+    /** The lock on one resource; guarded by its own monitor. */
+    private static class Lock {
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>(4);
+        int waiters;
+        // set once the lock is removed from the table, after which it must not be used
+        boolean removed;
+
+        /** @return the mode tid holds once it is granted mode */
+        Mode wanted(TransactionId tid, Mode mode) {
+            Mode current = holders.get(tid);
+            return current == null ? mode : current.join(mode);
+        }
+
+        boolean grantable(TransactionId tid, Mode mode) {
+            for (Map.Entry<TransactionId, Mode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !h.getValue().compatibleWith(mode))
+                    return false;
+            }
+            return true;
+        }
+
+        /** @return the transactions whose locks keep tid from being granted mode */
+        synchronized ArrayList<TransactionId> blockers(TransactionId tid, Mode mode) {
+            Mode wanted = wanted(tid, mode);
+            ArrayList<TransactionId> blockers = new ArrayList<TransactionId>();
+            for (Map.Entry<TransactionId, Mode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !h.getValue().compatibleWith(wanted))
+                    blockers.add(h.getKey());
+            }
+            return blockers;
+        }
+    }
+
+    /** Sets the time, in milliseconds, a transaction waits for a lock before
+        it is aborted; 0 waits indefinitely. */
+    public void setTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("timeout must not be negative");
+        timeout = millis;
+    }
+
+    /** @return the time, in milliseconds, a transaction waits for a lock */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /** @return the number of deadlocks found since the statistics were reset */
+    public long getDeadlocks() {
+        return deadlocks.get();
+    }
+
+    /** @return the number of deadlocks found per second since the statistics
+        were reset */
+    public double getDeadlockRate() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - statsSince);
+        return deadlocks.get() * 1000.0 / elapsed;
+    }
+
+    /** Resets the deadlock count and starts measuring its rate anew. */
+    public void resetStats() {
+        deadlocks.set(0);
+        statsSince = System.currentTimeMillis();
+    }
+
+    private ConcurrentHashMap<Object, Mode> heldBy(TransactionId tid) {
+        ConcurrentHashMap<Object, Mode> mine = held.get(tid);
+        if (mine == null) {
+            ConcurrentHashMap<Object, Mode> fresh = new ConcurrentHashMap<Object, Mode>();
+            mine = held.putIfAbsent(tid, fresh);
+            if (mine == null)
+                mine = fresh;
+        }
+        return mine;
+    }
+
+    /**
+     * Locks a table for a transaction, waiting while other transactions hold
+     * a conflicting lock.
+     *
+     * @throws TransactionAbortedException
+     *             if the transaction is chosen to break a deadlock, waits
+     *             longer than the timeout, or the waiting thread is
+     *             interrupted
+     */
+    public void lockTable(TransactionId tid, int tableid, Mode mode)
+            throws TransactionAbortedException {
+        acquire(tid, new TableKey(tableid), mode, true);
+    }
+
+    /**
+     * Locks a page for a transaction, waiting while other transactions hold
+     * a conflicting lock. The caller is responsible for holding the intention
+     * lock on the page's table the mode requires.
+     *
+     * @throws TransactionAbortedException
+     *             if the transaction is chosen to break a deadlock, waits
+     *             longer than the timeout, or the waiting thread is
+     *             interrupted
+     */
+    public void lockPage(TransactionId tid, PageId pid, Mode mode)
+            throws TransactionAbortedException {
+        acquire(tid, pid, mode, true);
+    }
+
+    /**
+     * Locks a row for a transaction, waiting while other transactions hold a
+     * conflicting lock. The caller is responsible for holding the intention
+     * locks on the row's page and table the mode requires.
+     *
+     * @throws TransactionAbortedException
+     *             if the transaction is chosen to break a deadlock, waits
+     *             longer than the timeout, or the waiting thread is
+     *             interrupted
+     */
+    public void lockRow(TransactionId tid, RecordId rid, Mode mode)
+            throws TransactionAbortedException {
+        acquire(tid, rid, mode, true);
+    }
+
+    /**
+     * Locks a row for a transaction if no other transaction holds a
+     * conflicting lock on it.
+     *
+     * @return whether the lock was granted
+     */
+    public boolean tryLockRow(TransactionId tid, RecordId rid, Mode mode) {
+        try {
+            return acquire(tid, rid, mode, false);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException(e); // not thrown without waiting
+        }
+    }
+
+    /** Locks resource for tid, waiting for it if wait is set.
+        @return whether the lock was granted */
+    private boolean acquire(TransactionId tid, Object resource, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        ConcurrentHashMap<Object, Mode> mine = heldBy(tid);
+        Mode have = mine.get(resource);
+        if (have != null && have.covers(mode))
+            return true;
+
+        long deadline = 0;
+        boolean checked = false;
+        while (true) {
+            Lock lock = locks.get(resource);
+            if (lock == null) {
+                Lock fresh = new Lock();
+                lock = locks.putIfAbsent(resource, fresh);
+                if (lock == null)
+                    lock = fresh;
+            }
+            synchronized (lock) {
+                if (lock.removed)
+                    continue;
+                Mode wanted = lock.wanted(tid, mode);
+                if (lock.grantable(tid, wanted)) {
+                    lock.holders.put(tid, wanted);
+                    // another thread of tid may have been granted a lock meanwhile,
+                    // so record the mode the lock itself holds
+                    mine.put(resource, wanted);
+                    stopWaiting(tid);
+                    return true;
+                }
+                if (!wait) {
+                    discardIfFree(resource, lock);
+                    return false;
+                }
+                long now = System.currentTimeMillis();
+                if (timeout > 0 && deadline == 0)
+                    deadline = now + timeout;
+                if (victims.remove(tid) || (deadline != 0 && now >= deadline)) {
+                    stopWaiting(tid);
+                    discardIfFree(resource, lock);
+                    throw new TransactionAbortedException();
+                }
+                if (checked) {
+                    lock.waiters++;
+                    try {
+                        lock.wait(deadline == 0 ? DETECTION_INTERVAL
+                                : Math.min(DETECTION_INTERVAL, deadline - now));
+                    } catch (InterruptedException e) {
+                        stopWaiting(tid);
+                        throw new TransactionAbortedException();
+                    } finally {
+                        lock.waiters--;
+                    }
+                    // the holders changed, so look for a deadlock again
+                    checked = false;
+                    continue;
+                }
+                waitingFor.put(tid, new Request(resource, mode));
+            }
+            // search outside the monitor, which examines other resources' locks
+            // one at a time; a victim other than tid is woken up to abort
+            checked = true;
+            TransactionId victim = findDeadlock(tid);
+            if (victim != null && victims.add(victim)) {
+                deadlocks.incrementAndGet();
+                Request waited = waitingFor.get(victim);
+                Lock other = waited == null ? null : locks.get(waited.resource);
+                if (other != null) {
+                    synchronized (other) {
+                        other.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void stopWaiting(TransactionId tid) {
+        waitingFor.remove(tid);
+        victims.remove(tid);
+    }
+
+    /**
+     * Searches the waits-for graph for a cycle through tid. Transaction a
+     * waits for b if a is blocked on a resource b holds a conflicting lock
+     * on.
+     *
+     * @return the youngest transaction in a cycle through tid, or null if
+     *         tid is not deadlocked
+     */
+    private TransactionId findDeadlock(TransactionId tid) {
+        HashMap<TransactionId, TransactionId> parent = new HashMap<TransactionId, TransactionId>();
+        ArrayDeque<TransactionId> stack = new ArrayDeque<TransactionId>();
+        parent.put(tid, null);
+        stack.push(tid);
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            Request r = waitingFor.get(t);
+            Lock lock = r == null ? null : locks.get(r.resource);
+            if (lock == null)
+                continue;
+            for (TransactionId h : lock.blockers(t, r.mode)) {
+                if (h.equals(tid)) {
+                    // a cycle: walk back from t to tid
+                    TransactionId youngest = tid;
+                    for (TransactionId c = t; c != null; c = parent.get(c)) {
+                        if (c.getId() > youngest.getId())
+                            youngest = c;
+                    }
+                    return youngest;
+                }
+                if (!parent.containsKey(h)) {
+                    parent.put(h, t);
+                    stack.push(h);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Removes the lock of resource from the table if no one holds or waits
+        for it; the caller holds the lock's monitor. */
+    private void discardIfFree(Object resource, Lock lock) {
+        if (lock.holders.isEmpty() && lock.waiters == 0) {
+            lock.removed = true;
+            locks.remove(resource, lock);
+        }
+    }
+
+    private void release(TransactionId tid, Object resource, Lock lock) {
+        synchronized (lock) {
+            lock.holders.remove(tid);
+            if (lock.waiters > 0)
+                lock.notifyAll();
+            else
+                discardIfFree(resource, lock);
+        }
+    }
+
+    private void release(TransactionId tid, Object resource) {
+        ConcurrentHashMap<Object, Mode> mine = held.get(tid);
+        if (mine == null || mine.remove(resource) == null)
+            return;
+        Lock lock = locks.get(resource);
+        if (lock != null)
+            release(tid, resource, lock);
+    }
+
+    /** Releases the lock tid holds on pid, if any. */
+    public void release(TransactionId tid, PageId pid) {
+        release(tid, (Object) pid);
+    }
+
+    /** Releases every lock tid holds. */
+    public void releaseAll(TransactionId tid) {
+        stopWaiting(tid);
+        ConcurrentHashMap<Object, Mode> mine = held.remove(tid);
+        if (mine == null)
+            return;
+        for (Object resource : mine.keySet()) {
+            Lock lock = locks.get(resource);
+            if (lock != null)
+                release(tid, resource, lock);
+        }
+    }
+
+    /** @return the mode in which tid holds pid, or null if it holds no lock
+        on it */
+    public Mode lockMode(TransactionId tid, PageId pid) {
+        ConcurrentHashMap<Object, Mode> mine = held.get(tid);
+        return mine == null ? null : mine.get(pid);
+    }
+
+    /** @return whether tid holds a lock on pid */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return lockMode(tid, pid) != null;
+    }
+
+    /** @return whether tid holds an exclusive lock on pid */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        return lockMode(tid, pid) == Mode.X;
+    }
+
+    /** @return whether tid holds an exclusive lock on rid */
+    public boolean holdsRowLock(TransactionId tid, RecordId rid) {
+        ConcurrentHashMap<Object, Mode> mine = held.get(tid);
+        return mine != null && mine.get(rid) == Mode.X;
+    }
+
+    /** @return the pages tid holds a lock on */
+    public ArrayList<PageId> lockedPages(TransactionId tid) {
+        ArrayList<PageId> pages = new ArrayList<PageId>();
+        ConcurrentHashMap<Object, Mode> mine = held.get(tid);
+        if (mine != null) {
+            for (Object resource : mine.keySet()) {
+                if (resource instanceof PageId)
+                    pages.add((PageId) resource);
+            }
+        }
+        return pages;
+    }
+}
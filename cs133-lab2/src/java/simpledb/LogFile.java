@@ -2,8 +2,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +34,24 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+The BufferPool takes this log file's monitor before a page's monitor
+when it logs the page, so no LogFile operation may wait for a page's
+monitor while holding its own except by logging pages through the
+BufferPool.
+
+<p> Records are serialized into an in-memory log buffer, which is
+written out when it fills up and whenever the log is forced. Each record
+is identified by its log sequence number (LSN): its offset in the log,
+which truncation leaves unchanged. The BufferPool writes a page to disk only
+once the log is forced through the LSN of the last update of the page
+(see {@link #forceTo}).
+
+<p> Commits are forced to disk in groups: a committing transaction
+appends its records and waits while a flusher thread forces the log
+once for every transaction that committed meanwhile (see
+{@link #setGroupCommit}).
 */
 
 /**
@@ -39,8 +59,12 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in segment files of a fixed size, and the log
+file is their manifest, which holds the segment size, the offset of the
+first byte of the log kept, and the offset of the last written
+checkpoint, or -1 if there are no checkpoints (see LogSegments).
+Truncating the log deletes the segments before the first record still
+needed.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
@@ -48,24 +72,27 @@ records are variable length.
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of the byte ranges of a page that the update
+changed, with their bytes before and after the update, written and read
+with PageDelta.write() and PageDelta.read().
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id
+and a long integer first record offset for each active transaction,
+then an integer count of pages, as well as a page id (an integer count
+and the integers of PageId.serialize()) and a long integer offset of
+the first update logged since the page was last written for each
+page logged but not yet written.
 
 </ul>
 
@@ -74,7 +101,7 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments; //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,12 +114,42 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Default size of the segment files of the log, in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Default size of the in-memory log buffer, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // the records appended but not written out yet, which follow the
+    // offset currentOffset - buffer.position() //protected by this
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+    // the record being appended //protected by this
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    long lastLsn = -1; // the LSN of the last record appended //protected by this
+    private long writes = 0; // writes of the log buffer //protected by this
+
+    /** Default time the flusher waits for more commits, in microseconds. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+    // how long an idle flusher thread waits for commits before exiting
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    private volatile boolean groupCommit = true;
+    private volatile long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+    // guards the fields below
+    private final Object forceLock = new Object();
+    private long forcedEnd = 0; // the log is on disk up to this offset
+    private long forceRequested = 0; // the offset to force the log up to
+    private IOException forceError = null;
+    private Flusher flusher = null;
+    private long forces = 0; // the number of times the log was forced
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +162,20 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Initialize and back the log file with the specified file, as the
+        manifest of segments of the specified size (unless the log it
+        describes has another size).
+
+        @param f The log file's name
+        @param segmentSize The size of the segment files, in bytes
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,17 +196,89 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset();
+            currentOffset = 0;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the LSN of the last record appended, which is on disk once
+        {@link #forceTo} that LSN returns */
+    public synchronized long getLastLsn() {
+        return lastLsn;
+    }
+
+    /** @return the number of times the log buffer was written out */
+    public synchronized long getWriteCount() {
+        return writes;
+    }
+
+    /** Starts appending a record of the specified type, which is
+        serialized with the returned stream and appended by
+        {@link #endRecord}. */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        preAppend();
+        record.reset();
+        recordOut.writeInt(type);
+        recordOut.writeLong(tid);
+        return recordOut;
+    }
+
+    /** Ends the record begun by {@link #beginRecord} with its offset and
+        appends it to the log buffer, writing the buffer out first if the
+        record does not fit.
+        @return the LSN of the record */
+    private long endRecord() throws IOException {
+        recordOut.writeLong(currentOffset);
+        if (record.size() > buffer.remaining())
+            writeBuffer();
+        if (record.size() > buffer.capacity())
+            segments.write(record.contents(), currentOffset);
+        else
+            record.copyTo(buffer);
+        lastLsn = currentOffset;
+        currentOffset += record.size();
+        return lastLsn;
+    }
+
+    /** Writes the records in the log buffer to the log's segments,
+        without forcing them to disk. */
+    private void writeBuffer() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        segments.write(buffer, currentOffset - buffer.remaining());
+        buffer.clear();
+        writes++;
+    }
+
+    /** Sets whether commits wait for a flusher thread to force the log
+        for a group of them, or force it themselves. Group commit is on by
+        default. */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    /** @return whether commits are forced in groups */
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /** Sets the longest time the flusher waits for more transactions to
+        commit before it forces the log, in microseconds; commits that
+        arrive while it forces join the next group anyway. */
+    public void setGroupCommitDelay(long micros) {
+        this.groupCommitDelay = micros;
+    }
+
+    /** @return the longest time the flusher waits for more commits, in
+        microseconds */
+    public long getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -150,7 +291,6 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
 
             synchronized(this) {
-                preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
@@ -158,10 +298,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,21 +307,24 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk. The images of the pages tid dirtied are
+        logged first, with no other page logged in between; the BufferPool
+        writes them once the log is forced.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            Database.getBufferPool().logPages(tid);
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            lsn = endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        forceTo(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,105 +335,33 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public void logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        logWrite(tid, after.getId(), before.getPageData(), after.getPageData());
+    }
+
+    /** Write an UPDATE record for the specified tid with the byte ranges
+        of the page that differ between the provided data before and after
+        the update (see {@link PageDelta}).
+        @return the LSN of the record
+    */
+    synchronized long logWrite(TransactionId tid, PageId pid, byte[] before,
+                               byte[] after)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page delta (see PageDelta.write)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
+        PageDelta.diff(pid, before, after).write(out);
+        long lsn = endRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+        return lsn;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -306,151 +375,100 @@ public class LogFile {
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        beginRecord(BEGIN_RECORD, tid.getId());
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record. The checkpoint
+        is fuzzy: it records the running transactions and the dirty page
+        table of the BufferPool (see {@link BufferPool#dirtyPages}) without
+        writing any page, and holds only this log file's monitor while it
+        appends its record, so transactions go on meanwhile. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long cpLsn;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            Map<PageId, Long> dirty = Database.getBufferPool().dirtyPages();
+            DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table, with the offsets of the recLSNs
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
             }
+            cpLsn = endRecord();
+        }
+        forceTo(cpLsn);
+
+        synchronized (this) {
+            //once the CP is on disk, make sure the CP location in the
+            // manifest is updated, unless a later checkpoint got there first
+            if (segments.getCheckpoint() < cpLsn)
+                segments.setCheckpoint(cpLsn);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption, by deleting the segments before the last checkpoint
+        and the records it needs */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        writeBuffer();
+        long cpLoc = segments.getCheckpoint();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
+        LogSegments.Reader in = segments.reader(cpLoc);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        int numOutstanding = in.readInt();
 
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // pages not written since their recLSN are redone from there
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(in);
+            minLogRecord = Math.min(minLogRecord, in.readLong());
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can truncate everything before minLogRecord
+        Debug.log("TRUNCATING LOG; WAS FROM " + segments.getStart() + " ; NEW START : " + minLogRecord);
+        segments.truncate(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,10 +485,94 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null)
+                    return;
+                writeBuffer();
+
+                ArrayList<PageDelta> deltas = new ArrayList<PageDelta>();
+                LogSegments.Reader in = segments.reader(firstLogRecord);
+                while (in.getFilePointer() < currentOffset) {
+                    int type = in.readInt();
+                    long record_tid = in.readLong();
+                    if (type == UPDATE_RECORD) {
+                        PageDelta delta = PageDelta.read(in);
+                        if (record_tid == tid.getId())
+                            deltas.add(delta);
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpointData(in);
+                    }
+                    in.readLong();
+                }
+
+                // undo the updates, latest first, starting from the pages
+                // as last logged
+                HashMap<PageId, byte[]> pages = new HashMap<PageId, byte[]>();
+                for (int i = deltas.size() - 1; i >= 0; i--) {
+                    PageDelta delta = deltas.get(i);
+                    byte[] data = pages.get(delta.pid);
+                    if (data == null) {
+                        data = Database.getBufferPool().loggedPageData(delta.pid);
+                        if (data == null)
+                            data = readPageData(delta.pid);
+                        pages.put(delta.pid, data);
+                    }
+                    delta.undo(data);
+                }
+                writePages(pages);
             }
         }
     }
 
+    /** @return a copy of the data of the page on disk, or of an empty page
+        if the file does not reach it */
+    private byte[] readPageData(PageId pid) throws IOException {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            return HeapPage.createEmptyPageData();
+        }
+    }
+
+    /** Writes the pages to disk and discards them from the BufferPool */
+    private void writePages(Map<PageId, byte[]> pages) throws IOException {
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            PageId pid = e.getKey();
+            Database.getCatalog().getDatabaseFile(pid.getTableId())
+                .writePage(new HeapPage((HeapPageId) pid, e.getValue()));
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
+    /** Skips the list of active transactions and the dirty page table of
+        a checkpoint record */
+    void skipCheckpointData(LogSegments.Reader in) throws IOException {
+        int numXactions = in.readInt();
+        in.seek(in.getFilePointer() + numXactions * 2 * LONG_SIZE);
+        int numPages = in.readInt();
+        for (int i = 0; i < numPages; i++) {
+            readPageId(in);
+            in.readLong();
+        }
+    }
+
+    /** Writes a page id as an integer count and the integers of
+        {@link PageId#serialize} */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] id = pid.serialize();
+        out.writeInt(id.length);
+        for (int i = 0; i < id.length; i++)
+            out.writeInt(id[i]);
+    }
+
+    /** Reads a page id written by {@link #writePageId} */
+    static PageId readPageId(DataInput in) throws IOException {
+        int[] id = new int[in.readInt()];
+        for (int i = 0; i < id.length; i++)
+            id[i] = in.readInt();
+        return new HeapPageId(id[0], id[1]);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -478,7 +580,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -494,6 +596,108 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (!segments.isValid()) {
+                    // nothing was ever logged
+                    segments.reset();
+                    currentOffset = 0;
+                    return;
+                }
+
+                // analysis: start from the last checkpoint, or from the
+                // first record of a transaction running at the time, or
+                // from the recLSN of a page not written at the time
+                long cpLoc = segments.getCheckpoint();
+                long start = segments.getStart();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    start = cpLoc;
+                    LogSegments.Reader in = segments.reader(cpLoc);
+                    in.readInt();
+                    in.readLong();
+                    int numOutstanding = in.readInt();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        in.readLong();
+                        start = Math.min(start, in.readLong());
+                    }
+                    int numDirty = in.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        readPageId(in);
+                        start = Math.min(start, in.readLong());
+                    }
+                }
+
+                // repeat history: redo every update in log order, undoing
+                // the updates of each transaction that aborted where its
+                // abort record is; a record cut short by the crash ends the
+                // log
+                HashMap<PageId, byte[]> pages = new HashMap<PageId, byte[]>();
+                HashMap<Long, ArrayList<PageDelta>> running = new HashMap<Long, ArrayList<PageDelta>>();
+                ArrayList<Long> order = new ArrayList<Long>(); // of the deltas' transactions
+                ArrayList<PageDelta> all = new ArrayList<PageDelta>();
+                long end = start;
+                LogSegments.Reader in = segments.reader(start);
+                while (true) {
+                    try {
+                        int type = in.readInt();
+                        long record_tid = in.readLong();
+                        PageDelta delta = null;
+                        if (type == UPDATE_RECORD)
+                            delta = PageDelta.read(in);
+                        else if (type == CHECKPOINT_RECORD)
+                            skipCheckpointData(in);
+                        in.readLong();
+                        end = in.getFilePointer();
+
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            running.put(record_tid, new ArrayList<PageDelta>());
+                            break;
+                        case UPDATE_RECORD:
+                            byte[] data = pages.get(delta.pid);
+                            if (data == null) {
+                                data = readPageData(delta.pid);
+                                pages.put(delta.pid, data);
+                            }
+                            delta.redo(data);
+                            if (!running.containsKey(record_tid))
+                                running.put(record_tid, new ArrayList<PageDelta>());
+                            running.get(record_tid).add(delta);
+                            order.add(record_tid);
+                            all.add(delta);
+                            break;
+                        case COMMIT_RECORD:
+                            running.remove(record_tid);
+                            break;
+                        case ABORT_RECORD:
+                            ArrayList<PageDelta> deltas = running.remove(record_tid);
+                            if (deltas != null) {
+                                for (int i = deltas.size() - 1; i >= 0; i--)
+                                    deltas.get(i).undo(pages.get(deltas.get(i).pid));
+                            }
+                            break;
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+
+                // undo the transactions that neither committed nor aborted,
+                // latest update first
+                for (int i = all.size() - 1; i >= 0; i--) {
+                    if (running.containsKey(order.get(i)))
+                        all.get(i).undo(pages.get(all.get(i).pid));
+                }
+                writePages(pages);
+
+                // the transactions that neither committed nor aborted are
+                // rolled back now, so that later recoveries ignore them
+                segments.setLength(end);
+                currentOffset = end;
+                for (long loser : running.keySet()) {
+                    beginRecord(ABORT_RECORD, loser);
+                    endRecord();
+                }
+                force();
+                tidToFirstLogRecord.clear();
             }
          }
     }
@@ -504,7 +708,139 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        long upTo = currentOffset;
+        segments.force();
+        forced(upTo);
+    }
+
+    /** Waits until the log is on disk through the record with the specified
+        LSN, which the flusher thread forces along with the records appended
+        meanwhile if group commit is on.
+
+        @param lsn The LSN of the record, see {@link #getLastLsn}
+    */
+    public void forceTo(long lsn) throws IOException {
+        synchronized (forceLock) {
+            if (forcedEnd > lsn)
+                return;
+        }
+        if (!groupCommit || Thread.holdsLock(this)) {
+            // the flusher would wait for this thread's monitor
+            force();
+            return;
+        }
+        synchronized (forceLock) {
+            forceRequested = Math.max(forceRequested, lsn + 1);
+            if (flusher == null) {
+                flusher = new Flusher();
+                flusher.start();
+            }
+            forceLock.notifyAll();
+            try {
+                while (forcedEnd <= lsn) {
+                    if (forceError != null)
+                        throw new IOException("cannot force the log: " + forceError.getMessage());
+                    forceLock.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (forceLock) {
+            return forces;
+        }
+    }
+
+    private void forced(long upTo) {
+        synchronized (forceLock) {
+            forces++;
+            if (upTo > forcedEnd)
+                forcedEnd = upTo;
+            forceLock.notifyAll();
+        }
+    }
+
+    /** A reusable buffer to serialize a record in before it is appended. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        void copyTo(ByteBuffer b) {
+            b.put(buf, 0, count);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /** Forces the log for the transactions waiting in forceTo, after
+        writing out the log buffer, without holding the log's monitor while
+        the file is forced, so that more transactions append their
+        records meanwhile and form the next group. */
+    private class Flusher extends Thread {
+        Flusher() {
+            super("log flusher");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (forceLock) {
+                        if (forceRequested <= forcedEnd) {
+                            forceLock.wait(FLUSHER_IDLE_MILLIS);
+                            if (forceRequested <= forcedEnd) {
+                                flusher = null;
+                                return;
+                            }
+                        }
+                    }
+                    long delay = groupCommitDelay;
+                    if (delay > 0)
+                        Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+                    forceAll();
+                }
+            } catch (InterruptedException e) {
+                synchronized (forceLock) {
+                    flusher = null;
+                }
+            }
+        }
+
+        private void forceAll() {
+            try {
+                long upTo;
+                List<Long> unforced;
+                ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+                synchronized (LogFile.this) {
+                    writeBuffer();
+                    upTo = currentOffset;
+                    unforced = segments.unforced();
+                    for (long i : unforced)
+                        channels.add(segments.channel(i));
+                }
+                for (FileChannel channel : channels) {
+                    try {
+                        channel.force(true);
+                    } catch (ClosedChannelException e) {
+                        // logTruncate deleted the segment, which was forced
+                        // along with the checkpoint before it
+                    }
+                }
+                synchronized (LogFile.this) {
+                    segments.forced(unforced);
+                }
+                forced(upTo);
+            } catch (IOException e) {
+                synchronized (forceLock) {
+                    forceError = e;
+                    forceLock.notifyAll();
+                }
+            }
+        }
     }
 
 }
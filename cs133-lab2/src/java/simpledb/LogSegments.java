@@ -0,0 +1,327 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * LogSegments stores the log of a {@link LogFile} in segment files of a
+ * fixed size, so that the front of the log is truncated by deleting the
+ * segments before the first byte still needed instead of copying the
+ * rest of the log. Byte p of the log is byte p % segmentSize of segment
+ * p / segmentSize, a file named after the manifest with the number of the
+ * segment appended; records may span segments.
+ * <p>
+ * The manifest holds an integer segment size, the long integer offset of
+ * the first byte of the log kept, and the long integer offset of the last
+ * checkpoint record, or -1 if there are no checkpoints.
+ * <p>
+ * Callers must hold the monitor of the LogFile.
+ */
+class LogSegments {
+
+    static final int MANIFEST_SIZE = 4 + 8 + 8;
+
+    final File manifest;
+    private final RandomAccessFile manifestFile;
+    private int segmentSize;
+    private long start = 0; // the first byte of the log kept
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    private boolean valid = false; // whether the manifest was read or written
+
+    private final HashMap<Long, RandomAccessFile> open = new HashMap<Long, RandomAccessFile>();
+    // the segments written but maybe not forced to disk
+    private final TreeSet<Long> unforced = new TreeSet<Long>();
+    private long last = -1; // the last segment written
+
+    /**
+     * Opens the segmented log with the specified manifest, reading it if
+     * it exists; its segment size overrides the specified one.
+     */
+    LogSegments(File manifest, int segmentSize) throws IOException {
+        this.manifest = manifest;
+        this.segmentSize = segmentSize;
+        manifestFile = new RandomAccessFile(manifest, "rw");
+        if (manifestFile.length() >= MANIFEST_SIZE) {
+            manifestFile.seek(0);
+            int size = manifestFile.readInt();
+            long first = manifestFile.readLong();
+            long cp = manifestFile.readLong();
+            if (size > 0 && first >= 0 && cp >= LogFile.NO_CHECKPOINT_ID) {
+                this.segmentSize = size;
+                start = first;
+                checkpoint = cp;
+                valid = true;
+            }
+        }
+    }
+
+    /** @return whether the manifest describes a log */
+    boolean isValid() {
+        return valid;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the offset of the first byte of the log kept */
+    long getStart() {
+        return start;
+    }
+
+    /** @return the offset of the last checkpoint record, or -1 */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Records the offset of the last checkpoint record in the manifest */
+    void setCheckpoint(long offset) throws IOException {
+        checkpoint = offset;
+        writeManifest();
+    }
+
+    /** Deletes every segment and starts an empty log at offset 0 */
+    void reset() throws IOException {
+        close(open.keySet());
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (segmentNumber(f.getName()) >= 0)
+                    f.delete();
+            }
+        }
+        unforced.clear();
+        last = -1;
+        start = 0;
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        writeManifest();
+    }
+
+    /**
+     * Drops the log before the specified offset: the manifest records it
+     * as the first byte kept, and the segments wholly before it are
+     * deleted.
+     */
+    void truncate(long offset) throws IOException {
+        if (offset <= start)
+            return;
+        long first = offset / segmentSize;
+        for (long i = start / segmentSize; i < first; i++) {
+            close(Collections.singleton(i));
+            unforced.remove(i);
+            segmentFile(i).delete();
+        }
+        start = offset;
+        writeManifest();
+    }
+
+    /** Drops the log from the specified offset on, such as a record cut
+        short by a crash */
+    void setLength(long end) throws IOException {
+        long lastKept = end / segmentSize;
+        ArrayList<Long> after = new ArrayList<Long>();
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long i = segmentNumber(f.getName());
+                if (i > lastKept)
+                    after.add(i);
+            }
+        }
+        close(after);
+        for (long i : after) {
+            unforced.remove(i);
+            segmentFile(i).delete();
+        }
+        RandomAccessFile seg = segment(lastKept, end % segmentSize > 0);
+        if (seg != null) {
+            seg.setLength(end % segmentSize);
+            unforced.add(lastKept);
+        }
+        last = lastKept;
+    }
+
+    /** Writes the remaining bytes of b to the log at the specified offset,
+        without forcing them to disk */
+    void write(ByteBuffer b, long position) throws IOException {
+        int limit = b.limit();
+        while (b.hasRemaining()) {
+            long i = position / segmentSize;
+            int offset = (int) (position % segmentSize);
+            b.limit(b.position() + Math.min(b.remaining(), segmentSize - offset));
+            FileChannel channel = segment(i, true).getChannel();
+            while (b.hasRemaining())
+                offset += channel.write(b, offset);
+            b.limit(limit);
+            unforced.add(i);
+            last = Math.max(last, i);
+            position = i * segmentSize + offset;
+        }
+    }
+
+    /** @return the segments written but maybe not forced, to force with
+        {@link #channel} and then pass to {@link #forced} */
+    List<Long> unforced() {
+        return new ArrayList<Long>(unforced);
+    }
+
+    /** @return the channel of the specified segment */
+    FileChannel channel(long segment) throws IOException {
+        return segment(segment, true).getChannel();
+    }
+
+    /** Records that the specified segments were forced; the last one may
+        still be written to, so it is forced every time */
+    void forced(List<Long> segments) {
+        for (long i : segments) {
+            if (i < last)
+                unforced.remove(i);
+        }
+    }
+
+    /** Forces the segments written to disk */
+    void force() throws IOException {
+        List<Long> segments = unforced();
+        for (long i : segments)
+            channel(i).force(true);
+        forced(segments);
+    }
+
+    /** @return a stream of the log from the specified offset on */
+    Reader reader(long position) {
+        Reader in = new Reader();
+        in.seek(position);
+        return in;
+    }
+
+    void close() throws IOException {
+        close(open.keySet());
+        manifestFile.close();
+    }
+
+    private void close(Collection<Long> segments) throws IOException {
+        for (long i : new ArrayList<Long>(segments)) {
+            RandomAccessFile seg = open.remove(i);
+            if (seg != null)
+                seg.close();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        manifestFile.seek(0);
+        manifestFile.writeInt(segmentSize);
+        manifestFile.writeLong(start);
+        manifestFile.writeLong(checkpoint);
+        manifestFile.getChannel().force(true);
+        valid = true;
+    }
+
+    private File segmentFile(long i) {
+        return new File(manifest.getPath() + "." + i);
+    }
+
+    /** @return the number of the segment the file name is of, or -1 */
+    private long segmentNumber(String name) {
+        String prefix = manifest.getName() + ".";
+        if (!name.startsWith(prefix) || name.length() == prefix.length())
+            return -1;
+        for (int i = prefix.length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i)))
+                return -1;
+        }
+        return Long.parseLong(name.substring(prefix.length()));
+    }
+
+    /** @return the open segment, or null if create is false and the
+        segment does not exist */
+    private RandomAccessFile segment(long i, boolean create) throws IOException {
+        RandomAccessFile seg = open.get(i);
+        if (seg == null) {
+            File f = segmentFile(i);
+            if (!create && !f.exists())
+                return null;
+            seg = new RandomAccessFile(f, "rw");
+            open.put(i, seg);
+        }
+        return seg;
+    }
+
+    /**
+     * Reads the log across segments, like a RandomAccessFile; reading past
+     * the end of the log throws EOFException.
+     */
+    class Reader extends DataInputStream {
+        Reader() {
+            super(new SegmentStream());
+        }
+
+        void seek(long position) {
+            ((SegmentStream) in).seek(position);
+        }
+
+        long getFilePointer() {
+            return ((SegmentStream) in).position;
+        }
+    }
+
+    /** Reads the log through a buffer of a segment's bytes */
+    private class SegmentStream extends InputStream {
+        final byte[] buf = new byte[8192];
+        long position;
+        long bufStart = 0; // the offset of buf[0]
+        int bufLength = 0;
+
+        void seek(long position) {
+            this.position = position;
+        }
+
+        /** @return whether buf holds the byte at position */
+        private boolean fill() throws IOException {
+            if (position >= bufStart && position < bufStart + bufLength)
+                return true;
+            long i = position / segmentSize;
+            int offset = (int) (position % segmentSize);
+            RandomAccessFile seg = segment(i, false);
+            if (seg == null || position < start)
+                return false;
+            int n = seg.getChannel().read(ByteBuffer.wrap(buf, 0,
+                    Math.min(buf.length, segmentSize - offset)), offset);
+            if (n <= 0)
+                return false;
+            bufStart = position;
+            bufLength = n;
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buf[(int) (position++ - bufStart)] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = (int) Math.min(len, bufStart + bufLength - position);
+            System.arraycopy(buf, (int) (position - bufStart), b, off, n);
+            position += n;
+            return n;
+        }
+
+        public long skip(long n) {
+            position += n;
+            return n;
+        }
+    }
+}
@@ -65,6 +65,8 @@ public class LogicalJoinNode {
     
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
+        if (t2Alias == null || j2.t2Alias == null) // joins with a subplan
+            return this == o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
     }
     
@@ -36,6 +36,9 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private int dop = 1;
+    // whether joins is already in the order chosen by the JoinOptimizer
+    private boolean joinsOrdered = false;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -66,6 +69,102 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the degree of parallelism used by {@link #physicalPlan}.  With a
+        degree of parallelism greater than one, every base table is read by a
+        {@link ParallelSeqScan} whose workers each apply the table's filters,
+        and an {@link Exchange} gathers their output for the rest of the plan.
+        Equi-joins are then probed on the workers of their left input by a
+        {@link ParallelHashJoin}, and an aggregate over such a parallel input
+        is computed on the workers by a {@link ParallelAggregate}.
+
+        @param dop the number of worker threads per table scan; 1 (the default)
+        produces a single-threaded plan
+    */
+    public void setDegreeOfParallelism(int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism must be at least 1");
+        this.dop = dop;
+    }
+
+    /** Get the degree of parallelism set via {@link #setDegreeOfParallelism}.
+     */
+    public int getDegreeOfParallelism() {
+        return dop;
+    }
+
+    /** Returns a copy of this plan for running it with the given parameters.
+        Every filter constant of the form <tt>?i</tt> (see {@link PreparedStatement})
+        is replaced by <tt>params[i - 1]</tt>.  The copy shares this plan's nodes
+        and, if this plan's joins have been ordered, their order, in which case
+        {@link #physicalPlan} skips join ordering.
+
+        @param query the text of the query the copy represents
+        @param params the values of the parameters
+        @throws ParsingException if a parameter has no value
+    */
+    LogicalPlan bind(String query, String[] params) throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.query = query;
+        lp.tables.addAll(tables);
+        lp.tableMap.putAll(tableMap);
+        lp.joins.addAll(joins);
+        lp.joinsOrdered = joinsOrdered;
+        for (LogicalFilterNode f : filters) {
+            int i = PreparedStatement.parameterIndex(f.c);
+            if (i >= 0) {
+                if (i >= params.length || params[i] == null)
+                    throw new ParsingException("No value for parameter " + (i + 1));
+                f = new LogicalFilterNode(f.tableAlias, f.fieldPureName, f.p, params[i]);
+            }
+            lp.filters.add(f);
+        }
+        lp.selectList.addAll(selectList);
+        lp.groupByField = groupByField;
+        lp.hasAgg = hasAgg;
+        lp.aggOp = aggOp;
+        lp.aggField = aggField;
+        lp.oByAsc = oByAsc;
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByField = oByField;
+        lp.dop = dop;
+        return lp;
+    }
+
+    /** @return whether each of the parameters <tt>?1</tt> to <tt>?count</tt>
+        is the constant of some filter (see {@link #bind}) */
+    boolean bindsParameters(int count) {
+        boolean[] bound = new boolean[count];
+        for (LogicalFilterNode f : filters) {
+            int i = PreparedStatement.parameterIndex(f.c);
+            if (i >= 0 && i < count)
+                bound[i] = true;
+        }
+        for (boolean b : bound) {
+            if (!b)
+                return false;
+        }
+        return true;
+    }
+
+    /** Adopts the join order chosen for another copy of this plan (see {@link #bind}),
+        so that later copies skip join ordering. */
+    void copyJoinOrder(LogicalPlan ordered) {
+        if (!ordered.joinsOrdered)
+            return;
+        joins = new Vector<LogicalJoinNode>(ordered.joins);
+        joinsOrdered = true;
+    }
+
+    /** @return whether a join in this plan reads a subquery, whose plan is
+        built for a particular transaction when the query is parsed */
+    boolean hasSubqueries() {
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode)
+                return true;
+        }
+        return false;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -273,6 +372,9 @@ public class LogicalPlan {
 
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   Joins are instantiated in that order; a join whose two tables already belong to different
+     *   joined subplans joins those subplans, so bushy orders produce bushy plans, and a join whose
+     *   two tables already belong to the same subplan filters it.
      *  @param t The transaction that the returned DbIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -289,6 +391,7 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,ArrayList<Predicate>> filterPreds = new HashMap<String,ArrayList<Predicate>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -300,6 +403,7 @@ public class LogicalPlan {
             }
             
             subplanMap.put(table.alias,ss);
+            filterPreds.put(table.alias, new ArrayList<Predicate>());
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -335,6 +439,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterPreds.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -343,10 +448,26 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        if (dop > 1) {
+            // replace each scan and its filters by a parallel scan that runs
+            // the filters on every worker
+            tableIt = tables.iterator();
+            while (tableIt.hasNext()) {
+                LogicalScanNode table = tableIt.next();
+                if (!(Database.getCatalog().getDatabaseFile(table.t) instanceof HeapFile))
+                    continue;
+                subplanMap.put(table.alias, new ParallelSeqScan(t, table.t, table.alias, dop,
+                        new FilterPipeline(filterPreds.get(table.alias))));
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (!joinsOrdered) {
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            joinsOrdered = true;
+        }
 
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
@@ -382,10 +503,10 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, dop > 1);
             subplanMap.put(t1name, j);
 
-            if (!isSubqueryJoin) {
+            if (!isSubqueryJoin && !t1name.equals(t2name)) {
                 subplanMap.remove(t2name);
                 equivMap.put(t2name,t1name);  //keep track of the fact that this new node contains both tables
                     //make sure anything that was equiv to lj.t2 (which we are just removed) is
@@ -460,12 +581,15 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            DbIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int afield = td.fieldNameToIndex(aggField);
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                if (node instanceof Exchange)
+                    // aggregate on the workers instead of gathering their tuples first
+                    aggNode = new ParallelAggregate((Exchange) node, afield, gfield, getAggOp(aggOp));
+                else
+                    aggNode = new Aggregate(node, afield, gfield, getAggOp(aggOp));
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -481,6 +605,24 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** Stacks the filters of one table on top of the scan of each worker of a
+        {@link ParallelSeqScan}. */
+    private static class FilterPipeline implements PipelineBuilder {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<Predicate> preds;
+
+        FilterPipeline(ArrayList<Predicate> preds) {
+            this.preds = preds;
+        }
+
+        public DbIterator build(DbIterator scan) {
+            DbIterator node = scan;
+            for (Predicate p : preds)
+                node = new Filter(p, node);
+            return node;
+        }
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * PageDelta describes an update of a page as the byte ranges of the page
+ * that changed, with their bytes before and after the update, so that the
+ * log holds only what an update changed instead of two whole images of
+ * the page. Redoing a delta sets its ranges to their bytes after the
+ * update, and undoing it sets them back to their bytes before.
+ *
+ * @see LogFile
+ */
+class PageDelta {
+
+    // changed ranges closer than this are logged as one, since each range
+    // costs 8 bytes for its offset and length
+    static final int MERGE_GAP = 8;
+
+    final PageId pid;
+    final int[] offsets;
+    final byte[][] before;
+    final byte[][] after;
+
+    PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta that turns the page data before into after, which
+     *         must be of the same length
+     */
+    static PageDelta diff(PageId pid, byte[] before, byte[] after) {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < before.length && j - end < MERGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][];
+        byte[][] newBytes = new byte[ranges.size()][];
+        for (int k = 0; k < offsets.length; k++) {
+            int[] r = ranges.get(k);
+            offsets[k] = r[0];
+            oldBytes[k] = new byte[r[1] - r[0]];
+            newBytes[k] = new byte[r[1] - r[0]];
+            System.arraycopy(before, r[0], oldBytes[k], 0, oldBytes[k].length);
+            System.arraycopy(after, r[0], newBytes[k], 0, newBytes[k].length);
+        }
+        return new PageDelta(pid, offsets, oldBytes, newBytes);
+    }
+
+    /** @return whether the update changed nothing */
+    boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    /** Applies the update to the page data */
+    void redo(byte[] data) {
+        for (int k = 0; k < offsets.length; k++)
+            System.arraycopy(after[k], 0, data, offsets[k], after[k].length);
+    }
+
+    /** Reverts the update of the page data */
+    void undo(byte[] data) {
+        for (int k = offsets.length - 1; k >= 0; k--)
+            System.arraycopy(before[k], 0, data, offsets[k], before[k].length);
+    }
+
+    /**
+     * Writes the delta: the page id (see {@link LogFile#writePageId}), an
+     * integer count of ranges, and for each an integer offset, an integer
+     * length, and the bytes before and after.
+     */
+    void write(DataOutput out) throws IOException {
+        LogFile.writePageId(out, pid);
+        out.writeInt(offsets.length);
+        for (int k = 0; k < offsets.length; k++) {
+            out.writeInt(offsets[k]);
+            out.writeInt(before[k].length);
+            out.write(before[k]);
+            out.write(after[k]);
+        }
+    }
+
+    /** Reads a delta written by {@link #write} */
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = LogFile.readPageId(in);
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            offsets[k] = in.readInt();
+            int length = in.readInt();
+            before[k] = new byte[length];
+            after[k] = new byte[length];
+            in.readFully(before[k]);
+            in.readFully(after[k]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageMorsels hands out the pages of a HeapFile in small contiguous ranges
+ * ("morsels") to the workers of a parallel scan. Each worker repeatedly
+ * claims the next unclaimed range, so a worker that finishes its pages early
+ * simply claims more of them instead of sitting idle.
+ *
+ * @Threadsafe
+ */
+public class PageMorsels {
+
+    /** Default number of pages in each morsel. */
+    public static final int DEFAULT_MORSEL_PAGES = 8;
+
+    private final HeapFile hf;
+    private final int morselPages;
+    private final AtomicInteger nextPage = new AtomicInteger(0);
+    private volatile int numPages;
+
+    /**
+     * Creates a dispenser over all pages of the specified file, handing out
+     * DEFAULT_MORSEL_PAGES pages at a time.
+     */
+    public PageMorsels(HeapFile hf) {
+        this(hf, DEFAULT_MORSEL_PAGES);
+    }
+
+    /**
+     * Creates a dispenser over all pages of the specified file.
+     *
+     * @param hf
+     *            the file whose pages are handed out
+     * @param morselPages
+     *            the number of pages in each morsel
+     */
+    public PageMorsels(HeapFile hf, int morselPages) {
+        if (morselPages < 1)
+            throw new IllegalArgumentException("morsels must contain at least one page");
+        this.hf = hf;
+        this.morselPages = morselPages;
+        reset();
+    }
+
+    /** @return the file whose pages are handed out */
+    public HeapFile getFile() {
+        return hf;
+    }
+
+    /**
+     * Makes every page of the file available again. The number of pages is
+     * sampled here, so pages appended after a reset are not handed out until
+     * the next reset.
+     */
+    public void reset() {
+        numPages = hf.numPages();
+        nextPage.set(0);
+    }
+
+    /**
+     * Claims the next unclaimed range of pages.
+     *
+     * @return a two element array holding the first page of the range and one
+     *         past its last page, or null if every page has been claimed
+     */
+    public int[] next() {
+        int total = numPages;
+        if (nextPage.get() >= total)
+            return null;
+        int start = nextPage.getAndAdd(morselPages);
+        if (start >= total)
+            return null;
+        return new int[] { start, Math.min(start + morselPages, total) };
+    }
+
+    /**
+     * @return a DbFileIterator that reads morsels claimed from this dispenser
+     *         until every page has been claimed
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new MorselIterator(this, tid);
+    }
+}
+
+/**
+ * DbFileIterator over the pages a single worker claims from a shared
+ * PageMorsels. Rewinding the iterator does not make claimed pages available
+ * again; that is up to whoever owns the PageMorsels.
+ */
+class MorselIterator implements DbFileIterator {
+
+    private final PageMorsels morsels;
+    private final TransactionId tid;
+    private DbFileIterator cur = null;
+    private boolean exhausted = false;
+
+    public MorselIterator(PageMorsels morsels, TransactionId tid) {
+        this.morsels = morsels;
+        this.tid = tid;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        cur = null;
+        exhausted = false;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        while (!exhausted) {
+            if (cur != null && cur.hasNext())
+                return true;
+            if (cur != null)
+                cur.close();
+            int[] range = morsels.next();
+            if (range == null) {
+                cur = null;
+                exhausted = true;
+            } else {
+                cur = morsels.getFile().iterator(tid, range[0], range[1]);
+                cur.open();
+            }
+        }
+        return false;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return cur.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        if (cur != null)
+            cur.close();
+        cur = null;
+        exhausted = true;
+    }
+}
@@ -0,0 +1,260 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ParallelAggregate computes the same aggregate as {@link Aggregate} over the
+ * fragments of an {@link Exchange} (typically the workers of a
+ * {@link ParallelSeqScan}), without gathering their tuples on one thread.
+ * <p>
+ * The aggregate runs in two phases when the operator is opened. First, one
+ * thread per fragment drains the fragment into thread-local partial
+ * aggregates (count, sum, min and max per group, so AVG is computed as
+ * sum/count), split into one hash partition per thread by the group value.
+ * Then one thread per partition merges that partition's partials from every
+ * worker and computes the final values. No state is shared between threads
+ * during either phase.
+ * <p>
+ * Output tuples have the same layout as those of Aggregate; groups are
+ * returned in no particular order.
+ */
+public class ParallelAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private Exchange child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final TupleDesc td;
+
+    private transient ArrayList<Tuple> results;
+    private transient Iterator<Tuple> resultIt;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the Exchange whose fragments feed us tuples; its own workers
+     *            are not used
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or
+     *            {@link Aggregator#NO_GROUPING}
+     * @param aop
+     *            The aggregation operator to use
+     * @throws IllegalArgumentException
+     *             if aop is not supported for the type of afield
+     */
+    public ParallelAggregate(Exchange child, int afield, int gfield,
+            Aggregator.Op aop) {
+        TupleDesc childTd = child.getTupleDesc();
+        if (aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG)
+            throw new IllegalArgumentException("unsupported aggregate " + aop);
+        if (childTd.getFieldType(afield) != Type.INT_TYPE && aop != Aggregator.Op.COUNT)
+            throw new IllegalArgumentException("only COUNT is supported over strings");
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+
+        String aggName = aop + "(" + childTd.getFieldName(afield) + ")";
+        if (gfield == Aggregator.NO_GROUPING) {
+            td = new TupleDesc(new Type[] { Type.INT_TYPE },
+                    new String[] { aggName });
+        } else {
+            td = new TupleDesc(
+                    new Type[] { childTd.getFieldType(gfield), Type.INT_TYPE },
+                    new String[] { childTd.getFieldName(gfield), aggName });
+        }
+    }
+
+    /** @return the group by field index in the input tuples, or NO_GROUPING */
+    public int groupField() {
+        return gfield;
+    }
+
+    /** @return the aggregate field index in the input tuples */
+    public int aggregateField() {
+        return afield;
+    }
+
+    /** @return the aggregate operator */
+    public Aggregator.Op aggregateOp() {
+        return aop;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        results = aggregate();
+        resultIt = results.iterator();
+    }
+
+    public void close() {
+        super.close();
+        results = null;
+        resultIt = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        resultIt = results.iterator();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (resultIt != null && resultIt.hasNext())
+            return resultIt.next();
+        return null;
+    }
+
+    /** Runs both phases of the aggregate and returns the output tuples. */
+    private ArrayList<Tuple> aggregate() throws DbException,
+            TransactionAbortedException {
+        DbIterator[] fragments = child.prepareFragments();
+        final int n = fragments.length;
+
+        // phase 1: every worker pre-aggregates its fragment
+        List<Callable<HashMap<Field, Partial>[]>> preAggregates =
+                new ArrayList<Callable<HashMap<Field, Partial>[]>>();
+        for (final DbIterator fragment : fragments) {
+            preAggregates.add(new Callable<HashMap<Field, Partial>[]>() {
+                public HashMap<Field, Partial>[] call() throws Exception {
+                    return preAggregate(fragment, n);
+                }
+            });
+        }
+        final List<HashMap<Field, Partial>[]> byWorker =
+                ParallelTasks.invokeAll(preAggregates);
+
+        // phase 2: every partition is merged by one thread
+        List<Callable<ArrayList<Tuple>>> merges = new ArrayList<Callable<ArrayList<Tuple>>>();
+        for (int p = 0; p < n; p++) {
+            final int partition = p;
+            merges.add(new Callable<ArrayList<Tuple>>() {
+                public ArrayList<Tuple> call() {
+                    return merge(byWorker, partition);
+                }
+            });
+        }
+        ArrayList<Tuple> out = new ArrayList<Tuple>();
+        for (ArrayList<Tuple> tuples : ParallelTasks.invokeAll(merges))
+            out.addAll(tuples);
+        return out;
+    }
+
+    /** Aggregates the tuples of one fragment into numPartitions partitions. */
+    private HashMap<Field, Partial>[] preAggregate(DbIterator fragment,
+            int numPartitions) throws DbException, TransactionAbortedException {
+        @SuppressWarnings("unchecked")
+        HashMap<Field, Partial>[] parts = (HashMap<Field, Partial>[]) new HashMap<?, ?>[numPartitions];
+        for (int p = 0; p < numPartitions; p++)
+            parts[p] = new HashMap<Field, Partial>();
+        boolean intValues = aop != Aggregator.Op.COUNT;
+        fragment.open();
+        try {
+            while (fragment.hasNext()) {
+                Tuple t = fragment.next();
+                Field key = gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield);
+                HashMap<Field, Partial> part = parts[ParallelTasks.partition(key, numPartitions)];
+                Partial s = part.get(key);
+                if (s == null) {
+                    s = new Partial();
+                    part.put(key, s);
+                }
+                if (intValues)
+                    s.add(((IntField) t.getField(afield)).getValue());
+                else
+                    s.count++;
+            }
+        } finally {
+            fragment.close();
+        }
+        return parts;
+    }
+
+    /** Merges one partition of every worker's partials into output tuples. */
+    private ArrayList<Tuple> merge(List<HashMap<Field, Partial>[]> byWorker,
+            int partition) {
+        HashMap<Field, Partial> groups = new HashMap<Field, Partial>();
+        for (HashMap<Field, Partial>[] parts : byWorker) {
+            for (Map.Entry<Field, Partial> e : parts[partition].entrySet()) {
+                Partial s = groups.get(e.getKey());
+                if (s == null)
+                    groups.put(e.getKey(), e.getValue());
+                else
+                    s.merge(e.getValue());
+            }
+        }
+        ArrayList<Tuple> out = new ArrayList<Tuple>(groups.size());
+        for (Map.Entry<Field, Partial> e : groups.entrySet()) {
+            Tuple t = new Tuple(td);
+            IntField value = new IntField(e.getValue().result(aop));
+            if (gfield == Aggregator.NO_GROUPING) {
+                t.setField(0, value);
+            } else {
+                t.setField(0, e.getKey());
+                t.setField(1, value);
+            }
+            out.add(t);
+        }
+        return out;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = (Exchange) children[0];
+    }
+
+    /** The partial aggregate of one group, as computed by one worker. */
+    private static class Partial {
+        int count = 0;
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+
+        void add(int v) {
+            count++;
+            sum += v;
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+        }
+
+        void merge(Partial o) {
+            count += o.count;
+            sum += o.sum;
+            if (o.min < min)
+                min = o.min;
+            if (o.max > max)
+                max = o.max;
+        }
+
+        int result(Aggregator.Op aop) {
+            switch (aop) {
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            case SUM:
+                return (int) sum;
+            case AVG:
+                return (int) (sum / count);
+            case COUNT:
+                return count;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate " + aop);
+            }
+        }
+    }
+}
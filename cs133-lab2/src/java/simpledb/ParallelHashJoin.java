@@ -0,0 +1,276 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * ParallelHashJoin computes an equi-join with several threads. The right
+ * child is loaded into a hash table, partitioned by the hash of the join
+ * value; if the right child is itself an {@link Exchange}, one thread per
+ * fragment builds thread-local partitions and one thread per partition then
+ * merges them, so no lock is taken during the build. The left child must be
+ * an Exchange (typically a {@link ParallelSeqScan}): each of its fragments is
+ * probed against the shared, read-only table on a worker of the
+ * {@link Exchange} this class extends, which gathers the joined tuples.
+ * <p>
+ * The table is built when the first worker starts probing and is kept until
+ * the join is closed. Output tuples are the concatenation of the left and
+ * right tuples, as for {@link Join}, and are returned in no particular order.
+ */
+public class ParallelHashJoin extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate p;
+    private Exchange child1;
+    private DbIterator child2;
+    private final transient BuildTable table;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be an
+     *            equality predicate
+     * @param child1
+     *            the left (probe) relation, whose fragments are probed in
+     *            parallel
+     * @param child2
+     *            the right (build) relation
+     */
+    public ParallelHashJoin(JoinPredicate p, Exchange child1, DbIterator child2) {
+        this(p, child1, child2, new BuildTable(child2, p.getField2()));
+    }
+
+    private ParallelHashJoin(JoinPredicate p, Exchange child1,
+            DbIterator child2, BuildTable table) {
+        super(probes(p, child1, table));
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash joins need an equality predicate");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.table = table;
+    }
+
+    private static DbIterator[] probes(JoinPredicate p, Exchange child1,
+            BuildTable table) {
+        DbIterator[] fragments = child1.getFragments();
+        DbIterator[] probes = new DbIterator[fragments.length];
+        for (int i = 0; i < fragments.length; i++)
+            probes[i] = new Probe(fragments[i], p.getField1(), table);
+        return probes;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /** Resets the probe side's fragments before the workers start. */
+    @Override
+    protected void beforeStart() {
+        child1.prepareFragments();
+    }
+
+    public void close() {
+        super.close();
+        table.clear();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = (Exchange) children[0];
+        child2 = children[1];
+        table.setChild(child2);
+        super.setChildren(probes(p, child1, table));
+    }
+
+    /** The hash table over the build side, shared by every probe. */
+    private static class BuildTable {
+        private DbIterator child;
+        private final int field;
+        private volatile HashMap<Field, ArrayList<Tuple>>[] partitions;
+
+        BuildTable(DbIterator child, int field) {
+            this.child = child;
+            this.field = field;
+        }
+
+        synchronized void setChild(DbIterator child) {
+            this.child = child;
+            partitions = null;
+        }
+
+        synchronized void clear() {
+            partitions = null;
+        }
+
+        /** @return the tuples of the build side whose join field equals key */
+        List<Tuple> lookup(Field key) throws DbException,
+                TransactionAbortedException {
+            HashMap<Field, ArrayList<Tuple>>[] parts = partitions;
+            if (parts == null)
+                parts = build();
+            List<Tuple> matches = parts[ParallelTasks.partition(key, parts.length)].get(key);
+            return matches == null ? Collections.<Tuple> emptyList() : matches;
+        }
+
+        /** Builds the table unless another probe already has. */
+        private synchronized HashMap<Field, ArrayList<Tuple>>[] build()
+                throws DbException, TransactionAbortedException {
+            if (partitions != null)
+                return partitions;
+            if (!(child instanceof Exchange)) {
+                partitions = load(child, 1);
+                return partitions;
+            }
+
+            DbIterator[] fragments = ((Exchange) child).prepareFragments();
+            final int n = fragments.length;
+            List<Callable<HashMap<Field, ArrayList<Tuple>>[]>> loads =
+                    new ArrayList<Callable<HashMap<Field, ArrayList<Tuple>>[]>>();
+            for (final DbIterator fragment : fragments) {
+                loads.add(new Callable<HashMap<Field, ArrayList<Tuple>>[]>() {
+                    public HashMap<Field, ArrayList<Tuple>>[] call() throws Exception {
+                        return load(fragment, n);
+                    }
+                });
+            }
+            final List<HashMap<Field, ArrayList<Tuple>>[]> byWorker =
+                    ParallelTasks.invokeAll(loads);
+
+            List<Callable<HashMap<Field, ArrayList<Tuple>>>> merges =
+                    new ArrayList<Callable<HashMap<Field, ArrayList<Tuple>>>>();
+            for (int i = 0; i < n; i++) {
+                final int partition = i;
+                merges.add(new Callable<HashMap<Field, ArrayList<Tuple>>>() {
+                    public HashMap<Field, ArrayList<Tuple>> call() {
+                        return merge(byWorker, partition);
+                    }
+                });
+            }
+            @SuppressWarnings("unchecked")
+            HashMap<Field, ArrayList<Tuple>>[] parts = (HashMap<Field, ArrayList<Tuple>>[]) new HashMap<?, ?>[n];
+            ParallelTasks.invokeAll(merges).toArray(parts);
+            partitions = parts;
+            return parts;
+        }
+
+        /** Loads the tuples of one fragment into numPartitions partitions. */
+        private HashMap<Field, ArrayList<Tuple>>[] load(DbIterator it,
+                int numPartitions) throws DbException,
+                TransactionAbortedException {
+            @SuppressWarnings("unchecked")
+            HashMap<Field, ArrayList<Tuple>>[] parts = (HashMap<Field, ArrayList<Tuple>>[]) new HashMap<?, ?>[numPartitions];
+            for (int i = 0; i < numPartitions; i++)
+                parts[i] = new HashMap<Field, ArrayList<Tuple>>();
+            it.open();
+            try {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    Field key = t.getField(field);
+                    HashMap<Field, ArrayList<Tuple>> part =
+                            parts[ParallelTasks.partition(key, numPartitions)];
+                    ArrayList<Tuple> bucket = part.get(key);
+                    if (bucket == null) {
+                        bucket = new ArrayList<Tuple>();
+                        part.put(key, bucket);
+                    }
+                    bucket.add(t);
+                }
+            } finally {
+                it.close();
+            }
+            return parts;
+        }
+
+        /** Merges one partition of every worker's table. */
+        private static HashMap<Field, ArrayList<Tuple>> merge(
+                List<HashMap<Field, ArrayList<Tuple>>[]> byWorker, int partition) {
+            HashMap<Field, ArrayList<Tuple>> merged = new HashMap<Field, ArrayList<Tuple>>();
+            for (HashMap<Field, ArrayList<Tuple>>[] parts : byWorker) {
+                for (Map.Entry<Field, ArrayList<Tuple>> e : parts[partition].entrySet()) {
+                    ArrayList<Tuple> bucket = merged.get(e.getKey());
+                    if (bucket == null)
+                        merged.put(e.getKey(), e.getValue());
+                    else
+                        bucket.addAll(e.getValue());
+                }
+            }
+            return merged;
+        }
+    }
+
+    /** Probes the build table with the tuples of one fragment of the left child. */
+    private static class Probe extends Operator {
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator child;
+        private final int field;
+        private final transient BuildTable table;
+        private final TupleDesc td;
+        private Tuple current;
+        private Iterator<Tuple> matches;
+
+        Probe(DbIterator child, int field, BuildTable table) {
+            this.child = child;
+            this.field = field;
+            this.table = table;
+            this.td = TupleDesc.merge(child.getTupleDesc(), table.child.getTupleDesc());
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            super.open();
+            child.open();
+            current = null;
+            matches = null;
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+            current = null;
+            matches = null;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (matches == null || !matches.hasNext()) {
+                if (!child.hasNext())
+                    return null;
+                current = child.next();
+                matches = table.lookup(current.getField(field)).iterator();
+            }
+            Tuple right = matches.next();
+            Tuple out = new Tuple(td);
+            int n1 = current.getTupleDesc().numFields();
+            for (int i = 0; i < n1; i++)
+                out.setField(i, current.getField(i));
+            for (int i = 0; i < right.getTupleDesc().numFields(); i++)
+                out.setField(n1 + i, right.getField(i));
+            return out;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+/**
+ * ParallelSeqScan scans a HeapFile with several worker threads. The pages of
+ * the file are split into morsels (see {@link PageMorsels}) that the workers
+ * claim one at a time; each worker runs its own copy of the downstream
+ * pipeline (e.g., Filter and Project, see {@link PipelineBuilder}) over the
+ * pages it claims, and the {@link Exchange} this class extends gathers their
+ * output for the consumer. Output tuples are returned in no particular order.
+ */
+public class ParallelSeqScan extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient PageMorsels morsels;
+
+    /**
+     * Creates a parallel scan that returns the tuples of the table unchanged.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table (see
+     *            {@link SeqScan#SeqScan(TransactionId, int, String)})
+     * @param dop
+     *            the degree of parallelism, i.e., the number of worker threads
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias,
+            int dop) {
+        this(tid, tableid, tableAlias, dop, null);
+    }
+
+    /**
+     * Creates a parallel scan whose workers each run a copy of the pipeline
+     * built by builder over the tuples they scan.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table
+     * @param dop
+     *            the degree of parallelism, i.e., the number of worker threads
+     * @param builder
+     *            builds the pipeline each worker runs on top of its scan, or
+     *            null to return the scanned tuples unchanged
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias,
+            int dop, PipelineBuilder builder) {
+        this(new PageMorsels(heapFile(tableid)), tid, tableAlias, dop, builder);
+    }
+
+    private ParallelSeqScan(PageMorsels morsels, TransactionId tid,
+            String tableAlias, int dop, PipelineBuilder builder) {
+        super(fragments(morsels, tid, tableAlias, dop, builder));
+        this.morsels = morsels;
+    }
+
+    private static HeapFile heapFile(int tableid) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("parallel scans are only supported over HeapFiles");
+        return (HeapFile) f;
+    }
+
+    private static DbIterator[] fragments(PageMorsels morsels,
+            TransactionId tid, String tableAlias, int dop,
+            PipelineBuilder builder) {
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism must be at least 1");
+        int tableid = morsels.getFile().getId();
+        DbIterator[] fragments = new DbIterator[dop];
+        for (int i = 0; i < dop; i++) {
+            DbIterator scan = new SeqScan(tid, tableid, tableAlias, morsels);
+            fragments[i] = builder == null ? scan : builder.build(scan);
+        }
+        return fragments;
+    }
+
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return morsels.getFile().getId();
+    }
+
+    /** Makes every page available to the workers again before they start. */
+    @Override
+    protected void beforeStart() {
+        morsels.reset();
+    }
+}
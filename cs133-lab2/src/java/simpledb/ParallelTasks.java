@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Helpers shared by the code that splits its work across threads itself
+ * (see {@link ParallelAggregate}, {@link ParallelHashJoin} and
+ * {@link TableStats#computeStatistics}).
+ */
+final class ParallelTasks {
+
+    private ParallelTasks() {
+    }
+
+    /** @return the hash partition in [0, numPartitions) that key belongs to */
+    static int partition(Field key, int numPartitions) {
+        if (key == null)
+            return 0;
+        return (key.hashCode() & 0x7fffffff) % numPartitions;
+    }
+
+    /**
+     * Runs every task on its own thread and waits for all of them.
+     *
+     * @return the results of the tasks, in the order of tasks
+     * @throws DbException
+     *             (or TransactionAbortedException) if a task threw one; the
+     *             exception of the first such task in tasks is rethrown
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks) throws DbException,
+            TransactionAbortedException {
+        return invokeAll(tasks, tasks.size());
+    }
+
+    /**
+     * Runs the tasks on at most maxThreads threads and waits for all of them.
+     *
+     * @see #invokeAll(List)
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks, int maxThreads)
+            throws DbException, TransactionAbortedException {
+        int threads = Math.max(1, Math.min(maxThreads, tasks.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (Callable<T> task : tasks)
+                futures.add(pool.submit(task));
+            List<T> results = new ArrayList<T>(tasks.size());
+            for (Future<T> f : futures)
+                results.add(get(f));
+            return results;
+        } finally {
+            pool.shutdownNow();
+            awaitTermination(pool);
+        }
+    }
+
+    /**
+     * Waits for every running task to finish, so that no task still uses the
+     * caller's operators once invokeAll returns or throws.
+     */
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS))
+                    break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Waits for f and rethrows whatever its task threw. */
+    private static <T> T get(Future<T> f) throws DbException,
+            TransactionAbortedException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for worker threads");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) t;
+            if (t instanceof DbException)
+                throw (DbException) t;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            throw new DbException("worker thread failed: " + t);
+        }
+    }
+}
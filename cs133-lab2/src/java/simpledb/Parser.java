@@ -11,6 +11,8 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    static int dop = 1;
+    static double sampleRate = 1.0;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -279,11 +281,40 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setDegreeOfParallelism(dop);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        printQueryPlan(query);
+        return query;
+    }
+
+    /**
+     * Plans a query through the plan cache of the Database, see
+     * {@link PreparedStatement}.
+     */
+    public Query handleQueryStatement(PreparedStatement s, TransactionId tId)
+            throws simpledb.ParsingException {
+        Query query = s.getQuery(tId);
+        printQueryPlan(query);
+        return query;
+    }
 
+    /**
+     * Prepares a query for running many times with different constants.
+     * 
+     * @param sql
+     *            the text of the query, ending in ';', in which any constant
+     *            may be given as a ? parameter
+     */
+    public PreparedStatement prepare(String sql) {
+        return new PreparedStatement(sql, dop);
+    }
+
+    private void printQueryPlan(Query query) {
+        DbIterator physicalPlan = query.getPhysicalPlan();
+        LogicalPlan lp = query.getLogicalPlan();
         if (physicalPlan != null) {
             Class<?> c;
             try {
@@ -316,8 +347,6 @@ public class Parser {
                 e.printStackTrace();
             }
         }
-
-        return query;
     }
 
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
@@ -494,7 +523,14 @@ public class Parser {
 
     public void processNextStatement(String s) {
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            // queries whose shape has been planned before skip parsing and
+            // join ordering; if the normalized text cannot be planned, the
+            // statement is parsed as given to report the error
+            PreparedStatement ps = prepare(s);
+            if (!ps.getNormalizedText().regionMatches(true, 0, "select ", 0, 7)
+                    || !ps.isQuery())
+                ps = null;
+            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")), ps);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -502,9 +538,16 @@ public class Parser {
     }
 
     public void processNextStatement(InputStream is) {
+        processNextStatement(is, null);
+    }
+
+    /**
+     * Runs the statement read from is, or the prepared query ps if it is not
+     * null, in the current transaction or a new one.
+     */
+    private void processNextStatement(InputStream is, PreparedStatement ps) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ZStatement s = ps == null ? new ZqlParser(is).readStatement() : null;
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +560,9 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (ps != null)
+                        query = handleQueryStatement(ps, curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -585,7 +630,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 10) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,7 +640,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-dop threads] [-sample rate] [-resultcache megabytes] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -606,7 +651,6 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
 
@@ -615,6 +659,33 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-dop")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected degree of parallelism after -dop\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    dop = Integer.parseInt(argv[i]);
+                    System.out.println("Running queries with " + dop + " threads per table scan.");
+                } else if (argv[i].equals("-sample")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected sample rate after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    sampleRate = Double.parseDouble(argv[i]);
+                    System.out.println("Computing statistics from " + sampleRate
+                            + " of each table's pages.");
+                } else if (argv[i].equals("-resultcache")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected result cache size after -resultcache\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    long megabytes = Long.parseLong(argv[i]);
+                    Database.getResultCache().setMemoryLimit(megabytes << 20);
+                    System.out.println("Caching up to " + megabytes
+                            + " MB of query results.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -630,6 +701,7 @@ public class Parser {
                 }
             }
         }
+        TableStats.loadStatistics(TableStats.statsFileFor(argv[0]), sampleRate);
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
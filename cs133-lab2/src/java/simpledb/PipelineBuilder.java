@@ -0,0 +1,21 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * PipelineBuilder stacks the tuple-at-a-time operators of a plan fragment
+ * (e.g., Filter and Project) on top of a scan. Parallel operators call it
+ * once per worker so that every worker runs its own, independent copy of the
+ * pipeline over the pages it reads.
+ */
+public interface PipelineBuilder extends Serializable {
+
+    /**
+     * Builds one copy of the pipeline.
+     *
+     * @param scan
+     *            the scan feeding this copy of the pipeline
+     * @return the root of the pipeline
+     */
+    public DbIterator build(DbIterator scan);
+}
@@ -1,15 +1,41 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * A set of joins is a bitmask over the positions of the joins in the list
+ * being ordered (bit i stands for join i), so at most 64 joins can be
+ * ordered. Plans are kept in an open-addressing hash table keyed on the
+ * bitmask, so caching a plan allocates nothing but the plan itself. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
+    private long[] keys = new long[64];
+    private double[] costs = new double[64];
+    private int[] cards = new int[64];
+    @SuppressWarnings("unchecked")
+    private Vector<LogicalJoinNode>[] orders = (Vector<LogicalJoinNode>[]) new Vector<?>[64];
+    private int size;
+
+    /** @return the bitmask of the set holding just join i */
+    static long bit(int i) {
+        return 1L << i;
+    }
+
+    /** @return the bitmask of the set of the first n joins */
+    static long allJoins(int n) {
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+
+    // slot holding s, or the empty slot where it belongs
+    private int slot(long s) {
+        long h = s * 0x9e3779b97f4a7c15L;
+        int mask = keys.length - 1;
+        int i = (int) (h ^ (h >>> 32)) & mask;
+        while (orders[i] != null && keys[i] != s)
+            i = (i + 1) & mask;
+        return i;
+    }
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
@@ -18,33 +44,73 @@ public class PlanCache {
         @param card the estimatied cardinality of the specified plan
         @param order the ordering of the joins in the plan
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    void addPlan(long s, double cost, int card, Vector<LogicalJoinNode> order) {
+        int i = slot(s);
+        if (orders[i] == null) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                i = slot(s);
+            }
+            size++;
+        }
+        keys[i] = s;
+        costs[i] = cost;
+        cards[i] = card;
+        orders[i] = order;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        long[] oldKeys = keys;
+        double[] oldCosts = costs;
+        int[] oldCards = cards;
+        Vector<LogicalJoinNode>[] oldOrders = orders;
+        keys = new long[oldKeys.length * 2];
+        costs = new double[keys.length];
+        cards = new int[keys.length];
+        orders = (Vector<LogicalJoinNode>[]) new Vector<?>[keys.length];
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldOrders[j] == null)
+                continue;
+            int i = slot(oldKeys[j]);
+            keys[i] = oldKeys[j];
+            costs[i] = oldCosts[j];
+            cards[i] = oldCards[j];
+            orders[i] = oldOrders[j];
+        }
+    }
+
+    /** @return whether the cache holds a plan for the specified join set */
+    boolean contains(long s) {
+        return orders[slot(s)] != null;
     }
-    
-    /** Find the best join order in the cache for the specified plan 
+
+    /** Find the best join order in the cache for the specified plan
         @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @return the best order for s in the cache, or null if there is none
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    Vector<LogicalJoinNode> getOrder(long s) {
+        return orders[slot(s)];
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
+
+    /** Find the cost of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long s) {
+        return costs[slot(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long s) {
+        return cards[slot(s)];
+    }
+
+    /** @return the number of join sets with a plan in the cache */
+    int size() {
+        return size;
     }
 }
@@ -0,0 +1,334 @@
+package simpledb;
+
+import Zql.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A PreparedStatement is a query whose constants may be left as <tt>?</tt>
+ * parameters, to be set before each run. Prepared statements are created by
+ * {@link Parser#prepare}.
+ * <p>
+ * A statement is normalized by replacing every constant (string literal or
+ * number) and every <tt>?</tt> with a parameter and collapsing whitespace, so
+ * that queries that differ only in their constants have the same normalized
+ * text. The logical plan of that text is built once and kept in the
+ * {@link StatementCache} of the Database together with its join order, which
+ * is chosen the first time the plan runs; each run then only substitutes the
+ * constants and builds the physical plan.
+ * <p>
+ * Queries with subqueries, and queries with a constant anywhere but on one
+ * side of a filter, are parsed and optimized on every run instead, from
+ * their text with the constants substituted back.
+ */
+public class PreparedStatement {
+
+    private final String sql;
+    private final int dop;
+    // the normalized text, with ? for each parameter
+    private final String shape;
+    // the text that is parsed, with '?i' for parameter i
+    private final String template;
+    // the value of each parameter, null while unset
+    private final String[] values;
+    // whether each value is a string rather than a number
+    private final boolean[] strings;
+    // the parameters that were ? markers in sql
+    private final int[] markers;
+    // the parsed template, once it has been parsed
+    private ZQuery parsed;
+
+    /**
+     * Normalizes a statement.
+     *
+     * @param sql
+     *            the text of a query, ending in ';'
+     * @param dop
+     *            the degree of parallelism its plans use (see
+     *            {@link LogicalPlan#setDegreeOfParallelism})
+     */
+    PreparedStatement(String sql, int dop) {
+        this.sql = sql;
+        this.dop = dop;
+        StringBuilder shape = new StringBuilder();
+        StringBuilder template = new StringBuilder();
+        ArrayList<String> values = new ArrayList<String>();
+        ArrayList<Boolean> strings = new ArrayList<Boolean>();
+        ArrayList<Integer> markers = new ArrayList<Integer>();
+        int i = 0, n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i)))
+                    i++;
+                if (shape.length() > 0 && i < n) {
+                    shape.append(' ');
+                    template.append(' ');
+                }
+                continue;
+            }
+            int start = i;
+            String value;
+            if (c == '\'') {
+                // a string literal, in which '' stands for a quote
+                StringBuilder v = new StringBuilder();
+                for (i++; i < n; i++) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                            v.append('\'');
+                            i++;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    v.append(sql.charAt(i));
+                }
+                value = v.toString();
+            } else if (Character.isDigit(c)) {
+                while (i < n && Character.isDigit(sql.charAt(i)))
+                    i++;
+                value = sql.substring(start, i);
+            } else if (c == '?') {
+                i++;
+                value = null;
+                markers.add(values.size());
+            } else if (Character.isLetter(c) || c == '_') {
+                // a name, which may contain digits
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i))
+                        || sql.charAt(i) == '_' || sql.charAt(i) == '.'))
+                    i++;
+                shape.append(sql, start, i);
+                template.append(sql, start, i);
+                continue;
+            } else {
+                i++;
+                shape.append(c);
+                template.append(c);
+                continue;
+            }
+            values.add(value);
+            strings.add(c == '\'');
+            shape.append('?');
+            template.append("'?").append(values.size()).append('\'');
+        }
+        this.shape = shape.toString();
+        this.template = template.toString();
+        this.values = values.toArray(new String[values.size()]);
+        this.strings = new boolean[values.size()];
+        for (int k = 0; k < this.strings.length; k++)
+            this.strings[k] = strings.get(k);
+        this.markers = new int[markers.size()];
+        for (int k = 0; k < this.markers.length; k++)
+            this.markers[k] = markers.get(k);
+    }
+
+    /**
+     * @return the index of the parameter that constant stands for in the
+     *         parsed text of a statement, or -1 if it is not a parameter
+     */
+    static int parameterIndex(String constant) {
+        if (constant == null || constant.length() < 2 || constant.charAt(0) != '?')
+            return -1;
+        for (int i = 1; i < constant.length(); i++) {
+            if (!Character.isDigit(constant.charAt(i)))
+                return -1;
+        }
+        return Integer.parseInt(constant.substring(1)) - 1;
+    }
+
+    /** @return the text of the statement, with ? for each constant and
+        whitespace collapsed */
+    public String getNormalizedText() {
+        return shape;
+    }
+
+    /** @return the number of ? parameters in the statement */
+    public int getParameterCount() {
+        return markers.length;
+    }
+
+    private int parameter(int index) {
+        if (index < 1 || index > markers.length)
+            throw new IndexOutOfBoundsException("no parameter " + index + " in " + sql);
+        return markers[index - 1];
+    }
+
+    /** Sets the ? parameter at index (counting from 1) to an integer. */
+    public void setInt(int index, int value) {
+        values[parameter(index)] = Integer.toString(value);
+        strings[parameter(index)] = false;
+    }
+
+    /** Sets the ? parameter at index (counting from 1) to a string. */
+    public void setString(int index, String value) {
+        if (value == null)
+            throw new IllegalArgumentException("parameter values may not be null");
+        values[parameter(index)] = value;
+        strings[parameter(index)] = true;
+    }
+
+    /** Unsets every ? parameter. */
+    public void clearParameters() {
+        for (int i : markers)
+            values[i] = null;
+    }
+
+    /**
+     * Builds the plan of the statement with the current parameter values.
+     *
+     * @param tid
+     *            the transaction the query runs in
+     * @return the query, ready to be started or executed
+     * @throws ParsingException
+     *             if the statement is not a valid query, or a ? parameter
+     *             is unset
+     */
+    public Query getQuery(TransactionId tid) throws ParsingException {
+        for (int i : markers) {
+            if (values[i] == null)
+                throw new ParsingException("No value for parameter "
+                        + (Arrays.binarySearch(markers, i) + 1) + " of " + sql);
+        }
+        StatementCache cache = Database.getStatementCache();
+        String key = key();
+        LogicalPlan plan = cache.get(key);
+        if (plan == null) {
+            long catalogVersion = Database.getCatalog().getVersion();
+            long statsVersion = TableStats.getStatsVersion();
+            // subqueries are planned while they are parsed, so they must
+            // be parsed with their constants
+            if (!hasSubqueries(parseTemplate().getWhere())) {
+                plan = parse(tid);
+                if (!plan.hasSubqueries() && plan.bindsParameters(values.length))
+                    cache.put(key, plan, catalogVersion, statsVersion);
+                else
+                    plan = null;
+            }
+        }
+
+        LogicalPlan lp;
+        DbIterator physicalPlan;
+        if (plan == null) {
+            lp = parse(tid, boundText());
+            physicalPlan = lp.physicalPlan(tid, TableStats.getStatsMap(),
+                    Parser.explain);
+        } else {
+            synchronized (plan) {
+                lp = plan.bind(sql, values);
+            }
+            physicalPlan = lp.physicalPlan(tid, TableStats.getStatsMap(),
+                    Parser.explain);
+            synchronized (plan) {
+                plan.copyJoinOrder(lp);
+            }
+        }
+        Query query = new Query(tid);
+        query.setPhysicalPlan(physicalPlan);
+        query.setLogicalPlan(lp);
+        return query;
+    }
+
+    /** @return the key of the statement's plan in the StatementCache */
+    private String key() {
+        return dop + ":" + shape;
+    }
+
+    /**
+     * @return whether the statement is a query, i.e., its plan is cached or
+     *         its normalized text parses as a query
+     */
+    boolean isQuery() {
+        if (Database.getStatementCache().contains(key()))
+            return true;
+        try {
+            parseTemplate();
+            return true;
+        } catch (ParsingException e) {
+            return false;
+        }
+    }
+
+    /** Parses the text of the statement with a constant '?i' for parameter i. */
+    private synchronized ZQuery parseTemplate() throws ParsingException {
+        if (parsed != null)
+            return parsed;
+        ZStatement stmt;
+        try {
+            stmt = new ZqlParser(new ByteArrayInputStream(template.getBytes("UTF-8")))
+                    .readStatement();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (Zql.ParseException e) {
+            throw new ParsingException("Invalid SQL expression: \n \t " + e);
+        } catch (Zql.TokenMgrError e) {
+            throw new ParsingException("Invalid SQL expression: \n \t " + e);
+        }
+        if (!(stmt instanceof ZQuery))
+            throw new ParsingException("Only queries can be prepared: " + sql);
+        parsed = (ZQuery) stmt;
+        return parsed;
+    }
+
+    /** @return whether the expression contains a subquery */
+    private static boolean hasSubqueries(ZExp e) {
+        if (e instanceof ZQuery)
+            return true;
+        if (e instanceof ZExpression) {
+            for (Object op : ((ZExpression) e).getOperands()) {
+                if (hasSubqueries((ZExp) op))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the text of the statement with the current parameter values
+        as its constants */
+    private String boundText() {
+        StringBuilder text = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            int start = template.indexOf("'?", i);
+            if (start < 0)
+                break;
+            int end = template.indexOf('\'', start + 1);
+            text.append(template, i, start);
+            int k = parameterIndex(template.substring(start + 1, end));
+            if (strings[k])
+                text.append('\'').append(values[k].replace("'", "''")).append('\'');
+            else
+                text.append(values[k]);
+            i = end + 1;
+        }
+        text.append(template, i, template.length());
+        return text.toString();
+    }
+
+    /** Builds the logical plan of the statement's parsed text. */
+    private LogicalPlan parse(TransactionId tid) throws ParsingException {
+        try {
+            LogicalPlan lp = new Parser().parseQueryLogicalPlan(tid, parseTemplate());
+            lp.setDegreeOfParallelism(dop);
+            return lp;
+        } catch (IOException e) {
+            throw new ParsingException(e);
+        } catch (Zql.ParseException e) {
+            throw new ParsingException(e);
+        }
+    }
+
+    /** Builds the logical plan of the specified text of the statement. */
+    private LogicalPlan parse(TransactionId tid, String text) throws ParsingException {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, text);
+        lp.setDegreeOfParallelism(dop);
+        return lp;
+    }
+
+    public String toString() {
+        return sql;
+    }
+}
@@ -92,8 +92,28 @@ public class Query implements Serializable {
         started = false;
     }
 
+    /**
+     * Runs the query and prints its result. The result of a read-only query
+     * is taken from the {@link ResultCache} of the Database if it is there,
+     * and put there otherwise. Unless multi-version mode is on, a result
+     * taken from the cache locks the tables it was read from in shared mode,
+     * as running the plan would have locked their pages.
+     */
     public void execute() throws IOException, DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
+        ResultCache cache = Database.getResultCache();
+        ResultCache.Key key = logicalPlan == null ? null : cache.keyFor(logicalPlan, tid);
+        List<Tuple> cached = key == null ? null : cache.get(key);
+        BufferPool bp = Database.getBufferPool();
+        if (cached != null && !bp.isMultiVersion()) {
+            // hold the shared locks the plan's scans would have held until
+            // the transaction completes, and check that no transaction
+            // changed the tables before they were granted
+            for (int tableid : key.tables)
+                bp.getLockManager().lockTable(tid, tableid, LockManager.Mode.S);
+            if (!cache.isCurrent(key))
+                cached = null;
+        }
 
         String names = "";
         for (int i = 0; i < td.numFields(); i++) {
@@ -105,14 +125,33 @@ public class Query implements Serializable {
         }
         System.out.println("");
 
-        this.start();
         int cnt = 0;
+        if (cached != null) {
+            for (Tuple tup : cached) {
+                System.out.println(tup);
+                cnt++;
+            }
+            System.out.println("\n " + cnt + " rows (cached).");
+            return;
+        }
+
+        // collect the result for the cache while it fits
+        ArrayList<Tuple> result = key == null ? null : new ArrayList<Tuple>();
+        long limit = cache.getMemoryLimit();
+        this.start();
         while (this.hasNext()) {
             Tuple tup = this.next();
             System.out.println(tup);
             cnt++;
+            if (result != null) {
+                result.add(tup);
+                if ((cnt & 1023) == 0 && ResultCache.estimateSize(td, cnt) > limit)
+                    result = null;
+            }
         }
         System.out.println("\n " + cnt + " rows.");
         this.close();
+        if (result != null)
+            cache.put(key, td, result);
     }
 }
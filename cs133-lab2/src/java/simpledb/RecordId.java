@@ -69,7 +69,7 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-    	return tupleno << 16 + pid.hashCode();
+    	return 31 * pid.hashCode() + tupleno;
 
     }
 
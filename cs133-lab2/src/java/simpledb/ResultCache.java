@@ -0,0 +1,265 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ResultCache keeps the results of recently run read-only queries, so that
+ * {@link Query#execute} can print the result of a query it has run before
+ * without running its plan again.
+ * <p>
+ * A result is keyed by the text of its query and remembers the version of
+ * each table the query reads. Every insert into or delete from a table
+ * through the {@link BufferPool} increments the table's version, as does
+ * the end of a transaction that modified it, so a result is only reused
+ * while none of its tables has changed. Results are materialized up to a
+ * memory limit, evicting the least recently used results first; a result
+ * larger than the limit is not cached. The limit is 0, which disables the
+ * cache, until {@link #setMemoryLimit} is called.
+ * <p>
+ * Queries with subqueries are not cached, and neither are queries run by a
+ * transaction that has modified one of their tables, since their results
+ * include changes other transactions may never see. In multi-version mode
+ * (see {@link BufferPool#setMultiVersion}), neither are queries run by a
+ * transaction whose snapshot misses a commit to one of their tables, since
+ * their results are older than the tables' versions say.
+ *
+ * @Threadsafe
+ */
+public class ResultCache {
+
+    // rough memory used by a cached tuple besides its fields, and per field
+    private static final int TUPLE_OVERHEAD = 48;
+    private static final int FIELD_OVERHEAD = 16;
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long memoryLimit;
+    private long memoryUsed;
+    private long hits, misses;
+
+    // the version of each table that has been modified
+    private final ConcurrentHashMap<Integer, AtomicLong> versions =
+            new ConcurrentHashMap<Integer, AtomicLong>();
+    // the tables modified by each running transaction
+    private final ConcurrentHashMap<TransactionId, Set<Integer>> writers =
+            new ConcurrentHashMap<TransactionId, Set<Integer>>();
+
+    /** Identifies the result of a query over particular table versions. */
+    static class Key {
+        final String text;
+        final int[] tables;
+        final long[] versions;
+
+        Key(String text, int[] tables, long[] versions) {
+            this.text = text;
+            this.tables = tables;
+            this.versions = versions;
+        }
+    }
+
+    private static class Entry {
+        final Key key;
+        final List<Tuple> tuples;
+        final long size;
+
+        Entry(Key key, List<Tuple> tuples, long size) {
+            this.key = key;
+            this.tuples = tuples;
+            this.size = size;
+        }
+    }
+
+    /** Sets the most memory, in bytes, that cached results may use; 0
+        disables the cache. Results are evicted if needed. */
+    public synchronized void setMemoryLimit(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("memory limit must not be negative");
+        memoryLimit = bytes;
+        evict();
+    }
+
+    /** @return the most memory, in bytes, that cached results may use */
+    public synchronized long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /** @return the estimated memory, in bytes, used by cached results */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    /** @return the number of results cached */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of lookups that found a current result */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found no current result */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Drops every cached result. */
+    public synchronized void clear() {
+        entries.clear();
+        memoryUsed = 0;
+    }
+
+    /** @return the estimated memory, in bytes, used by n tuples of td */
+    static long estimateSize(TupleDesc td, long n) {
+        return n * (TUPLE_OVERHEAD + td.getSize() + (long) FIELD_OVERHEAD * td.numFields());
+    }
+
+    private long version(int tableid) {
+        AtomicLong v = versions.get(tableid);
+        return v == null ? 0 : v.get();
+    }
+
+    private void bump(int tableid) {
+        AtomicLong v = versions.get(tableid);
+        if (v == null) {
+            AtomicLong fresh = new AtomicLong();
+            v = versions.putIfAbsent(tableid, fresh);
+            if (v == null)
+                v = fresh;
+        }
+        v.incrementAndGet();
+    }
+
+    /**
+     * Records that tid inserted into or deleted from a table. Called by
+     * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}.
+     */
+    void tableModified(TransactionId tid, int tableid) {
+        bump(tableid);
+        Set<Integer> tables = writers.get(tid);
+        if (tables == null) {
+            Set<Integer> fresh = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            tables = writers.putIfAbsent(tid, fresh);
+            if (tables == null)
+                tables = fresh;
+        }
+        tables.add(tableid);
+    }
+
+    /**
+     * Records that tid committed or aborted, which changes the contents of
+     * the tables it modified as other transactions see them. Called by
+     * {@link BufferPool#transactionComplete}.
+     */
+    void transactionComplete(TransactionId tid) {
+        Set<Integer> tables = writers.remove(tid);
+        if (tables != null) {
+            for (int tableid : tables)
+                bump(tableid);
+        }
+    }
+
+    /**
+     * @return the key of the result of lp run by tid as of now, or null if
+     *         the cache is disabled or the result may not be cached
+     */
+    Key keyFor(LogicalPlan lp, TransactionId tid) {
+        if (getMemoryLimit() == 0 || lp.hasSubqueries())
+            return null;
+        Set<Integer> ids = new HashSet<Integer>(lp.getTableAliasToIdMapping().values());
+        int[] tables = new int[ids.size()];
+        int i = 0;
+        for (int id : ids)
+            tables[i++] = id;
+        Arrays.sort(tables);
+        Set<Integer> modified = writers.get(tid);
+        for (int id : tables) {
+            if (modified != null && modified.contains(id))
+                return null;
+        }
+        BufferPool bp = Database.getBufferPool();
+        if (bp.isMultiVersion()) {
+            VersionStore store = bp.getVersionStore();
+            synchronized (store.commitLock) {
+                if (!store.seesLatest(tid, tables))
+                    return null;
+                return new Key(lp.getQuery().trim(), tables, versions(tables));
+            }
+        }
+        return new Key(lp.getQuery().trim(), tables, versions(tables));
+    }
+
+    private long[] versions(int[] tables) {
+        long[] v = new long[tables.length];
+        for (int i = 0; i < tables.length; i++)
+            v[i] = version(tables[i]);
+        return v;
+    }
+
+    /**
+     * @return the cached result for key, or null if there is none or one of
+     *         its tables has changed since
+     */
+    synchronized List<Tuple> get(Key key) {
+        Entry e = entries.get(key.text);
+        if (e != null && !(Arrays.equals(e.key.tables, key.tables)
+                && Arrays.equals(e.key.versions, key.versions))) {
+            // a result for other versions is only worth keeping if it is newer
+            if (!isCurrent(e.key)) {
+                entries.remove(key.text);
+                memoryUsed -= e.size;
+            }
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.tuples;
+    }
+
+    /** @return whether none of the tables of key has changed since it was made */
+    boolean isCurrent(Key key) {
+        for (int i = 0; i < key.tables.length; i++) {
+            if (version(key.tables[i]) != key.versions[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Caches the result of the query identified by key, if it is not larger
+     * than the memory limit and its tables have not changed since key was
+     * made.
+     */
+    synchronized void put(Key key, TupleDesc td, ArrayList<Tuple> tuples) {
+        long size = estimateSize(td, tuples.size());
+        if (size > memoryLimit || !isCurrent(key))
+            return;
+        Entry old = entries.remove(key.text);
+        if (old != null)
+            memoryUsed -= old.size;
+        entries.put(key.text, new Entry(key, Collections.unmodifiableList(tuples), size));
+        memoryUsed += size;
+        evict();
+    }
+
+    /** Evicts the least recently used results until they fit the limit. */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (memoryUsed > memoryLimit && it.hasNext()) {
+            memoryUsed -= it.next().size;
+            it.remove();
+        }
+    }
+}
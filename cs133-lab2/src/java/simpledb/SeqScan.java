@@ -15,6 +15,7 @@ public class SeqScan implements DbIterator {
     private TransactionId tid;
     private TupleDesc myTd;
     private transient DbFileIterator it;
+    private transient PageMorsels morsels;
     private String tablename;
     private String alias;
 
@@ -40,6 +41,30 @@ public class SeqScan implements DbIterator {
         reset(tableid,tableAlias);
     }
 
+    /**
+     * Creates a scan that reads only the pages it claims from a PageMorsels
+     * shared with other scans of the same table. Together, the scans sharing
+     * morsels read every page of the table exactly once.
+     * 
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be the file morsels hands out pages of
+     * @param tableAlias
+     *            the alias of this table (see
+     *            {@link #SeqScan(TransactionId, int, String)})
+     * @param morsels
+     *            the dispenser of page ranges shared by the scans
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias,
+            PageMorsels morsels) {
+        if (morsels.getFile().getId() != tableid)
+            throw new IllegalArgumentException("morsels do not belong to table " + tableid);
+        this.tid = tid;
+        this.morsels = morsels;
+        reset(tableid, tableAlias);
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -75,7 +100,12 @@ public class SeqScan implements DbIterator {
         this.isOpen=false;
         this.alias = tableAlias;
         this.tablename = Database.getCatalog().getTableName(tableid);
-        this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        if (morsels != null && morsels.getFile().getId() != tableid)
+            morsels = null; // rescanning a different table reads all of it
+        if (morsels == null)
+            this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        else
+            this.it = morsels.iterator(tid);
         myTd = Database.getCatalog().getTupleDesc(tableid);
         String[] newNames = new String[myTd.numFields()];
         Type[] newTypes = new Type[myTd.numFields()];
@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StatementCache keeps the logical plans of recently run queries, keyed by
+ * the normalized text of the query (see {@link PreparedStatement}), so that
+ * running a query of the same shape again skips parsing and join ordering.
+ * <p>
+ * The least recently used plan is evicted once the cache holds more than
+ * its capacity. A plan is also dropped, and rebuilt on its next use, if the
+ * catalog or the table statistics have changed since it was built (see
+ * {@link Catalog#getVersion} and {@link TableStats#getStatsVersion}).
+ *
+ * @Threadsafe
+ */
+public class StatementCache {
+
+    /** Default number of plans kept by the cache of the Database. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final LinkedHashMap<String, Entry> entries;
+    private int capacity;
+    private long hits, misses;
+
+    private static class Entry {
+        final LogicalPlan plan;
+        final long catalogVersion;
+        final long statsVersion;
+
+        Entry(LogicalPlan plan, long catalogVersion, long statsVersion) {
+            this.plan = plan;
+            this.catalogVersion = catalogVersion;
+            this.statsVersion = statsVersion;
+        }
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity
+     *            the largest number of plans to keep
+     */
+    public StatementCache(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > StatementCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the plan cached for key, or null if there is none or it was
+     *         built against an older catalog or older statistics
+     */
+    synchronized LogicalPlan get(String key) {
+        Entry e = entries.get(key);
+        if (e != null && (e.catalogVersion != Database.getCatalog().getVersion()
+                || e.statsVersion != TableStats.getStatsVersion())) {
+            entries.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.plan;
+    }
+
+    /** @return whether a plan is cached for key, current or not */
+    synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Caches the plan for key.
+     *
+     * @param catalogVersion
+     *            the catalog version before the plan was built
+     * @param statsVersion
+     *            the statistics version before the plan was built
+     */
+    synchronized void put(String key, LogicalPlan plan, long catalogVersion,
+            long statsVersion) {
+        entries.put(key, new Entry(plan, catalogVersion, statsVersion));
+    }
+
+    /** Sets the largest number of plans to keep, evicting plans if needed. */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        this.capacity = capacity;
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > capacity) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** @return the largest number of plans kept */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of plans cached */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of lookups that found a current plan */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found no current plan */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Drops every cached plan. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
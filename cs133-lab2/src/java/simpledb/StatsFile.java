@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * StatsFile is the on-disk form of the {@link TableStats} of a database, kept
+ * next to the catalog file. It starts with a directory of the tables it
+ * holds, so that the statistics of one table can be read without reading
+ * those of the others:
+ *
+ * <pre>
+ * int MAGIC, int VERSION, int numTables
+ * numTables x (UTF tableName, long offset, int length)
+ * the serialized statistics of each table, at its offset
+ * </pre>
+ *
+ * The file is rewritten as a whole (to a temporary file that then replaces
+ * it), so readers never see a partially written file.
+ */
+class StatsFile {
+
+    static final int MAGIC = 0x53444253; // "SDBS"
+    static final int VERSION = 2;
+
+    private final File file;
+    private final LinkedHashMap<String, long[]> directory = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Opens a stats file and reads its directory. A missing or unreadable
+     * file is treated as empty.
+     */
+    StatsFile(File file) {
+        this.file = file;
+        if (!file.exists())
+            return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return;
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String name = in.readUTF();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    directory.put(name, new long[] { offset, length });
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            directory.clear();
+        }
+    }
+
+    /** @return the file this object reads and writes */
+    File getFile() {
+        return file;
+    }
+
+    /** @return the names of the tables in the file */
+    synchronized Set<String> tableNames() {
+        return new HashSet<String>(directory.keySet());
+    }
+
+    /**
+     * @return the serialized statistics of a table, or null if the file does
+     *         not hold that table
+     */
+    synchronized byte[] read(String tableName) throws IOException {
+        long[] entry = directory.get(tableName);
+        if (entry == null)
+            return null;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) entry[1]];
+            raf.seek(entry[0]);
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replaces the statistics of the given tables, keeping those of every
+     * other table in the file, and rewrites the file.
+     */
+    synchronized void write(Map<String, byte[]> updates) throws IOException {
+        LinkedHashMap<String, byte[]> all = new LinkedHashMap<String, byte[]>();
+        for (String name : directory.keySet()) {
+            if (!updates.containsKey(name))
+                all.put(name, read(name));
+        }
+        all.putAll(updates);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream h = new DataOutputStream(header);
+        h.writeInt(MAGIC);
+        h.writeInt(VERSION);
+        h.writeInt(all.size());
+        for (String name : all.keySet()) {
+            h.writeUTF(name);
+            h.writeLong(0);
+            h.writeInt(0);
+        }
+        h.flush();
+        // now that the header's size is known, fill in the real offsets
+        long offset = header.size();
+        header.reset();
+        h.writeInt(MAGIC);
+        h.writeInt(VERSION);
+        h.writeInt(all.size());
+        LinkedHashMap<String, long[]> newDirectory = new LinkedHashMap<String, long[]>();
+        for (Map.Entry<String, byte[]> e : all.entrySet()) {
+            h.writeUTF(e.getKey());
+            h.writeLong(offset);
+            h.writeInt(e.getValue().length);
+            newDirectory.put(e.getKey(), new long[] { offset, e.getValue().length });
+            offset += e.getValue().length;
+        }
+        h.flush();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            header.writeTo(out);
+            for (byte[] data : all.values())
+                out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+        }
+        directory.clear();
+        directory.putAll(newDirectory);
+    }
+}
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A class to represent a fixed-width histogram over a single String-based
+ * field. Strings are mapped to integers by their first PREFIX_LENGTH
+ * characters, in an order-preserving way, and histogrammed by an
+ * {@link IntHistogram}; strings that share that prefix are indistinguishable.
+ */
+public class StringHistogram {
+
+    /** Number of leading characters of a string that the histogram sees. */
+    static final int PREFIX_LENGTH = 4;
+
+    private final IntHistogram hist;
+
+    /**
+     * Create a new StringHistogram over the full range of string prefixes.
+     *
+     * @param buckets
+     *            the number of buckets
+     */
+    public StringHistogram(int buckets) {
+        this(buckets, minVal(), maxVal());
+    }
+
+    /**
+     * Create a new StringHistogram over the prefix codes in [minCode,
+     * maxCode] (see {@link #stringToInt}); strings outside that range are
+     * counted in the overflow buckets of the underlying {@link IntHistogram}.
+     */
+    StringHistogram(int buckets, int minCode, int maxCode) {
+        hist = new IntHistogram(buckets, minCode, maxCode);
+    }
+
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
+    /** Writes this histogram in the format read by {@link #readFrom}. */
+    void writeTo(DataOutputStream out) throws IOException {
+        hist.writeTo(out);
+    }
+
+    /** Reads a histogram written by {@link #writeTo}. */
+    static StringHistogram readFrom(DataInputStream in) throws IOException {
+        return new StringHistogram(IntHistogram.readFrom(in));
+    }
+
+    /**
+     * Convert a string to an integer, with the property that if the return
+     * value(s1) < return value(s2), then s1 < s2. Only the first PREFIX_LENGTH
+     * characters count, and characters above 127 are treated as 127.
+     */
+    static int stringToInt(String s) {
+        int v = 0;
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            int c = i < s.length() ? Math.min(s.charAt(i), 127) : 0;
+            v = (v << 7) | c;
+        }
+        return v;
+    }
+
+    /** @return the smallest code stringToInt can return */
+    static int minVal() {
+        return 0;
+    }
+
+    /** @return the largest code stringToInt can return */
+    static int maxVal() {
+        return (1 << (7 * PREFIX_LENGTH)) - 1;
+    }
+
+    /**
+     * Widens the range of the histogram to take in a prefix code, see
+     * {@link IntHistogram#cover}.
+     */
+    void cover(int code, int buckets) {
+        hist.cover(code, buckets);
+    }
+
+    /** Add a new value to the histogram */
+    public void addValue(String s) {
+        hist.addValue(stringToInt(s));
+    }
+
+    /** Remove a value previously added to the histogram */
+    public void removeValue(String s) {
+        hist.removeValue(stringToInt(s));
+    }
+
+    /** Add a value given by its prefix code (see {@link #stringToInt}). */
+    void addCode(int code) {
+        hist.addValue(code);
+    }
+
+    /**
+     * Estimate the selectivity (as a double between 0 and 1) of the specified
+     * predicate over the specified string
+     *
+     * @param op
+     *            The operation being applied
+     * @param s
+     *            The string to apply op to
+     */
+    public double estimateSelectivity(Predicate.Op op, String s) {
+        return hist.estimateSelectivity(op, stringToInt(s));
+    }
+
+    /**
+     * @return the average selectivity of an equality predicate against a
+     *         value drawn from this histogram's own values
+     */
+    public double avgSelectivity() {
+        return hist.avgSelectivity();
+    }
+
+    public String toString() {
+        return "StringHistogram" + hist.toString().substring("IntHistogram".length());
+    }
+}
@@ -1,9 +1,31 @@
 package simpledb;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -14,9 +36,32 @@ import java.util.concurrent.ConcurrentHashMap;
 public class TableStats {
     // Note: scroll down a bit past the static methods to see the constructor you will implement
 
-    private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
+    private static final ConcurrentHashMap<String, TableStats> statsMap = new StatsMap();
     static final int IOCOSTPERPAGE = 1000;
 
+    // incremented whenever the statistics of a table are set or replaced
+    private static final AtomicLong version = new AtomicLong();
+
+    /**
+     * Persisted statistics are recomputed when a table's size has changed
+     * by more than this fraction since they were computed.
+     */
+    static final double DRIFT_THRESHOLD = 0.2;
+
+    /**
+     * A table's statistics are recomputed in the background once the number
+     * of tuples inserted and deleted since they were computed passes this
+     * fraction of the table's size at that time.
+     */
+    static final double REANALYZE_THRESHOLD = 0.2;
+
+    // recomputes stale statistics, one table at a time
+    private static ExecutorService reanalyzer;
+
+    // where statistics are persisted, or null if they are not
+    private static volatile StatsFile statsFile;
+    private static volatile double persistedSampleRate = 1.0;
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -31,10 +76,12 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
     {
+        version.incrementAndGet();
         try {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
@@ -55,22 +102,327 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * @return a number that changes whenever the statistics of a table are
+     *         set, loaded or recomputed, so that plans optimized with older
+     *         statistics can be recognized (see {@link StatementCache}).
+     *         Incremental maintenance on insert and delete does not change
+     *         it until it triggers a re-analysis.
+     */
+    public static long getStatsVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return the stats file kept next to a catalog file: the catalog's name
+     *         with its extension replaced by ".stats", in the same directory
+     */
+    public static File statsFileFor(String catalogFile) {
+        File catalog = new File(catalogFile).getAbsoluteFile();
+        String name = catalog.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0)
+            name = name.substring(0, dot);
+        return new File(catalog.getParentFile(), name + ".stats");
+    }
+
+    /**
+     * Uses file to persist statistics from now on. Statistics of the tables
+     * the file holds are read lazily, the first time {@link #getTableStats}
+     * or the map returned by {@link #getStatsMap} is asked for them;
+     * statistics of the other tables in the catalog are computed now and
+     * written to the file.
+     * <p>
+     * Statistics read from the file are recomputed (and rewritten) if the
+     * table's schema has changed, or if its number of pages has drifted by
+     * more than DRIFT_THRESHOLD since they were computed.
+     *
+     * @param file
+     *            the stats file, see {@link #statsFileFor}
+     * @param sampleRate
+     *            the fraction of pages read to compute missing statistics
+     */
+    public static void loadStatistics(File file, double sampleRate) {
+        StatsFile sf = new StatsFile(file);
+        statsMap.clear();
+        version.incrementAndGet();
+        persistedSampleRate = sampleRate;
+        statsFile = sf;
+
+        List<Integer> missing = new ArrayList<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            if (!sf.tableNames().contains(Database.getCatalog().getTableName(tableid)))
+                missing.add(tableid);
+        }
+        System.out.println("Loading table stats from " + file + ", computing "
+                + missing.size() + " missing.");
+        computeStatistics(missing, sampleRate);
+    }
+
+    /** Stops persisting statistics; the statistics in memory are kept. */
+    public static void unloadStatistics() {
+        statsFile = null;
+    }
+
+    /**
+     * Reads the persisted statistics of a table, recomputing them if they
+     * are stale.
+     *
+     * @return the statistics, or null if there are none for the table
+     */
+    private static TableStats loadPersisted(String tablename) {
+        StatsFile sf = statsFile;
+        if (sf == null)
+            return null;
+        synchronized (sf) {
+            TableStats s = ((StatsMap) statsMap).getLoaded(tablename);
+            if (s != null)
+                return s;
+            int tableid;
+            try {
+                tableid = Database.getCatalog().getTableId(tablename);
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+            double rate = persistedSampleRate;
+            try {
+                byte[] data = sf.read(tablename);
+                if (data == null)
+                    return null;
+                s = new TableStats(tableid, data);
+                rate = s.getSampleRate();
+                if (s.hasDrifted())
+                    s = null;
+            } catch (IOException e) {
+                s = null; // unreadable or written for another schema
+            }
+            if (s == null) {
+                s = new TableStats(tableid, IOCOSTPERPAGE, rate);
+                persist(sf, Collections.singletonMap(tablename, s));
+            }
+            statsMap.put(tablename, s);
+            version.incrementAndGet();
+            return s;
+        }
+    }
+
+    private static void persist(StatsFile sf, Map<String, TableStats> stats) {
+        try {
+            HashMap<String, byte[]> data = new HashMap<String, byte[]>();
+            for (Map.Entry<String, TableStats> e : stats.entrySet())
+                data.put(e.getKey(), e.getValue().toBytes());
+            sf.write(data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Updates the statistics of a table, if any are in memory, with the
+     * tuples a transaction inserted into and deleted from it, once it has
+     * committed. Called by {@link BufferPool#transactionComplete}; the
+     * changes of transactions that abort never reach the statistics.
+     */
+    static void tuplesCommitted(int tableid, List<Tuple> inserted, List<Tuple> deleted) {
+        TableStats s = loadedStats(tableid);
+        if (s != null && s.applyChanges(inserted, deleted))
+            reanalyze(s);
+    }
+
+    /** @return the statistics of a table if they are in memory, else null */
+    private static TableStats loadedStats(int tableid) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableid);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        if (name == null)
+            return null;
+        if (statsMap instanceof StatsMap)
+            return ((StatsMap) statsMap).getLoaded(name);
+        return statsMap.get(name);
+    }
+
+    /** Recomputes stale statistics on the background re-analysis thread. */
+    private static void reanalyze(final TableStats stale) {
+        synchronized (TableStats.class) {
+            if (reanalyzer == null) {
+                reanalyzer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "TableStats-reanalyzer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            reanalyzer.submit(new Runnable() {
+                public void run() {
+                    String name = Database.getCatalog().getTableName(stale.tableid);
+                    TableStats fresh = new TableStats(stale.tableid,
+                            stale.ioCostPerPage, stale.getSampleRate());
+                    if (!fresh.isComplete()) {
+                        // e.g. aborted as a deadlock victim: keep the stale
+                        // statistics and try again on the next modification
+                        stale.rescheduleReanalysis();
+                        return;
+                    }
+                    if (!statsMap.replace(name, stale, fresh))
+                        return; // replaced or dropped in the meantime
+                    version.incrementAndGet();
+                    StatsFile sf = statsFile;
+                    if (sf != null)
+                        persist(sf, Collections.singletonMap(name, fresh));
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until every re-analysis scheduled so far has finished.
+     *
+     * @return false if that took longer than timeoutMillis
+     */
+    static boolean awaitReanalysis(long timeoutMillis) throws InterruptedException {
+        Future<?> f;
+        synchronized (TableStats.class) {
+            if (reanalyzer == null)
+                return true;
+            f = reanalyzer.submit(new Runnable() {
+                public void run() {
+                }
+            });
+        }
+        try {
+            f.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Computes statistics for every table in the catalog by scanning each
+     * table in full, one table per thread on up to one thread per available
+     * processor.
+     */
     public static void computeStatistics() {
+        computeStatistics(1.0);
+    }
+
+    /**
+     * Computes statistics for every table in the catalog from a sample of
+     * each table's pages (see {@link #TableStats(int, int, double)}), one
+     * table per thread on up to one thread per available processor. If
+     * statistics are persisted (see {@link #loadStatistics}), the new
+     * statistics are written to the stats file.
+     *
+     * @param sampleRate
+     *            the fraction of each table's pages to read, in (0, 1]
+     */
+    public static void computeStatistics(double sampleRate) {
+        List<Integer> tableids = new ArrayList<Integer>();
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext())
+            tableids.add(tableIt.next());
+        computeStatistics(tableids, sampleRate);
+    }
 
+    private static void computeStatistics(List<Integer> tableids,
+            final double sampleRate) {
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        final Map<String, TableStats> computed = new ConcurrentHashMap<String, TableStats>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final int tableid : tableids) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    TableStats s = new TableStats(tableid, IOCOSTPERPAGE, sampleRate);
+                    String name = Database.getCatalog().getTableName(tableid);
+                    setTableStats(name, s);
+                    computed.put(name, s);
+                    return null;
+                }
+            });
         }
+        try {
+            ParallelTasks.invokeAll(tasks, Runtime.getRuntime().availableProcessors());
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        }
+        StatsFile sf = statsFile;
+        if (sf != null && !computed.isEmpty())
+            persist(sf, computed);
         System.out.println("Done.");
     }
 
+    /**
+     * The fewest pages a sample reads; smaller tables are always read in
+     * full.
+     */
+    static final int MIN_SAMPLE_PAGES = 32;
+
+    /**
+     * The number of values of each column buffered while a table is read to
+     * choose the initial range of its histogram; later values are binned as
+     * they are read, widening the range when they fall outside it.
+     */
+    static final int HISTOGRAM_BUFFER = 4096;
+
+    // z-score of a two-sided 95% confidence interval
+    private static final double Z_95 = 1.96;
+
+    private final int tableid;
+    private final int ioCostPerPage;
+    private final TupleDesc td;
+    private int numPages;
+    // whether tuples were added or removed since numPages was read
+    private volatile boolean pagesStale;
+    private int ntups;
+    // per field: exactly one of the two histograms is set, by field type
+    private final IntHistogram[] intHists;
+    private final StringHistogram[] stringHists;
+    private final int[] mins;
+    private final int[] maxs;
+    private final HyperLogLog[] sketches;
+    private final int[] distinct;
+
+    // what was read to build the statistics
+    private int sampledPages;
+    private int sampledTuples;
+    private double ntupsError;
+    // whether the scan failed, leaving the statistics partial
+    private boolean scanFailed;
+
+    // tuples inserted or deleted since the statistics were computed, and the
+    // number of tuples at that time (-1 until the first modification)
+    private int modifications;
+    private int analyzedTuples = -1;
+    private boolean reanalysisScheduled;
+    // for sampled statistics, the fraction of modifications the histograms
+    // see, and how much of the next one they are due
+    private double histogramCredit;
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
+     * <p>
+     * The table is read in a single scan that feeds a {@link HyperLogLog}
+     * sketch of every column and tracks its min/max values. The first
+     * HISTOGRAM_BUFFER values of each column (the prefix codes of strings,
+     * see {@link StringHistogram}) are buffered to choose the initial range
+     * of its histogram, and the values read after that are binned as they are
+     * read. A value outside the range widens it by merging adjacent buckets
+     * (see {@link IntHistogram#cover}), so that the buckets span the column's
+     * actual min/max even when the table is sorted on it.
+     * <p>
+     * Pages are locked only while they are read (see {@link #isComplete} for
+     * scans that fail).
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -79,14 +431,506 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, 1.0);
+    }
+
+    /**
+     * Create a new TableStats object from a block sample of the table: a
+     * random subset of sampleRate of its pages (but at least
+     * MIN_SAMPLE_PAGES) is read, and every tuple on those pages is used.
+     * Histograms are built from the sampled values; the number of tuples is
+     * scaled up from the sampled pages, and the number of distinct values of
+     * each column is scaled up from the sample's value frequencies with the
+     * GEE estimator (sqrt(N/n) * f1 + the number of values seen more than
+     * once). See {@link #getSampleRate}, {@link #totalTuplesErrorBound} and
+     * {@link #selectivityErrorBound} for how far the estimates can be trusted.
+     * <p>
+     * Tables that are not HeapFiles, and sample rates of 1 or more, read the
+     * whole table as {@link #TableStats(int, int)} does.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param sampleRate
+     *            the fraction of the table's pages to read, in (0, 1]
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
+        if (!(sampleRate > 0))
+            throw new IllegalArgumentException("sample rate must be positive");
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.td = file.getTupleDesc();
+        int nfields = td.numFields();
+        intHists = new IntHistogram[nfields];
+        stringHists = new StringHistogram[nfields];
+        mins = new int[nfields];
+        maxs = new int[nfields];
+        sketches = new HyperLogLog[nfields];
+        distinct = new int[nfields];
+
+        IntList[] values = new IntList[nfields];
+        for (int i = 0; i < nfields; i++) {
+            values[i] = new IntList();
+            sketches[i] = new HyperLogLog();
+        }
+
+        int[] sample = null;
+        if (file instanceof HeapFile) {
+            numPages = ((HeapFile) file).numPages();
+            sample = samplePages(numPages, sampleRate);
+        }
+
+        TransactionId tid = new TransactionId();
+        try {
+            if (sample == null)
+                scanTable(file, tid, values);
+            else
+                scanSample(sample, tid, values);
+        } catch (DbException e) {
+            e.printStackTrace();
+            scanFailed = true;
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+            scanFailed = true;
+        }
+        try {
+            Database.getBufferPool().transactionComplete(tid);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (!(file instanceof HeapFile)) {
+            int perPage = Math.max(1, BufferPool.PAGE_SIZE / td.getSize());
+            numPages = (ntups + perPage - 1) / perPage;
+            sampledPages = numPages;
+        }
+
+        for (int i = 0; i < nfields; i++) {
+            if (values[i] != null)
+                binValues(i, values);
+            if (sample == null)
+                distinct[i] = (int) Math.min(ntups, sketches[i].estimate());
+        }
+    }
+
+    /**
+     * Reads statistics serialized by {@link #toBytes}.
+     *
+     * @throws IOException
+     *             if the data is malformed or describes a table with a
+     *             different schema
+     */
+    private TableStats(int tableid, byte[] data) throws IOException {
+        this.tableid = tableid;
+        this.td = Database.getCatalog().getTupleDesc(tableid);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ioCostPerPage = in.readInt();
+        numPages = in.readInt();
+        ntups = in.readInt();
+        sampledPages = in.readInt();
+        sampledTuples = in.readInt();
+        ntupsError = in.readDouble();
+        int nfields = in.readInt();
+        if (nfields != td.numFields())
+            throw new IOException("schema changed");
+        intHists = new IntHistogram[nfields];
+        stringHists = new StringHistogram[nfields];
+        mins = new int[nfields];
+        maxs = new int[nfields];
+        sketches = new HyperLogLog[nfields];
+        distinct = new int[nfields];
+        for (int i = 0; i < nfields; i++) {
+            boolean isInt = in.readBoolean();
+            if (isInt != (td.getFieldType(i) == Type.INT_TYPE))
+                throw new IOException("schema changed");
+            mins[i] = in.readInt();
+            maxs[i] = in.readInt();
+            distinct[i] = in.readInt();
+            if (isInt)
+                intHists[i] = IntHistogram.readFrom(in);
+            else
+                stringHists[i] = StringHistogram.readFrom(in);
+            sketches[i] = HyperLogLog.readFrom(in);
+        }
+    }
+
+    /** @return these statistics serialized for a {@link StatsFile} */
+    byte[] toBytes() throws IOException {
+        refreshPages();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ioCostPerPage);
+        out.writeInt(numPages);
+        out.writeInt(ntups);
+        out.writeInt(sampledPages);
+        out.writeInt(sampledTuples);
+        out.writeDouble(ntupsError);
+        out.writeInt(td.numFields());
+        for (int i = 0; i < td.numFields(); i++) {
+            out.writeBoolean(intHists[i] != null);
+            out.writeInt(mins[i]);
+            out.writeInt(maxs[i]);
+            out.writeInt(distinct[i]);
+            if (intHists[i] != null)
+                intHists[i].writeTo(out);
+            else
+                stringHists[i].writeTo(out);
+            sketches[i].writeTo(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return true if the table's number of pages differs from the one these
+     *         statistics were computed over by more than DRIFT_THRESHOLD
+     */
+    boolean hasDrifted() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile))
+            return false;
+        int pages = ((HeapFile) file).numPages();
+        return Math.abs(pages - numPages) > DRIFT_THRESHOLD * Math.max(numPages, 1);
+    }
+
+    /**
+     * @return the sorted page numbers to sample, or null if the whole table
+     *         should be read
+     */
+    private static int[] samplePages(int numPages, double sampleRate) {
+        int k = (int) Math.ceil(sampleRate * numPages);
+        k = Math.max(k, MIN_SAMPLE_PAGES);
+        if (k >= numPages)
+            return null;
+        // Floyd's algorithm: k distinct pages, uniformly at random
+        Random rand = new Random();
+        TreeSet<Integer> chosen = new TreeSet<Integer>();
+        for (int j = numPages - k; j < numPages; j++) {
+            int t = rand.nextInt(j + 1);
+            chosen.add(chosen.contains(t) ? j : t);
+        }
+        int[] pages = new int[k];
+        int i = 0;
+        for (int pgno : chosen)
+            pages[i++] = pgno;
+        return pages;
+    }
+
+    /** Reads every tuple of the table. */
+    private void scanTable(DbFile file, TransactionId tid, IntList[] values)
+            throws DbException, TransactionAbortedException {
+        if (file instanceof HeapFile) {
+            for (int pgno = 0; pgno < numPages; pgno++) {
+                for (Tuple t : readPage(tid, pgno))
+                    scanTuple(t, values);
+            }
+        } else {
+            DbFileIterator it = file.iterator(tid);
+            try {
+                it.open();
+                while (it.hasNext())
+                    scanTuple(it.next(), values);
+            } finally {
+                it.close();
+            }
+        }
+        sampledPages = numPages;
+        sampledTuples = ntups;
+    }
+
+    /** Reads every tuple on the sampled pages and scales the counts up. */
+    @SuppressWarnings("unchecked")
+    private void scanSample(int[] pages, TransactionId tid, IntList[] values)
+            throws DbException, TransactionAbortedException {
+        int nfields = td.numFields();
+        HashMap<Field, Integer>[] freqs = (HashMap<Field, Integer>[]) new HashMap<?, ?>[nfields];
+        for (int i = 0; i < nfields; i++)
+            freqs[i] = new HashMap<Field, Integer>();
+
+        double sum = 0, sumSq = 0; // of tuples per page
+        for (int pgno : pages) {
+            int before = ntups;
+            for (Tuple t : readPage(tid, pgno)) {
+                scanTuple(t, values);
+                for (int i = 0; i < nfields; i++) {
+                    Integer c = freqs[i].get(t.getField(i));
+                    freqs[i].put(t.getField(i), c == null ? 1 : c + 1);
+                }
+            }
+            int n = ntups - before;
+            sum += n;
+            sumSq += (double) n * n;
+        }
+
+        int k = pages.length;
+        sampledPages = k;
+        sampledTuples = ntups;
+        ntups = (int) Math.round((double) sampledTuples * numPages / k);
+        if (k > 1) {
+            double mean = sum / k;
+            double var = (sumSq - k * mean * mean) / (k - 1);
+            ntupsError = Z_95 * numPages * Math.sqrt(Math.max(0, var) / k)
+                    * Math.sqrt(1.0 - (double) k / numPages);
+        }
+
+        double scale = sampledTuples == 0 ? 0 : Math.sqrt((double) ntups / sampledTuples);
+        for (int i = 0; i < nfields; i++) {
+            int f1 = 0;
+            for (int c : freqs[i].values()) {
+                if (c == 1)
+                    f1++;
+            }
+            double d = scale * f1 + (freqs[i].size() - f1);
+            distinct[i] = (int) Math.min(ntups, Math.round(d));
+        }
+    }
+
+    /**
+     * Returns the tuples of a page of the table: the ones the snapshot of tid
+     * sees in multi-version mode; otherwise the page is locked in shared mode
+     * only while they are copied, so that a scan does not hold up writers of
+     * the table until it ends. The statistics need not be consistent.
+     */
+    private List<Tuple> readPage(TransactionId tid, int pgno)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(tableid, pgno);
+        if (bp.isMultiVersion())
+            return bp.readSnapshot(tid, pid);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            tuples.add(it.next());
+        bp.releasePage(tid, pid);
+        return tuples;
+    }
+
+    private void scanTuple(Tuple t, IntList[] values) {
+        for (int i = 0; i < values.length; i++) {
+            Field f = t.getField(i);
+            sketches[i].add(f);
+            int code = f.getType() == Type.INT_TYPE ? ((IntField) f).getValue()
+                    : StringHistogram.stringToInt(((StringField) f).getValue());
+            if (ntups == 0 || code < mins[i])
+                mins[i] = code;
+            if (ntups == 0 || code > maxs[i])
+                maxs[i] = code;
+            if (values[i] == null) {
+                if (intHists[i] != null) {
+                    intHists[i].cover(code, NUM_HIST_BINS);
+                    intHists[i].addValue(code);
+                } else {
+                    stringHists[i].cover(code, NUM_HIST_BINS);
+                    stringHists[i].addCode(code);
+                }
+            } else {
+                values[i].add(code);
+                if (values[i].size == HISTOGRAM_BUFFER)
+                    binValues(i, values);
+            }
+        }
+        ntups++;
+    }
+
+    /**
+     * Creates the histogram of field i over the range of its buffered values,
+     * adds them to it and drops the buffer.
+     */
+    private void binValues(int i, IntList[] values) {
+        IntList v = values[i];
+        values[i] = null;
+        int min = v.size == 0 ? 0 : Integer.MAX_VALUE;
+        int max = v.size == 0 ? 0 : Integer.MIN_VALUE;
+        for (int j = 0; j < v.size; j++) {
+            min = Math.min(min, v.a[j]);
+            max = Math.max(max, v.a[j]);
+        }
+        if (td.getFieldType(i) == Type.INT_TYPE) {
+            intHists[i] = new IntHistogram(NUM_HIST_BINS, min, max);
+            for (int j = 0; j < v.size; j++)
+                intHists[i].addValue(v.a[j]);
+        } else {
+            stringHists[i] = new StringHistogram(NUM_HIST_BINS, min, max);
+            for (int j = 0; j < v.size; j++)
+                stringHists[i].addCode(v.a[j]);
+        }
+    }
+
+    /**
+     * Adds the tuples a committed transaction inserted to these statistics
+     * and removes the ones it deleted, under one acquisition of their
+     * monitor.
+     *
+     * @return true if the modifications since the statistics were computed
+     *         passed REANALYZE_THRESHOLD
+     */
+    synchronized boolean applyChanges(List<Tuple> inserted, List<Tuple> deleted) {
+        boolean passed = false;
+        for (Tuple t : inserted)
+            passed |= addTuple(t);
+        for (Tuple t : deleted)
+            passed |= removeTuple(t);
+        return passed;
+    }
+
+    /**
+     * Adds an inserted tuple to these statistics: the tuple count, min/max
+     * values and sketches always see it; the histograms of sampled
+     * statistics see only the sampled fraction of inserted tuples, so that
+     * they keep their proportions.
+     *
+     * @return true if the modifications since the statistics were computed
+     *         just passed REANALYZE_THRESHOLD
+     */
+    synchronized boolean addTuple(Tuple t) {
+        boolean toHistograms = beginModification();
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            sketches[i].add(f);
+            int code = f.getType() == Type.INT_TYPE ? ((IntField) f).getValue()
+                    : StringHistogram.stringToInt(((StringField) f).getValue());
+            if (ntups == 0 || code < mins[i])
+                mins[i] = code;
+            if (ntups == 0 || code > maxs[i])
+                maxs[i] = code;
+            if (toHistograms) {
+                if (intHists[i] != null)
+                    intHists[i].addValue(code);
+                else
+                    stringHists[i].addCode(code);
+            }
+            if (sampledPages >= numPages)
+                distinct[i] = (int) Math.min(ntups + 1, sketches[i].estimate());
+        }
+        ntups++;
+        pagesStale = true;
+        return modified();
+    }
+
+    /**
+     * Removes a deleted tuple from these statistics. Sketches cannot forget
+     * values, so distinct counts only shrink as far as the tuple count does.
+     *
+     * @return true if the modifications since the statistics were computed
+     *         just passed REANALYZE_THRESHOLD
+     */
+    synchronized boolean removeTuple(Tuple t) {
+        boolean toHistograms = beginModification();
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (toHistograms) {
+                if (intHists[i] != null)
+                    intHists[i].removeValue(((IntField) f).getValue());
+                else
+                    stringHists[i].removeValue(((StringField) f).getValue());
+            }
+            distinct[i] = Math.min(distinct[i], Math.max(ntups - 1, 0));
+        }
+        ntups = Math.max(ntups - 1, 0);
+        pagesStale = true;
+        return modified();
+    }
+
+    /** @return whether the histograms should see the current modification */
+    private boolean beginModification() {
+        if (analyzedTuples < 0)
+            analyzedTuples = ntups;
+        if (sampledPages >= numPages || ntups == 0)
+            return true;
+        histogramCredit += (double) sampledTuples / ntups;
+        if (histogramCredit < 1.0)
+            return false;
+        histogramCredit -= 1.0;
+        return true;
+    }
+
+    /** Reads the table's number of pages again if tuples were added or
+        removed since it was last read. */
+    private void refreshPages() {
+        if (!pagesStale)
+            return;
+        synchronized (this) {
+            if (!pagesStale)
+                return;
+            pagesStale = false;
+            DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+            if (file instanceof HeapFile) {
+                boolean full = sampledPages >= numPages;
+                numPages = ((HeapFile) file).numPages();
+                if (full)
+                    sampledPages = numPages;
+            }
+        }
+    }
+
+    /** Lets the next modification schedule a re-analysis again, after one
+        that failed. */
+    private synchronized void rescheduleReanalysis() {
+        reanalysisScheduled = false;
+    }
+
+    /** Counts one modification; true the first time the threshold is passed. */
+    private boolean modified() {
+        modifications++;
+        if (reanalysisScheduled
+                || modifications <= REANALYZE_THRESHOLD * Math.max(analyzedTuples, 1))
+            return false;
+        reanalysisScheduled = true;
+        return true;
+    }
+
+    /**
+     * @return the number of tuples inserted or deleted since these
+     *         statistics were computed
+     */
+    public synchronized int getModificationCount() {
+        return modifications;
+    }
+
+    /**
+     * @return false if the scan that computed these statistics failed, for
+     *         instance because its transaction was aborted, so that they
+     *         describe only the tuples read before
+     */
+    boolean isComplete() {
+        return !scanFailed;
+    }
+
+    /**
+     * @return the fraction of the table's pages that were read to build these
+     *         statistics; 1.0 if the whole table was read
+     */
+    public double getSampleRate() {
+        refreshPages();
+        return numPages == 0 ? 1.0 : (double) sampledPages / numPages;
+    }
+
+    /**
+     * @return the half-width of a 95% confidence interval around
+     *         {@link #totalTuples}, from the variance of the number of tuples
+     *         per sampled page; 0 if the whole table was read
+     */
+    public double totalTuplesErrorBound() {
+        return ntupsError;
+    }
+
+    /**
+     * @return the half-width of a 95% confidence interval around a
+     *         selectivity estimated from the sampled tuples, in the worst
+     *         case of a selectivity of 0.5. This treats the sampled tuples as
+     *         independent, so tables whose pages hold clustered values can
+     *         be off by more. 0 if the whole table was read; histogram bucket
+     *         error comes on top of this bound.
+     */
+    public double selectivityErrorBound() {
+        refreshPages();
+        if (sampledTuples == 0 || sampledPages >= numPages)
+            return 0.0;
+        double fpc = Math.max(0.0, 1.0 - (double) sampledTuples / Math.max(ntups, 1));
+        return Z_95 * Math.sqrt(0.25 / sampledTuples * fpc);
     }
 
     /**
@@ -102,8 +946,8 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        // some code goes here
-        return 0;
+        refreshPages();
+        return (double) numPages * ioCostPerPage;
     }
 
     /**
@@ -116,8 +960,7 @@ public class TableStats {
      *         selectivityFactor
      */
     public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+        return (int) Math.round(ntups * selectivityFactor);
     }
 
     /**
@@ -132,7 +975,16 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        return 0.5;
+        double eq = intHists[field] != null ? intHists[field].avgSelectivity()
+                : stringHists[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        default:
+            return 0.5;
+        }
     }
 
     /**
@@ -149,16 +1001,72 @@ public class TableStats {
      *         predicate
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+        if (intHists[field] != null)
+            return intHists[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        return stringHists[field].estimateSelectivity(op, ((StringField) constant).getValue());
+    }
+
+    /**
+     * @return the estimated number of distinct values of field: from its
+     *         HyperLogLog sketch if the whole table was read, otherwise
+     *         scaled up from the sample; never more than the number of tuples
+     */
+    public int numDistinctValues(int field) {
+        return distinct[field];
+    }
+
+    /**
+     * @return the smallest value of an integer field, or the prefix code (see
+     *         {@link StringHistogram}) of the smallest string; 0 if the table
+     *         is empty
+     */
+    public int minValue(int field) {
+        return mins[field];
+    }
+
+    /** @return the largest value of field, in the form of {@link #minValue} */
+    public int maxValue(int field) {
+        return maxs[field];
     }
 
     /**
      * return the total number of tuples in this table
      * */
     public int totalTuples() {
-        // some code goes here
-        return 0;
+        return ntups;
+    }
+
+    /**
+     * The map of statistics by table name; reads the persisted statistics of
+     * a table on its first lookup (see {@link #loadStatistics}).
+     */
+    private static class StatsMap extends ConcurrentHashMap<String, TableStats> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public TableStats get(Object key) {
+            TableStats s = super.get(key);
+            if (s == null && key instanceof String)
+                s = loadPersisted((String) key);
+            return s;
+        }
+
+        /** @return the statistics of a table if they are in memory */
+        TableStats getLoaded(String key) {
+            return super.get(key);
+        }
+    }
+
+    /** A growable array of ints. */
+    private static class IntList {
+        private int[] a = new int[64];
+        private int size = 0;
+
+        void add(int v) {
+            if (size == a.length)
+                a = Arrays.copyOf(a, size * 2);
+            a[size++] = v;
+        }
     }
 
 }
@@ -18,6 +18,7 @@ public class Transaction {
     /** Start the transaction running */
     public void start() {
         started = true;
+        Database.getBufferPool().transactionStarted(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -47,8 +48,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log all the dirty pages for this transaction and the
+                //commit record; the pages are written out once the log is
+                //forced past the LSN of their last update
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -0,0 +1,383 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the older versions of rows that multi-version
+ * concurrency control needs, on behalf of the {@link BufferPool}. While
+ * multi-version mode is on (see {@link BufferPool#setMultiVersion}), scans
+ * read a snapshot of each page instead of locking it, so readers never block
+ * writers and writers never block readers; writers still lock the rows they
+ * change.
+ * <p>
+ * Every insert and delete on a page appends to the version chain of the
+ * slot it changes. A version carries the transaction that created it and
+ * the one that deleted it, and the commit timestamps of both once they
+ * commit; rows whose slots have no chain are as old as every snapshot and
+ * are read from the page itself. A transaction's snapshot is the commit
+ * timestamp of the last transaction committed when it started (see
+ * {@link Transaction#start}) or, failing that, when it first read or wrote
+ * a row, and it sees exactly the versions created by transactions committed
+ * by then or by itself, and not deleted by those.
+ * <p>
+ * Versions no running transaction can see, and chains whose newest version
+ * every running transaction sees, are garbage collected as transactions
+ * complete.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    // the timestamp of versions whose transaction has not committed
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /** One version of a row. Guarded by the monitor of its page's chains. */
+    private static class Version {
+        final Tuple tuple;
+        // the creator is null for a row older than every snapshot
+        final TransactionId creator;
+        long begin;
+        TransactionId deleter;
+        long end = PENDING;
+
+        Version(Tuple tuple, TransactionId creator, long begin) {
+            this.tuple = tuple;
+            this.creator = creator;
+            this.begin = begin;
+        }
+
+        boolean visibleTo(TransactionId tid, long snapshot) {
+            boolean created = creator == null || creator.equals(tid)
+                    || begin <= snapshot;
+            boolean deleted = deleter != null && (deleter.equals(tid)
+                    || end <= snapshot);
+            return created && !deleted;
+        }
+    }
+
+    /** The version chains of the slots of one page, oldest version first. */
+    private static class PageVersions {
+        final HashMap<Integer, ArrayList<Version>> chains =
+                new HashMap<Integer, ArrayList<Version>>();
+    }
+
+    /** A version a running transaction created or deleted. */
+    private static class Change {
+        final PageVersions page;
+        final int tableid;
+        final int slot;
+        final Version version;
+        final boolean created;
+
+        Change(PageVersions page, int tableid, int slot, Version version, boolean created) {
+            this.page = page;
+            this.tableid = tableid;
+            this.slot = slot;
+            this.version = version;
+            this.created = created;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageVersions> pages =
+            new ConcurrentHashMap<PageId, PageVersions>();
+    private final ConcurrentHashMap<TransactionId, List<Change>> changes =
+            new ConcurrentHashMap<TransactionId, List<Change>>();
+
+    // guards clock, snapshots and commits, so that a snapshot never sees part
+    // of a commit
+    final Object commitLock = new Object();
+    private long clock;
+    private final HashMap<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+    // the timestamp of the last commit that changed each table
+    private final HashMap<Integer, Long> commits = new HashMap<Integer, Long>();
+    // the garbage collection horizon when versions were last collected
+    private long collectedAt = -1;
+
+    /**
+     * @return the snapshot of tid, taken now if tid has none yet
+     */
+    long snapshot(TransactionId tid) {
+        synchronized (commitLock) {
+            Long s = snapshots.get(tid);
+            if (s == null) {
+                s = clock;
+                snapshots.put(tid, s);
+            }
+            return s;
+        }
+    }
+
+    /** @return the number of versions kept */
+    public int size() {
+        int n = 0;
+        for (PageVersions pv : pages.values()) {
+            synchronized (pv) {
+                for (ArrayList<Version> chain : pv.chains.values())
+                    n += chain.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return whether the snapshot of tid, taken now if tid has none yet,
+     *         sees every commit that changed the specified tables, so that
+     *         tid reads them as a transaction starting now would
+     */
+    boolean seesLatest(TransactionId tid, int[] tables) {
+        synchronized (commitLock) {
+            long s = snapshot(tid);
+            for (int tableid : tables) {
+                Long ts = commits.get(tableid);
+                if (ts != null && ts > s)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private PageVersions versionsOf(PageId pid) {
+        PageVersions pv = pages.get(pid);
+        if (pv == null) {
+            PageVersions fresh = new PageVersions();
+            pv = pages.putIfAbsent(pid, fresh);
+            if (pv == null)
+                pv = fresh;
+        }
+        return pv;
+    }
+
+    private void changed(TransactionId tid, Change c) {
+        List<Change> mine = changes.get(tid);
+        if (mine == null) {
+            List<Change> fresh = Collections.synchronizedList(new ArrayList<Change>());
+            mine = changes.putIfAbsent(tid, fresh);
+            if (mine == null)
+                mine = fresh;
+        }
+        mine.add(c);
+    }
+
+    /**
+     * Records that tid inserted t into its slot. Called with the page's
+     * monitor held.
+     */
+    void inserted(TransactionId tid, Tuple t) {
+        snapshot(tid);
+        RecordId rid = t.getRecordId();
+        PageVersions pv = versionsOf(rid.getPageId());
+        Version v = new Version(t, tid, PENDING);
+        synchronized (pv) {
+            ArrayList<Version> chain = pv.chains.get(rid.tupleno());
+            if (chain == null) {
+                chain = new ArrayList<Version>(2);
+                pv.chains.put(rid.tupleno(), chain);
+            }
+            chain.add(v);
+        }
+        changed(tid, new Change(pv, rid.getPageId().getTableId(), rid.tupleno(), v, true));
+    }
+
+    /**
+     * Records that tid deleted the row stored at rid, which it may delete
+     * (see {@link #canDelete}). Called with the page's monitor held.
+     */
+    void deleted(TransactionId tid, Tuple stored, RecordId rid) {
+        snapshot(tid);
+        PageVersions pv = versionsOf(rid.getPageId());
+        Version v;
+        synchronized (pv) {
+            ArrayList<Version> chain = pv.chains.get(rid.tupleno());
+            if (chain == null) {
+                chain = new ArrayList<Version>(2);
+                pv.chains.put(rid.tupleno(), chain);
+            }
+            if (chain.isEmpty() || chain.get(chain.size() - 1).deleter != null) {
+                v = new Version(stored, null, 0);
+                chain.add(v);
+            } else {
+                v = chain.get(chain.size() - 1);
+            }
+            v.deleter = tid;
+            v.end = PENDING;
+        }
+        changed(tid, new Change(pv, rid.getPageId().getTableId(), rid.tupleno(), v, false));
+    }
+
+    /**
+     * @return whether the row now stored at rid is the version tid's
+     *         snapshot sees, so that tid may delete it; otherwise another
+     *         transaction changed it since. Called with the page's monitor
+     *         and the row's lock held.
+     */
+    boolean canDelete(TransactionId tid, RecordId rid) {
+        long s = snapshot(tid);
+        PageVersions pv = pages.get(rid.getPageId());
+        if (pv == null)
+            return true;
+        synchronized (pv) {
+            ArrayList<Version> chain = pv.chains.get(rid.tupleno());
+            if (chain == null || chain.isEmpty())
+                return true;
+            // the row is gone if its newest version was deleted, even if
+            // the snapshot still sees that version
+            Version v = chain.get(chain.size() - 1);
+            return v.deleter == null && v.visibleTo(tid, s);
+        }
+    }
+
+    /**
+     * @return the tuples of page the snapshot of tid sees. Called with the
+     *         page's monitor held.
+     */
+    List<Tuple> visibleTuples(TransactionId tid, HeapPage page) {
+        long s = snapshot(tid);
+        PageVersions pv = pages.get(page.getId());
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        if (pv == null) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                tuples.add(it.next());
+            return tuples;
+        }
+        synchronized (pv) {
+            for (int i = 0; i < page.getNumSlots(); i++) {
+                ArrayList<Version> chain = pv.chains.get(i);
+                if (chain == null) {
+                    if (page.isSlotUsed(i))
+                        tuples.add(page.getTuple(i));
+                    continue;
+                }
+                for (Version v : chain) {
+                    if (v.visibleTo(tid, s))
+                        tuples.add(v.tuple);
+                }
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * Stamps the versions tid created and deleted with a new commit
+     * timestamp, making them visible to later snapshots, and collects the
+     * versions no running transaction needs any more.
+     */
+    void commit(TransactionId tid) {
+        List<Change> mine = changes.remove(tid);
+        synchronized (commitLock) {
+            if (mine != null) {
+                long ts = ++clock;
+                synchronized (mine) {
+                    for (Change c : mine) {
+                        commits.put(c.tableid, ts);
+                        synchronized (c.page) {
+                            if (c.created)
+                                c.version.begin = ts;
+                            else if (tid.equals(c.version.deleter))
+                                c.version.end = ts;
+                        }
+                    }
+                }
+            }
+            snapshots.remove(tid);
+        }
+        collectGarbage();
+    }
+
+    /**
+     * Drops the versions tid created and restores the ones it deleted,
+     * latest first, as the buffer pool restores its rows.
+     */
+    void abort(TransactionId tid) {
+        List<Change> mine = changes.remove(tid);
+        if (mine != null) {
+            synchronized (mine) {
+                for (int i = mine.size() - 1; i >= 0; i--) {
+                    Change c = mine.get(i);
+                    synchronized (c.page) {
+                        ArrayList<Version> chain = c.page.chains.get(c.slot);
+                        if (chain == null)
+                            continue;
+                        if (c.created) {
+                            chain.remove(c.version);
+                        } else if (tid.equals(c.version.deleter)) {
+                            c.version.deleter = null;
+                            c.version.end = PENDING;
+                        }
+                        prune(c.page, c.slot, chain, -1);
+                    }
+                }
+            }
+        }
+        synchronized (commitLock) {
+            snapshots.remove(tid);
+        }
+        collectGarbage();
+    }
+
+    /**
+     * Drops the versions no running or future transaction can see, and the
+     * chains whose newest version all of them see, since the page itself
+     * then holds the row they see.
+     */
+    public void collectGarbage() {
+        long horizon;
+        synchronized (commitLock) {
+            horizon = clock;
+            for (long s : snapshots.values())
+                horizon = Math.min(horizon, s);
+            if (horizon == collectedAt)
+                return;
+            collectedAt = horizon;
+        }
+        Iterator<Map.Entry<PageId, PageVersions>> it = pages.entrySet().iterator();
+        while (it.hasNext()) {
+            PageVersions pv = it.next().getValue();
+            synchronized (pv) {
+                Iterator<Map.Entry<Integer, ArrayList<Version>>> chains =
+                        pv.chains.entrySet().iterator();
+                while (chains.hasNext()) {
+                    Map.Entry<Integer, ArrayList<Version>> e = chains.next();
+                    if (prune(null, e.getKey(), e.getValue(), horizon))
+                        chains.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the versions of a chain that snapshots at or after horizon do
+     * not see, or only the versions of aborted transactions if horizon is
+     * negative; if page is not null, the chain is removed from it once no
+     * version needs to be kept. Called with the monitor of the chain's page
+     * held.
+     *
+     * @return whether no version of the chain needs to be kept
+     */
+    private boolean prune(PageVersions page, int slot, ArrayList<Version> chain, long horizon) {
+        if (horizon >= 0) {
+            Iterator<Version> it = chain.iterator();
+            while (it.hasNext()) {
+                Version v = it.next();
+                if (v.deleter != null && v.end <= horizon)
+                    it.remove();
+            }
+        }
+        boolean empty = chain.isEmpty();
+        if (!empty && chain.size() == 1) {
+            // the page holds the row every snapshot sees
+            Version v = chain.get(0);
+            empty = v.deleter == null && (v.creator == null
+                    || (horizon >= 0 && v.begin <= horizon));
+        }
+        if (empty && page != null)
+            page.chains.remove(slot);
+        return empty;
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+  /**
+   * Estimates of distinct random ints stay within 5% (about three standard
+   * errors) of the exact count
+   */
+  @Test public void accuracy() {
+    Random r = new Random(42);
+    for (int n : new int[] { 10, 100, 1000, 10000, 200000 }) {
+      HyperLogLog h = new HyperLogLog();
+      HashSet<Integer> exact = new HashSet<Integer>();
+      for (int i = 0; i < n; i++) {
+        int v = r.nextInt();
+        h.add(v);
+        exact.add(v);
+      }
+      assertEquals("n = " + n, exact.size(), h.estimate(), exact.size() * 0.05);
+    }
+  }
+
+  /**
+   * Repeated values are counted once
+   */
+  @Test public void duplicates() {
+    HyperLogLog h = new HyperLogLog();
+    assertEquals(0, h.estimate());
+    for (int rep = 0; rep < 50; rep++) {
+      for (int i = 0; i < 1000; i++)
+        h.add(i);
+    }
+    assertEquals(1000, h.estimate(), 50);
+  }
+
+  /**
+   * Strings and sequential ints are hashed well enough to count accurately
+   */
+  @Test public void strings() {
+    HyperLogLog h = new HyperLogLog();
+    for (int i = 0; i < 50000; i++)
+      h.add("name" + i);
+    assertEquals(50000, h.estimate(), 2500);
+  }
+
+  /**
+   * A merged sketch estimates the size of the union
+   */
+  @Test public void merge() {
+    HyperLogLog a = new HyperLogLog();
+    HyperLogLog b = new HyperLogLog();
+    for (int i = 0; i < 30000; i++)
+      a.add(i);
+    for (int i = 20000; i < 50000; i++)
+      b.add(i);
+    a.merge(b);
+    assertEquals(50000, a.estimate(), 2500);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void mergeDifferentPrecision() {
+    new HyperLogLog(10).merge(new HyperLogLog(12));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HyperLogLogTest.class);
+  }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class IntHistogramTest {
+
+  /**
+   * Uniform values 1..100 in 10 buckets: estimates should be exact
+   */
+  @Test public void uniform() {
+    IntHistogram h = new IntHistogram(10, 1, 100);
+    for (int i = 1; i <= 100; i++)
+      h.addValue(i);
+
+    assertEquals(0.01, h.estimateSelectivity(Predicate.Op.EQUALS, 50), 1e-9);
+    assertEquals(0.99, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, 50), 1e-9);
+    assertEquals(0.49, h.estimateSelectivity(Predicate.Op.LESS_THAN, 50), 1e-9);
+    assertEquals(0.50, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, 50), 1e-9);
+    assertEquals(0.50, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 50), 1e-9);
+    assertEquals(0.51, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 50), 1e-9);
+  }
+
+  /**
+   * Values outside [min, max]
+   */
+  @Test public void outOfRange() {
+    IntHistogram h = new IntHistogram(10, 1, 100);
+    for (int i = 1; i <= 100; i++)
+      h.addValue(i);
+
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, -5), 0.0);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, 101), 0.0);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 1000), 0.0);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, -1000), 0.0);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, Integer.MAX_VALUE), 0.0);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, Integer.MAX_VALUE), 0.0);
+  }
+
+  /**
+   * Skewed values, more buckets than distinct values
+   */
+  @Test public void skewed() {
+    IntHistogram h = new IntHistogram(100, 0, 9);
+    for (int i = 0; i < 900; i++)
+      h.addValue(0);
+    for (int i = 1; i < 10; i++)
+      h.addValue(i);
+
+    assertEquals(900.0 / 909, h.estimateSelectivity(Predicate.Op.EQUALS, 0), 1e-9);
+    assertEquals(1.0 / 909, h.estimateSelectivity(Predicate.Op.EQUALS, 5), 1e-9);
+    assertEquals(8.0 / 909, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 1), 1e-9);
+    assertTrue(h.avgSelectivity() > 0.9);
+  }
+
+  /**
+   * Values added outside [min, max] land in overflow buckets, and removed
+   * values stop counting
+   */
+  @Test public void overflowAndRemove() {
+    IntHistogram h = new IntHistogram(10, 0, 99);
+    for (int i = 0; i < 100; i++)
+      h.addValue(i);
+    for (int i = 100; i < 200; i++)
+      h.addValue(i);
+    assertEquals(200, h.numValues());
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 99), 1e-9);
+    assertEquals(0.25, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 150), 0.01);
+    assertEquals(0.005, h.estimateSelectivity(Predicate.Op.EQUALS, 150), 1e-3);
+    for (int i = 100; i < 200; i++)
+      h.removeValue(i);
+    h.removeValue(500); // never added
+    assertEquals(100, h.numValues());
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 99), 0.0);
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 50), 1e-9);
+  }
+
+  /**
+   * cover() widens the range to take in values in either direction, so none
+   * of them land in the overflow buckets
+   */
+  @Test public void cover() {
+    IntHistogram h = new IntHistogram(10, 5, 5);
+    for (int i = 0; i < 1000; i++) {
+      h.cover(i, 10);
+      h.addValue(i);
+    }
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 500), 1e-9);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 0), 0.0);
+    for (int i = -1000; i < 0; i++) {
+      h.cover(i, 10);
+      h.addValue(i);
+    }
+    assertEquals(2000, h.numValues());
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 0), 1e-9);
+    assertEquals(0.25, h.estimateSelectivity(Predicate.Op.LESS_THAN, -500), 0.02);
+  }
+
+  /**
+   * An empty histogram selects nothing
+   */
+  @Test public void empty() {
+    IntHistogram h = new IntHistogram(10, 0, 0);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 5), 0.0);
+    assertEquals(0.0, h.avgSelectivity(), 0.0);
+  }
+
+  /**
+   * StringHistogram orders strings by prefix
+   */
+  @Test public void strings() {
+    StringHistogram h = new StringHistogram(100);
+    for (char c = 'a'; c <= 'z'; c++)
+      h.addValue(c + "xyz");
+
+    assertTrue(StringHistogram.stringToInt("abc") < StringHistogram.stringToInt("abd"));
+    assertTrue(StringHistogram.stringToInt("ab") < StringHistogram.stringToInt("abc"));
+    double lt = h.estimateSelectivity(Predicate.Op.LESS_THAN, "n");
+    assertTrue(lt > 0.4 && lt < 0.6);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, ""), 0.0);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IntHistogramTest.class);
+  }
+}
@@ -0,0 +1,466 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class JoinOptimizerTest extends SimpleDbTestBase {
+
+  ArrayList<ArrayList<Integer>> tuples1;
+  ArrayList<ArrayList<Integer>> tuples2;
+  HashMap<String, TableStats> stats;
+  HashMap<String, Integer> aliases;
+
+  /**
+   * Creates two tables whose first columns share a domain of 1000 values
+   */
+  @Before public void createTables() throws Exception {
+    tuples1 = new ArrayList<ArrayList<Integer>>();
+    tuples2 = new ArrayList<ArrayList<Integer>>();
+    HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, tuples1, "c");
+    HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, tuples2, "c");
+    Database.getCatalog().addTable(f1, "t1");
+    Database.getCatalog().addTable(f2, "t2");
+    stats = new HashMap<String, TableStats>();
+    stats.put("t1", new TableStats(f1.getId(), 1000));
+    stats.put("t2", new TableStats(f2.getId(), 1000));
+    aliases = new HashMap<String, Integer>();
+    aliases.put("a", f1.getId());
+    aliases.put("b", f2.getId());
+  }
+
+  /** @return the exact number of tuples in the join of col of each table */
+  private static int exactJoin(ArrayList<ArrayList<Integer>> t1,
+      ArrayList<ArrayList<Integer>> t2, int col) {
+    HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> t : t2) {
+      Integer c = counts.get(t.get(col));
+      counts.put(t.get(col), c == null ? 1 : c + 1);
+    }
+    int n = 0;
+    for (ArrayList<Integer> t : t1) {
+      Integer c = counts.get(t.get(col));
+      if (c != null)
+        n += c;
+    }
+    return n;
+  }
+
+  /**
+   * The equi-join estimate is within 10% of the exact count
+   */
+  @Test public void equiJoinAccuracy() {
+    int exact = exactJoin(tuples1, tuples2, 0);
+    int estimate = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "c0", "c0", tuples1.size(), tuples2.size(), false, false,
+        stats, aliases);
+    assertEquals(exact, estimate, exact * 0.1);
+  }
+
+  /**
+   * A primary key on one side matches every tuple of the other side at most
+   * once
+   */
+  @Test public void primaryKey() {
+    assertEquals(2000, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "c0", "c0", 2000, 2000, true, false, stats, aliases));
+    assertEquals(300, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "c0", "c0", 500, 300, true, true, stats, aliases));
+  }
+
+  /**
+   * Tables without statistics and non-equality joins
+   */
+  @Test public void fallbacks() {
+    // every value distinct on both sides: the smaller side matches once each
+    assertEquals(50, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "x", "y", "c0", "c0", 100, 50, false, false, stats, aliases));
+    assertEquals(30, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.LESS_THAN,
+        "a", "b", "c0", "c0", 10, 10, false, false, stats, aliases));
+    assertEquals(1, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "c0", "c0", 0, 10, false, false, stats, aliases));
+  }
+
+  /**
+   * A nested-loops join reads the inner side once per outer tuple
+   */
+  @Test public void joinCost() {
+    LogicalPlan lp = new LogicalPlan();
+    JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+    LogicalJoinNode j = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+    assertEquals(1000 + 100 * 2000.0 + 100 * 1000,
+        jo.estimateJoinCost(j, 100, 1000, 1000, 2000), 0.0);
+    // a parallel equi-join builds a hash table over the right side, which
+    // costs more per tuple than probing it with the left side
+    lp.setDegreeOfParallelism(4);
+    assertEquals(1000 + 2000 + 100 + 2 * 1000, jo.estimateJoinCost(j, 100, 1000, 1000, 2000), 0.0);
+    assertEquals(2000 + 1000 + 1000 + 2 * 100,
+        jo.estimateJoinCost(j.swapInnerOuter(), 1000, 100, 2000, 1000), 0.0);
+  }
+
+  /**
+   * Every equi-join of a parallel plan is instantiated as the hash join the
+   * cost model charges for, even if its left side is not an Exchange
+   */
+  @Test public void parallelInstantiation() throws Exception {
+    TransactionId tid = new TransactionId();
+    LogicalJoinNode j = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+    DbIterator join = JoinOptimizer.instantiateJoin(j,
+        new SeqScan(tid, aliases.get("a"), "a"), new SeqScan(tid, aliases.get("b"), "b"), true);
+    assertTrue(join instanceof ParallelHashJoin);
+    int n = 0;
+    join.open();
+    while (join.hasNext()) {
+      join.next();
+      n++;
+    }
+    join.close();
+    assertEquals(exactJoin(tuples1, tuples2, 0), n);
+
+    join = JoinOptimizer.instantiateJoin(j,
+        new SeqScan(tid, aliases.get("a"), "a"), new SeqScan(tid, aliases.get("b"), "b"), false);
+    assertTrue(join instanceof Join);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Dynamic programming joins the two small tables first, with the smallest
+   * on the outside, whatever order the joins are listed in
+   */
+  @Test public void orderJoins() throws Exception {
+    HeapFile f3 = SystemTestUtil.createRandomHeapFile(2, 100, 1000, null, null, "c");
+    Database.getCatalog().addTable(f3, "t3");
+    stats.put("t3", new TableStats(f3.getId(), 1000));
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(Database.getCatalog().getTableId("t1"), "a");
+    lp.addScan(Database.getCatalog().getTableId("t2"), "b");
+    lp.addScan(f3.getId(), "c");
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    for (String alias : new String[] { "a", "b", "c" })
+      selectivities.put(alias, 1.0);
+
+    LogicalJoinNode ab = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS);
+    LogicalJoinNode bc = new LogicalJoinNode("b", "c", "b.c1", "c.c1", Predicate.Op.EQUALS);
+    for (boolean reversed : new boolean[] { false, true }) {
+      Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+      joins.add(reversed ? bc : ab);
+      joins.add(reversed ? ab : bc);
+      Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins)
+          .orderJoins(stats, selectivities, false);
+      assertEquals(2, order.size());
+      assertEquals("c", order.get(0).t1Alias);
+      assertEquals("b", order.get(0).t2Alias);
+      assertTrue(order.get(1).t1Alias.equals("a") || order.get(1).t2Alias.equals("a"));
+    }
+  }
+
+  /**
+   * Checks that order joins n tables without a cycle, merging the subplans
+   * of both its tables at each join as {@link LogicalPlan#physicalPlan} does
+   * @return whether some join joins two intermediate results
+   */
+  private static boolean checkPlan(Vector<LogicalJoinNode> order, int n) {
+    HashMap<String, Integer> group = new HashMap<String, Integer>();
+    boolean bushy = false;
+    for (int i = 0; i < order.size(); i++) {
+      LogicalJoinNode j = order.get(i);
+      Integer g1 = group.get(j.t1Alias), g2 = group.get(j.t2Alias);
+      assertTrue(g1 == null || !g1.equals(g2));
+      bushy |= g1 != null && g2 != null;
+      for (String alias : new ArrayList<String>(group.keySet())) {
+        if (group.get(alias).equals(g1) || group.get(alias).equals(g2))
+          group.put(alias, i);
+      }
+      group.put(j.t1Alias, i);
+      group.put(j.t2Alias, i);
+    }
+    assertEquals(n, group.size());
+    assertEquals(1, new HashSet<Integer>(group.values()).size());
+    return bushy;
+  }
+
+  /**
+   * A 16-table chain is planned quickly into a plan that joins every table
+   */
+  @Test(timeout = 5000) public void wideChain() throws Exception {
+    int n = 16;
+    LogicalPlan lp = new LogicalPlan();
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    for (int i = 0; i < n; i++) {
+      lp.addScan(Database.getCatalog().getTableId(i % 2 == 0 ? "t1" : "t2"), "x" + i);
+      selectivities.put("x" + i, 1.0 / (i % 4 + 1));
+    }
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    for (int i = 1; i < n; i++)
+      joins.add(new LogicalJoinNode("x" + (i - 1), "x" + i, "c0", "c1", Predicate.Op.EQUALS));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+    assertEquals(n - 1, order.size());
+    checkPlan(order, n);
+  }
+
+  /**
+   * When a hash join would otherwise build its table over a large
+   * intermediate result, the two filtered ends of a chain are each joined
+   * to their neighbour first and the results joined, and physicalPlan
+   * instantiates that bushy plan
+   */
+  @Test public void bushyPlan() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.setDegreeOfParallelism(4);
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    String[] aliases = { "a", "b", "c", "d" };
+    for (String alias : aliases) {
+      boolean end = alias.equals("a") || alias.equals("d");
+      lp.addScan(Database.getCatalog().getTableId(end ? "t2" : "t1"), alias);
+      selectivities.put(alias, end ? 0.01 : 1.0);
+    }
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    for (int i = 1; i < aliases.length; i++)
+      joins.add(new LogicalJoinNode(aliases[i - 1], aliases[i], aliases[i - 1] + ".c0",
+          aliases[i] + ".c1", Predicate.Op.EQUALS));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+    assertEquals(3, order.size());
+    assertTrue(order.toString(), checkPlan(order, 4));
+  }
+
+  /** Builds a star of n aliases of t1 and t2 around x0 and orders its joins */
+  private Vector<LogicalJoinNode> orderStar(int n) throws ParsingException {
+    LogicalPlan lp = new LogicalPlan();
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    for (int i = 0; i < n; i++) {
+      lp.addScan(Database.getCatalog().getTableId(i % 2 == 0 ? "t1" : "t2"), "x" + i);
+      selectivities.put("x" + i, 1.0 / (i % 5 + 1));
+    }
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    for (int i = 1; i < n; i++)
+      joins.add(new LogicalJoinNode("x0", "x" + i, "c" + (i % 2), "c0", Predicate.Op.EQUALS));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+    assertEquals(n - 1, order.size());
+    checkPlan(order, n);
+    return order;
+  }
+
+  /**
+   * Above the exhaustive table limit, the greedy and annealed order of a
+   * small query is still the optimal one
+   */
+  @Test public void heuristicOrder() throws Exception {
+    JoinOptimizer.setExhaustiveTableLimit(2);
+    try {
+      orderJoins();
+    } finally {
+      JoinOptimizer.setExhaustiveTableLimit(JoinOptimizer.DEFAULT_EXHAUSTIVE_TABLE_LIMIT);
+    }
+  }
+
+  /**
+   * A 20-table star, far too wide for dynamic programming, is planned
+   * within the time budget
+   */
+  @Test(timeout = 10000) public void wideStar() throws Exception {
+    long start = System.currentTimeMillis();
+    orderStar(20);
+    assertTrue(System.currentTimeMillis() - start
+        < JoinOptimizer.getPlanningTimeBudget() + 2000);
+  }
+
+  /**
+   * Dynamic programming that runs out of time falls back to the greedy order
+   */
+  @Test(timeout = 10000) public void planningBudget() throws Exception {
+    JoinOptimizer.setExhaustiveTableLimit(64);
+    JoinOptimizer.setPlanningTimeBudget(50);
+    try {
+      long start = System.currentTimeMillis();
+      orderStar(24);
+      assertTrue(System.currentTimeMillis() - start < 2000);
+    } finally {
+      JoinOptimizer.setExhaustiveTableLimit(JoinOptimizer.DEFAULT_EXHAUSTIVE_TABLE_LIMIT);
+      JoinOptimizer.setPlanningTimeBudget(JoinOptimizer.DEFAULT_PLANNING_TIME_BUDGET);
+    }
+  }
+
+  /**
+   * The second predicate of a join on a composite key is ordered after the
+   * first, and instantiated as a filter of the first join's result
+   */
+  @Test public void compositeKey() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(Database.getCatalog().getTableId("t1"), "a");
+    lp.addScan(Database.getCatalog().getTableId("t2"), "b");
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    selectivities.put("a", 1.0);
+    selectivities.put("b", 1.0);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS));
+    joins.add(new LogicalJoinNode("a", "b", "a.c1", "b.c1", Predicate.Op.EQUALS));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+    assertTrue(order != joins);
+    assertEquals(2, order.size());
+
+    TransactionId tid = new TransactionId();
+    LogicalJoinNode first = order.get(0);
+    DbIterator plan = JoinOptimizer.instantiateJoin(first,
+        new SeqScan(tid, aliases.get(first.t1Alias), first.t1Alias),
+        new SeqScan(tid, aliases.get(first.t2Alias), first.t2Alias));
+    plan = JoinOptimizer.instantiateJoin(order.get(1), plan, plan);
+    assertTrue(plan instanceof JoinFilter);
+    int n = 0;
+    plan.open();
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    int exact = 0;
+    for (ArrayList<Integer> t1 : tuples1) {
+      for (ArrayList<Integer> t2 : tuples2) {
+        if (t1.get(0).equals(t2.get(0)) && t1.get(1).equals(t2.get(1)))
+          exact++;
+      }
+    }
+    assertEquals(exact, n);
+  }
+
+  /**
+   * The joins of a triangle are ordered: two of them join the three tables,
+   * and the third is applied to their result, which physicalPlan filters
+   */
+  @Test public void triangle() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    for (String alias : new String[] { "a", "b", "c" }) {
+      lp.addScan(Database.getCatalog().getTableId(alias.equals("b") ? "t2" : "t1"), alias);
+      selectivities.put(alias, 1.0);
+    }
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS));
+    joins.add(new LogicalJoinNode("b", "c", "b.c1", "c.c1", Predicate.Op.EQUALS));
+    joins.add(new LogicalJoinNode("c", "a", "c.c0", "a.c1", Predicate.Op.EQUALS));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+    assertTrue(order != joins);
+    assertEquals(3, order.size());
+    HashSet<String> joined = new HashSet<String>();
+    for (int i = 0; i < 2; i++) {
+      joined.add(order.get(i).t1Alias);
+      joined.add(order.get(i).t2Alias);
+    }
+    assertEquals(3, joined.size());
+
+    lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+    lp.addJoin("b.c1", "c.c1", Predicate.Op.EQUALS);
+    lp.addJoin("c.c0", "a.c1", Predicate.Op.EQUALS);
+    lp.addProjectField("a.c0", null);
+    TransactionId tid = new TransactionId();
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    int n = 0;
+    plan.open();
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    HashMap<ArrayList<Integer>, Integer> cs = new HashMap<ArrayList<Integer>, Integer>();
+    for (ArrayList<Integer> c : tuples1) {
+      Integer k = cs.get(c);
+      cs.put(c, k == null ? 1 : k + 1);
+    }
+    int exact = 0;
+    for (ArrayList<Integer> a : tuples1) {
+      for (ArrayList<Integer> b : tuples2) {
+        if (!a.get(0).equals(b.get(0)))
+          continue;
+        ArrayList<Integer> c = new ArrayList<Integer>();
+        c.add(a.get(1));
+        c.add(b.get(1));
+        Integer k = cs.get(c);
+        if (k != null)
+          exact += k;
+      }
+    }
+    assertEquals(exact, n);
+  }
+
+  /**
+   * Joins that do not connect every table keep their order
+   */
+  @Test public void disconnected() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    for (String alias : new String[] { "a", "b", "c", "d" }) {
+      lp.addScan(Database.getCatalog().getTableId("t1"), alias);
+      selectivities.put(alias, 1.0);
+    }
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+    joins.add(new LogicalJoinNode("c", "d", "c0", "c0", Predicate.Op.EQUALS));
+    assertTrue(joins == new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false));
+  }
+
+  /**
+   * The explain output lists every join with its estimates
+   */
+  @Test public void explain() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.setQuery("select * from t1 a, t2 b where a.c0 = b.c0");
+    lp.addScan(Database.getCatalog().getTableId("t1"), "a");
+    lp.addScan(Database.getCatalog().getTableId("t2"), "b");
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    selectivities.put("a", 1.0);
+    selectivities.put("b", 0.5);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS));
+
+    PrintStream out = System.out;
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(buf));
+    try {
+      new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, true);
+    } finally {
+      System.setOut(out);
+    }
+    String text = buf.toString();
+    assertTrue(text, text.contains("1. b.c0 = a.c0 (cost = "));
+    assertTrue(text, text.contains("scan b (cost = 4000.0, card = 1000)"));
+    assertTrue(text, text.contains("scan a (cost = 10000.0, card = 5000)"));
+  }
+
+  /**
+   * Missing statistics are reported as a ParsingException
+   */
+  @Test(expected = ParsingException.class)
+  public void missingStats() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(Database.getCatalog().getTableId("t1"), "a");
+    lp.addScan(Database.getCatalog().getTableId("t2"), "b");
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    selectivities.put("a", 1.0);
+    selectivities.put("b", 1.0);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS));
+    new JoinOptimizer(lp, joins).orderJoins(new HashMap<String, TableStats>(),
+        selectivities, false);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinOptimizerTest.class);
+  }
+}
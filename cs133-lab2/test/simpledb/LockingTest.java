@@ -0,0 +1,335 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockingTest extends SimpleDbTestBase {
+
+  HeapFile file;
+  PageId p0, p1;
+  TransactionId tid1, tid2;
+  BufferPool bp;
+
+  /**
+   * Creates a two-page table and two transactions, with a short lock
+   * timeout so that blocked requests abort quickly
+   */
+  @Before public void createTable() throws Exception {
+    file = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+    Database.getCatalog().addTable(file, "t");
+    p0 = new HeapPageId(file.getId(), 0);
+    p1 = new HeapPageId(file.getId(), 1);
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+    bp = Database.getBufferPool();
+    bp.getLockManager().setTimeout(100);
+  }
+
+  /** @return whether tid gets the page with perm before the lock timeout */
+  private boolean grants(TransactionId tid, PageId pid, Permissions perm)
+      throws Exception {
+    try {
+      bp.getPage(tid, pid, perm);
+      return true;
+    } catch (TransactionAbortedException e) {
+      return false;
+    }
+  }
+
+  /** @return the number of tuples tid sees in the table */
+  private int count(TransactionId tid) throws Exception {
+    DbFileIterator it = file.iterator(tid);
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  /**
+   * Shared locks are compatible with each other but not with exclusive locks
+   */
+  @Test public void sharedLocks() throws Exception {
+    assertTrue(grants(tid1, p0, Permissions.READ_ONLY));
+    assertTrue(grants(tid2, p0, Permissions.READ_ONLY));
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid2, p0));
+    assertFalse(grants(tid2, p0, Permissions.READ_WRITE));
+    assertTrue(grants(tid2, p1, Permissions.READ_WRITE));
+  }
+
+  /**
+   * An exclusive lock excludes every other transaction
+   */
+  @Test public void exclusiveLock() throws Exception {
+    assertTrue(grants(tid1, p0, Permissions.READ_WRITE));
+    assertFalse(grants(tid2, p0, Permissions.READ_ONLY));
+    assertFalse(grants(tid2, p0, Permissions.READ_WRITE));
+    assertFalse(bp.holdsLock(tid2, p0));
+    // the holder may fetch the page again in either mode
+    assertTrue(grants(tid1, p0, Permissions.READ_ONLY));
+    assertTrue(grants(tid1, p0, Permissions.READ_WRITE));
+  }
+
+  /**
+   * The only holder of a shared lock may upgrade it
+   */
+  @Test public void upgrade() throws Exception {
+    assertTrue(grants(tid1, p0, Permissions.READ_ONLY));
+    assertTrue(grants(tid1, p0, Permissions.READ_WRITE));
+    assertTrue(bp.getLockManager().holdsExclusive(tid1, p0));
+    assertFalse(grants(tid2, p0, Permissions.READ_ONLY));
+  }
+
+  /**
+   * A blocked request is granted once the holder completes
+   */
+  @Test public void waitForRelease() throws Exception {
+    bp.getLockManager().setTimeout(LockManager.DEFAULT_TIMEOUT);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    final boolean[] granted = new boolean[1];
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          granted[0] = grants(tid2, p0, Permissions.READ_WRITE);
+        } catch (Exception e) {
+          granted[0] = false;
+        }
+      }
+    };
+    t.start();
+    Thread.sleep(50);
+    assertFalse(granted[0]);
+    bp.transactionComplete(tid1);
+    t.join();
+    assertTrue(granted[0]);
+    assertFalse(bp.holdsLock(tid1, p0));
+  }
+
+  /**
+   * releasePage and transactionComplete give up locks
+   */
+  @Test public void release() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.releasePage(tid1, p0);
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertTrue(grants(tid2, p0, Permissions.READ_WRITE));
+    assertFalse(grants(tid2, p1, Permissions.READ_WRITE));
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p1));
+    assertTrue(grants(tid2, p1, Permissions.READ_WRITE));
+  }
+
+  /**
+   * Committing flushes the transaction's pages; aborting discards them
+   */
+  @Test public void commitAndAbort() throws Exception {
+    int n = count(tid1);
+    bp.transactionComplete(tid1);
+    Tuple t = new Tuple(file.getTupleDesc());
+    t.setField(0, new IntField(1));
+    t.setField(1, new IntField(2));
+
+    TransactionId writer = new TransactionId();
+    bp.insertTuple(writer, file.getId(), t);
+    bp.transactionComplete(writer, false);
+    assertEquals(n, count(tid2));
+    bp.transactionComplete(tid2);
+
+    writer = new TransactionId();
+    bp.insertTuple(writer, file.getId(), t);
+    bp.insertTuple(writer, file.getId(), t);
+    bp.transactionComplete(writer, true);
+    for (int i = 0; i < file.numPages(); i++)
+      assertNull(bp.getPage(tid1, new HeapPageId(file.getId(), i), Permissions.READ_ONLY).isDirty());
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(n + 2, count(new TransactionId()));
+  }
+
+  /** @return a new tuple of the table */
+  private Tuple tuple(int a, int b) {
+    Tuple t = new Tuple(file.getTupleDesc());
+    t.setField(0, new IntField(a));
+    t.setField(1, new IntField(b));
+    return t;
+  }
+
+  /** @return the tuples on page pid, read by tid */
+  private java.util.ArrayList<Tuple> tuples(TransactionId tid, PageId pid) throws Exception {
+    java.util.ArrayList<Tuple> tuples = new java.util.ArrayList<Tuple>();
+    java.util.Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+    while (it.hasNext())
+      tuples.add(it.next());
+    return tuples;
+  }
+
+  /**
+   * Inserting locks the new row exclusively and its page with an intention
+   * lock, so other inserts into the page proceed but readers of it wait
+   */
+  @Test public void insertLocks() throws Exception {
+    LockManager lm = bp.getLockManager();
+    Tuple t = tuple(1, 2);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    bp.insertTuple(tid1, file.getId(), t);
+    assertEquals(p1, t.getRecordId().getPageId());
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertEquals(LockManager.Mode.IX, lm.lockMode(tid1, p1));
+    assertTrue(lm.holdsRowLock(tid1, t.getRecordId()));
+
+    Tuple t2 = tuple(3, 4);
+    bp.insertTuple(tid2, file.getId(), t2);
+    assertEquals(p1, t2.getRecordId().getPageId());
+    assertFalse(grants(tid2, p1, Permissions.READ_ONLY));
+  }
+
+  /**
+   * Deletes of different rows of a page proceed concurrently, while a
+   * delete of the same row waits
+   */
+  @Test public void rowLocks() throws Exception {
+    java.util.ArrayList<Tuple> rows = tuples(tid1, p0);
+    bp.transactionComplete(tid1);
+    tid1 = new TransactionId();
+    bp.deleteTuple(tid1, rows.get(0));
+    bp.deleteTuple(tid2, rows.get(1));
+    try {
+      bp.deleteTuple(tid2, rows.get(0));
+      fail("expected the row to be locked");
+    } catch (TransactionAbortedException e) {
+    }
+    assertFalse(grants(new TransactionId(), p0, Permissions.READ_ONLY));
+
+    bp.setRowLocking(false);
+    TransactionId tid3 = new TransactionId();
+    try {
+      bp.deleteTuple(tid3, rows.get(2));
+      fail("expected the page to be locked");
+    } catch (TransactionAbortedException e) {
+    }
+  }
+
+  /**
+   * Aborting restores the rows the transaction changed on a page another
+   * transaction changed and commits, and the slot of a deleted row is not
+   * reused before its deleter completes
+   */
+  @Test public void rowAbort() throws Exception {
+    java.util.ArrayList<Tuple> rows = tuples(tid1, p1);
+    int n = count(tid1);
+    bp.transactionComplete(tid1);
+    tid1 = new TransactionId();
+
+    Tuple deleted = rows.get(0);
+    bp.deleteTuple(tid1, deleted);
+    // the deleter itself may reuse the slot
+    Tuple inserted = tuple(5, 6);
+    bp.insertTuple(tid1, file.getId(), inserted);
+
+    Tuple other = tuple(7, 8);
+    bp.insertTuple(tid2, file.getId(), other);
+    assertFalse(other.getRecordId().equals(deleted.getRecordId()));
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+
+    TransactionId reader = new TransactionId();
+    assertEquals(n + 1, count(reader));
+    assertEquals(deleted.getField(0),
+        ((HeapPage) bp.getPage(reader, p1, Permissions.READ_ONLY))
+            .getTuple(deleted.getRecordId().tupleno()).getField(0));
+    bp.transactionComplete(reader);
+
+    // the pages on disk agree
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(n + 1, count(new TransactionId()));
+  }
+
+  /** Starts a thread in which tid requests pid with perm; granted[0] is
+      set once the page is granted and aborted[0] if tid is aborted. */
+  private Thread request(final TransactionId tid, final PageId pid,
+      final Permissions perm, final boolean[] granted, final boolean[] aborted) {
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          bp.getPage(tid, pid, perm);
+          granted[0] = true;
+        } catch (TransactionAbortedException e) {
+          aborted[0] = true;
+        } catch (DbException e) {
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  /**
+   * Two transactions waiting for each other's pages are detected as a
+   * deadlock, and the younger one is aborted
+   */
+  @Test public void deadlock() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setTimeout(0);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    boolean[] granted = new boolean[1], aborted = new boolean[1];
+    Thread t = request(tid1, p1, Permissions.READ_WRITE, granted, aborted);
+    Thread.sleep(50);
+    assertFalse(granted[0]);
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_WRITE);
+      fail("expected the younger transaction to be aborted");
+    } catch (TransactionAbortedException e) {
+    }
+    assertEquals(1, lm.getDeadlocks());
+    assertTrue(lm.getDeadlockRate() > 0);
+    bp.transactionComplete(tid2, false);
+    t.join();
+    assertTrue(granted[0]);
+    assertFalse(aborted[0]);
+  }
+
+  /**
+   * When the younger transaction is the one already waiting, it is woken
+   * up and aborted
+   */
+  @Test public void upgradeDeadlock() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setTimeout(0);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    boolean[] granted = new boolean[1], aborted = new boolean[1];
+    Thread t = request(tid2, p0, Permissions.READ_WRITE, granted, aborted);
+    Thread.sleep(50);
+    assertFalse(granted[0] || aborted[0]);
+    boolean[] granted1 = new boolean[1], aborted1 = new boolean[1];
+    Thread t1 = request(tid1, p0, Permissions.READ_WRITE, granted1, aborted1);
+    t.join();
+    assertTrue(aborted[0]);
+    bp.transactionComplete(tid2, false);
+    t1.join();
+    assertTrue(granted1[0]);
+    assertEquals(1, lm.getDeadlocks());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockingTest.class);
+  }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+  static final int SEGMENT_SIZE = 256;
+
+  File manifest;
+
+  /**
+   * Picks a fresh file for the manifest of a segmented log
+   */
+  @Before public void createManifest() throws Exception {
+    manifest = File.createTempFile("logtest", "");
+    manifest.delete();
+  }
+
+  @After public void deleteSegments() {
+    for (File f : segmentFiles())
+      f.delete();
+    manifest.delete();
+  }
+
+  /** @return the segment files of the log */
+  private ArrayList<File> segmentFiles() {
+    ArrayList<File> files = new ArrayList<File>();
+    for (File f : manifest.getAbsoluteFile().getParentFile().listFiles()) {
+      if (f.getName().startsWith(manifest.getName() + "."))
+        files.add(f);
+    }
+    return files;
+  }
+
+  /** @return the LSN of the BEGIN record of a new transaction */
+  private long begin(LogFile log, TransactionId tid) throws Exception {
+    log.logXactionBegin(tid);
+    return log.getLastLsn();
+  }
+
+  /** Logs transactions that begin and commit */
+  private void commits(LogFile log, int n) throws Exception {
+    for (int i = 0; i < n; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+  }
+
+  /**
+   * A checkpoint deletes the segments before the first record of the
+   * transactions running at the time, and keeps the rest
+   */
+  @Test public void truncation() throws Exception {
+    LogFile log = new LogFile(manifest, SEGMENT_SIZE);
+    commits(log, 40);
+    long first = begin(log, new TransactionId());
+    commits(log, 40);
+    int before = segmentFiles().size();
+
+    log.logCheckpoint();
+    ArrayList<File> after = segmentFiles();
+    assertTrue(after.size() < before);
+    for (File f : after) {
+      String name = f.getName();
+      long i = Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+      assertTrue(i >= first / SEGMENT_SIZE);
+    }
+    assertTrue(new File(manifest.getPath() + "." + first / SEGMENT_SIZE).exists());
+  }
+
+  /**
+   * A log reopened keeps its segment size, recovers records that span
+   * segments, and appends after them
+   */
+  @Test public void reopen() throws Exception {
+    LogFile log = new LogFile(manifest, 16); // smaller than a record
+    commits(log, 5);
+    begin(log, new TransactionId());
+    log.logCheckpoint();
+    commits(log, 5);
+    log.force();
+    long end = log.getLastLsn();
+    int files = segmentFiles().size();
+
+    log = new LogFile(manifest, SEGMENT_SIZE);
+    log.recover();
+    assertTrue(log.getLastLsn() > end); // the loser's abort record
+    assertTrue(segmentFiles().size() > files);
+    commits(log, 1);
+    assertFalse(segmentFiles().isEmpty());
+    assertEquals(0, log.tidToFirstLogRecord.size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogFileTest.class);
+  }
+}
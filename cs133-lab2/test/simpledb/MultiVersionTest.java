@@ -0,0 +1,167 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MultiVersionTest extends SimpleDbTestBase {
+
+  HeapFile file;
+  BufferPool bp;
+  VersionStore store;
+
+  /**
+   * Creates a two-page table and turns on multi-version mode, with a short
+   * lock timeout so that blocked requests abort quickly
+   */
+  @Before public void createTable() throws Exception {
+    file = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+    Database.getCatalog().addTable(file, "t");
+    bp = Database.getBufferPool();
+    bp.setMultiVersion(true);
+    bp.getLockManager().setTimeout(100);
+    store = bp.getVersionStore();
+  }
+
+  /** @return the number of tuples tid sees in the table */
+  private int count(TransactionId tid) throws Exception {
+    DbFileIterator it = file.iterator(tid);
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  /** @return the first tuple tid sees in the table */
+  private Tuple first(TransactionId tid) throws Exception {
+    DbFileIterator it = file.iterator(tid);
+    it.open();
+    Tuple t = it.next();
+    it.close();
+    return t;
+  }
+
+  private Tuple tuple(int a, int b) {
+    Tuple t = new Tuple(file.getTupleDesc());
+    t.setField(0, new IntField(a));
+    t.setField(1, new IntField(b));
+    return t;
+  }
+
+  /**
+   * A transaction sees the table as of its snapshot, not the rows other
+   * transactions insert or delete and commit later, but sees its own
+   */
+  @Test public void snapshot() throws Exception {
+    Transaction reader = new Transaction();
+    reader.start();
+    assertEquals(600, count(reader.getId()));
+
+    TransactionId writer = new TransactionId();
+    bp.deleteTuple(writer, first(writer));
+    bp.insertTuple(writer, file.getId(), tuple(1, 2));
+    bp.insertTuple(writer, file.getId(), tuple(3, 4));
+    assertEquals(601, count(writer));
+    assertEquals(600, count(reader.getId()));
+    bp.transactionComplete(writer);
+
+    assertEquals(600, count(reader.getId()));
+    assertEquals(601, count(new TransactionId()));
+    reader.commit();
+  }
+
+  /**
+   * Scans neither wait for the locks of writers nor block them
+   */
+  @Test public void readersDoNotBlock() throws Exception {
+    TransactionId writer = new TransactionId();
+    PageId p0 = new HeapPageId(file.getId(), 0);
+    bp.getPage(writer, p0, Permissions.READ_WRITE);
+    TransactionId reader = new TransactionId();
+    assertEquals(600, count(reader));
+    assertFalse(bp.holdsLock(reader, p0));
+
+    bp.insertTuple(writer, file.getId(), tuple(1, 2));
+    bp.deleteTuple(writer, first(writer));
+    assertEquals(600, count(reader));
+    bp.transactionComplete(writer);
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * A transaction that deletes a row another transaction changed after its
+   * snapshot aborts
+   */
+  @Test public void writeConflict() throws Exception {
+    TransactionId tid1 = new TransactionId();
+    TransactionId tid2 = new TransactionId();
+    Tuple t1 = first(tid1);
+    Tuple t2 = first(tid2);
+    bp.deleteTuple(tid2, t2);
+    bp.transactionComplete(tid2);
+    try {
+      bp.deleteTuple(tid1, t1);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      bp.transactionComplete(tid1, false);
+    }
+    assertEquals(599, count(new TransactionId()));
+  }
+
+  /**
+   * An aborted transaction's rows are never seen, and the rows it deleted
+   * are seen again
+   */
+  @Test public void abort() throws Exception {
+    TransactionId reader = new TransactionId();
+    assertEquals(600, count(reader));
+    TransactionId writer = new TransactionId();
+    bp.insertTuple(writer, file.getId(), tuple(1, 2));
+    bp.deleteTuple(writer, first(writer));
+    bp.deleteTuple(writer, first(writer));
+    assertEquals(599, count(writer));
+    bp.transactionComplete(writer, false);
+    assertEquals(600, count(reader));
+    assertEquals(600, count(new TransactionId()));
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * Versions are kept while a running transaction may see them, and
+   * collected once every transaction sees the latest ones
+   */
+  @Test public void garbageCollection() throws Exception {
+    TransactionId reader = new TransactionId();
+    assertEquals(600, count(reader));
+    for (int i = 0; i < 3; i++) {
+      TransactionId writer = new TransactionId();
+      bp.deleteTuple(writer, first(writer));
+      bp.insertTuple(writer, file.getId(), tuple(i, i));
+      bp.transactionComplete(writer);
+    }
+    assertTrue(store.size() > 0);
+    assertEquals(600, count(reader));
+    bp.transactionComplete(reader);
+    assertEquals(0, store.size());
+    assertEquals(600, count(new TransactionId()));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MultiVersionTest.class);
+  }
+}
@@ -0,0 +1,57 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Vector;
+
+import org.junit.Test;
+
+public class PlanCacheTest {
+
+  /**
+   * Plans are found by their join set, also after the table has grown, and
+   * adding a plan for a cached set replaces it
+   */
+  @Test public void addAndReplace() {
+    PlanCache pc = new PlanCache();
+    Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+    for (long s = 1; s <= 1000; s++)
+      pc.addPlan(s * 0x10001L, s, (int) s, order);
+    pc.addPlan(-1L, 1.5, 7, order);
+    assertEquals(1001, pc.size());
+    for (long s = 1; s <= 1000; s++) {
+      assertTrue(pc.contains(s * 0x10001L));
+      assertEquals(s, pc.getCost(s * 0x10001L), 0.0);
+      assertEquals((int) s, pc.getCard(s * 0x10001L));
+    }
+    assertEquals(7, pc.getCard(-1L));
+
+    Vector<LogicalJoinNode> better = new Vector<LogicalJoinNode>();
+    pc.addPlan(0x10001L, 0.5, 3, better);
+    assertEquals(1001, pc.size());
+    assertTrue(better == pc.getOrder(0x10001L));
+    assertEquals(0.5, pc.getCost(0x10001L), 0.0);
+  }
+
+  /**
+   * Sets without a plan are not found
+   */
+  @Test public void missing() {
+    PlanCache pc = new PlanCache();
+    assertFalse(pc.contains(PlanCache.bit(3)));
+    assertNull(pc.getOrder(PlanCache.bit(3)));
+    assertEquals(0xffL, PlanCache.allJoins(8));
+    assertEquals(-1L, PlanCache.allJoins(64));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PlanCacheTest.class);
+  }
+}
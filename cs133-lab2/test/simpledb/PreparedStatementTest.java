@@ -0,0 +1,197 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+  ArrayList<ArrayList<Integer>> tuples1;
+  ArrayList<ArrayList<Integer>> tuples2;
+  Parser parser;
+
+  /**
+   * Creates two tables whose first columns share a domain of 100 values
+   */
+  @Before public void createTables() throws Exception {
+    tuples1 = new ArrayList<ArrayList<Integer>>();
+    tuples2 = new ArrayList<ArrayList<Integer>>();
+    HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, tuples1, "c");
+    HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 200, 100, null, tuples2, "c");
+    Database.getCatalog().addTable(f1, "t1");
+    Database.getCatalog().addTable(f2, "t2");
+    TableStats.setTableStats("t1", new TableStats(f1.getId(), 1000));
+    TableStats.setTableStats("t2", new TableStats(f2.getId(), 1000));
+    parser = new Parser();
+  }
+
+  /** @return the number of tuples the query returns */
+  private static int count(Query q) throws Exception {
+    int n = 0;
+    q.start();
+    while (q.hasNext()) {
+      q.next();
+      n++;
+    }
+    q.close();
+    return n;
+  }
+
+  /** @return the exact size of t1 join t2 on c0 where t1.c1 < v */
+  private int expected(int v) {
+    int n = 0;
+    for (ArrayList<Integer> a : tuples1) {
+      for (ArrayList<Integer> b : tuples2) {
+        if (a.get(1) < v && a.get(0).equals(b.get(0)))
+          n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Constants and whitespace are normalized away
+   */
+  @Test public void normalize() {
+    PreparedStatement a = parser.prepare("select *  from t1\n where t1.c0 = 5 and t1.c1 > 'x''y';");
+    PreparedStatement b = parser.prepare("select * from t1 where t1.c0 = ? and t1.c1 > 17;");
+    assertEquals("select * from t1 where t1.c0 = ? and t1.c1 > ?;", a.getNormalizedText());
+    assertEquals(a.getNormalizedText(), b.getNormalizedText());
+    assertEquals(0, a.getParameterCount());
+    assertEquals(1, b.getParameterCount());
+  }
+
+  /**
+   * A prepared query runs with each value of its parameter, planned once
+   */
+  @Test public void parameters() throws Exception {
+    StatementCache cache = Database.getStatementCache();
+    PreparedStatement ps = parser.prepare(
+        "select * from t1, t2 where t1.c0 = t2.c0 and t1.c1 < ?;");
+    TransactionId tid = new TransactionId();
+    for (int v : new int[] { 10, 50, 100 }) {
+      ps.setInt(1, v);
+      assertEquals(expected(v), count(ps.getQuery(tid)));
+    }
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getMisses());
+    assertEquals(2, cache.getHits());
+
+    // the same shape with other constants uses the same plan
+    assertEquals(expected(30), count(parser.prepare(
+        "select * from t1, t2 where t1.c0 = t2.c0 and t1.c1 < 30;").getQuery(tid)));
+    assertEquals(3, cache.getHits());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Running a query with an unset parameter fails
+   */
+  @Test(expected = ParsingException.class)
+  public void unsetParameter() throws Exception {
+    parser.prepare("select * from t1 where t1.c0 = ?;").getQuery(new TransactionId());
+  }
+
+  /**
+   * Plans are rebuilt after the catalog or the statistics change
+   */
+  @Test public void invalidation() throws Exception {
+    StatementCache cache = Database.getStatementCache();
+    PreparedStatement ps = parser.prepare("select * from t1 where t1.c1 < 5;");
+    TransactionId tid = new TransactionId();
+    assertNotNull(ps.getQuery(tid));
+    assertNotNull(ps.getQuery(tid));
+    assertEquals(1, cache.getHits());
+
+    TableStats.setTableStats("t1", TableStats.getTableStats("t1"));
+    assertNotNull(ps.getQuery(tid));
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(1, 1, null, null), "t3");
+    assertNotNull(ps.getQuery(tid));
+    assertEquals(1, cache.getHits());
+    assertEquals(3, cache.getMisses());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The least recently used plan is evicted first
+   */
+  @Test public void eviction() throws Exception {
+    StatementCache cache = Database.getStatementCache();
+    cache.setCapacity(2);
+    TransactionId tid = new TransactionId();
+    parser.prepare("select * from t1 where t1.c0 = 1;").getQuery(tid);
+    parser.prepare("select * from t1 where t1.c1 = 1;").getQuery(tid);
+    parser.prepare("select * from t1 where t1.c0 = 2;").getQuery(tid);
+    parser.prepare("select * from t2 where t2.c0 = 1;").getQuery(tid);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getHits());
+    parser.prepare("select * from t1 where t1.c0 = 3;").getQuery(tid);
+    assertEquals(2, cache.getHits());
+    parser.prepare("select * from t1 where t1.c1 = 3;").getQuery(tid);
+    assertEquals(2, cache.getHits());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /** @return the exact size of t1 join t2 on c0 where t2.c1 = v */
+  private int expectedSubquery(int v) {
+    int n = 0;
+    for (ArrayList<Integer> a : tuples1) {
+      for (ArrayList<Integer> b : tuples2) {
+        if (b.get(1) == v && a.get(0).equals(b.get(0)))
+          n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Subqueries are planned with their constants and parameter values,
+   * and their plans are not cached
+   */
+  @Test public void subqueryConstants() throws Exception {
+    StatementCache cache = Database.getStatementCache();
+    TransactionId tid = new TransactionId();
+    assertEquals(expectedSubquery(1), count(parser.prepare(
+        "select t1.c0 from t1 where t1.c0 = (select t2.c0 from t2 where t2.c1 = 1);")
+        .getQuery(tid)));
+
+    PreparedStatement ps = parser.prepare(
+        "select t1.c0 from t1 where t1.c0 = (select t2.c0 from t2 where t2.c1 = ?);");
+    for (int v : new int[] { 1, 7 }) {
+      ps.setInt(1, v);
+      assertEquals(expectedSubquery(v), count(ps.getQuery(tid)));
+    }
+    assertEquals(0, cache.size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Statements run by the parser go through the cache
+   */
+  @Test public void processNextStatement() throws Exception {
+    StatementCache cache = Database.getStatementCache();
+    parser.processNextStatement("select * from t1 where t1.c0 = 1;");
+    parser.processNextStatement("select * from t1 where t1.c0 = 2;");
+    assertEquals(1, cache.getHits());
+    assertTrue(cache.size() == 1);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PreparedStatementTest.class);
+  }
+}
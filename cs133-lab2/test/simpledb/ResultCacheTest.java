@@ -0,0 +1,216 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ResultCacheTest extends SimpleDbTestBase {
+
+  Parser parser;
+  ResultCache cache;
+
+  /**
+   * Creates two small tables and enables the result cache
+   */
+  @Before public void createTables() throws Exception {
+    HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 300, 100, null, null, "c");
+    HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 100, 100, null, null, "c");
+    Database.getCatalog().addTable(f1, "t1");
+    Database.getCatalog().addTable(f2, "t2");
+    TableStats.setTableStats("t1", new TableStats(f1.getId(), 1000));
+    TableStats.setTableStats("t2", new TableStats(f2.getId(), 1000));
+    parser = new Parser();
+    cache = Database.getResultCache();
+    cache.setMemoryLimit(1 << 20);
+  }
+
+  /** @return the result printed by running sql, without the plan output */
+  private String run(String sql) throws Exception {
+    return run(null, sql);
+  }
+
+  /** @return the result printed by running sql in tid, or in a transaction
+      of its own if tid is null, without the plan output */
+  private String run(TransactionId tid, String sql) throws Exception {
+    PrintStream out = System.out;
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(buf));
+    try {
+      if (tid == null)
+        parser.processNextStatement(sql);
+      else
+        parser.prepare(sql).getQuery(tid).execute();
+    } finally {
+      System.setOut(out);
+    }
+    String text = buf.toString();
+    int start = text.indexOf("---");
+    int end = text.indexOf(" rows");
+    return start < 0 || end < 0 ? text : text.substring(start, end);
+  }
+
+  /** Deletes the first tuple of a table with c0 < 10 */
+  private void deleteOne(String table) throws Exception {
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, Database.getCatalog().getTableId(table), table);
+    DbIterator it = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)), scan);
+    it.open();
+    Tuple t = it.next();
+    it.close();
+    Database.getBufferPool().deleteTuple(tid, t);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A repeated query is answered from the cache with the same result
+   */
+  @Test public void repeat() throws Exception {
+    String sql = "select * from t1, t2 where t1.c0 = t2.c0 and t1.c1 < 50;";
+    String first = run(sql);
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.size());
+    assertEquals(first, run(sql));
+    assertEquals(1, cache.getHits());
+    assertTrue(cache.getMemoryUsed() > 0);
+  }
+
+  /**
+   * Inserting into or deleting from a table the query reads invalidates
+   * its result; modifying another table does not
+   */
+  @Test public void invalidation() throws Exception {
+    String sql = "select * from t1 where t1.c0 < 10;";
+    String before = run(sql);
+    run("insert into t2 values (1, 1);");
+    assertEquals(before, run(sql));
+    assertEquals(1, cache.getHits());
+
+    run("insert into t1 values (1, 1);");
+    String inserted = run(sql);
+    assertEquals(1, cache.getHits());
+    assertTrue(inserted.length() > before.length());
+
+    deleteOne("t1");
+    String deleted = run(sql);
+    assertEquals(1, cache.getHits());
+    assertTrue(deleted.length() < inserted.length());
+    assertEquals(deleted, run(sql));
+    assertEquals(2, cache.getHits());
+  }
+
+  /**
+   * A transaction that modified a table neither reads nor fills the cache
+   * for queries over it until it completes
+   */
+  @Test public void ownWrites() throws Exception {
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = parser.generateLogicalPlan(tid, "select * from t1;");
+    ResultCache.Key key = cache.keyFor(lp, tid);
+    assertTrue(key != null);
+    Tuple t = new Tuple(Database.getCatalog().getTupleDesc(Database.getCatalog().getTableId("t1")));
+    t.setField(0, new IntField(1));
+    t.setField(1, new IntField(2));
+    Database.getBufferPool().insertTuple(tid, Database.getCatalog().getTableId("t1"), t);
+    assertTrue(cache.keyFor(lp, tid) == null);
+    Database.getBufferPool().transactionComplete(tid);
+    assertTrue(cache.keyFor(lp, tid) != null);
+  }
+
+  /**
+   * A result taken from the cache locks its tables until the transaction
+   * completes, so another transaction cannot change them in between two
+   * reads
+   */
+  @Test public void hitLocks() throws Exception {
+    String sql = "select * from t1 where t1.c0 < 10;";
+    String before = run(sql);
+    Transaction reader = new Transaction();
+    reader.start();
+    assertEquals(before, run(reader.getId(), sql));
+    assertEquals(1, cache.getHits());
+
+    Database.getBufferPool().getLockManager().setTimeout(100);
+    int tableid = Database.getCatalog().getTableId("t1");
+    Tuple t = new Tuple(Database.getCatalog().getTupleDesc(tableid));
+    t.setField(0, new IntField(1));
+    t.setField(1, new IntField(2));
+    TransactionId writer = new TransactionId();
+    try {
+      Database.getBufferPool().insertTuple(writer, tableid, t);
+      fail("expected the writer to wait for the reader's lock");
+    } catch (TransactionAbortedException e) {
+      // the reader holds t1
+    } finally {
+      Database.getBufferPool().getLockManager()
+          .setTimeout(LockManager.DEFAULT_TIMEOUT);
+    }
+    Database.getBufferPool().transactionComplete(writer, false);
+    assertEquals(before, run(reader.getId(), sql));
+    reader.commit();
+  }
+
+  /**
+   * In multi-version mode, a transaction whose snapshot misses a commit to
+   * a table neither fills the cache with its older result nor reads the
+   * newer one
+   */
+  @Test public void oldSnapshot() throws Exception {
+    Database.getBufferPool().setMultiVersion(true);
+    String sql = "select t2.c0 from t2;";
+    Transaction reader = new Transaction();
+    reader.start();
+    run("insert into t2 values (1, 1);");
+
+    String old = run(reader.getId(), sql);
+    String current = run(sql);
+    assertTrue(current.length() > old.length());
+    assertEquals(0, cache.getHits());
+    assertEquals(current, run(sql));
+    assertEquals(1, cache.getHits());
+    assertEquals(old, run(reader.getId(), sql));
+    assertEquals(1, cache.getHits());
+    reader.commit();
+  }
+
+  /**
+   * The least recently used results are evicted to stay under the memory
+   * limit, and results larger than the limit are not cached
+   */
+  @Test public void memoryLimit() throws Exception {
+    TupleDesc td = Database.getCatalog().getTupleDesc(Database.getCatalog().getTableId("t1"));
+    cache.setMemoryLimit(ResultCache.estimateSize(td, 170));
+    run("select * from t1;");
+    assertEquals(0, cache.size());
+    run("select * from t2;");
+    run("select * from t2 where t2.c0 < 50;");
+    assertEquals(2, cache.size());
+    run("select * from t2;");
+    run("select * from t2 where t2.c1 < 50;");
+    assertEquals(2, cache.size());
+    assertTrue(cache.getMemoryUsed() <= cache.getMemoryLimit());
+    run("select * from t2;");
+    assertEquals(2, cache.getHits());
+
+    cache.setMemoryLimit(0);
+    assertEquals(0, cache.size());
+    run("select * from t2;");
+    assertEquals(2, cache.getHits());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ResultCacheTest.class);
+  }
+}
@@ -0,0 +1,336 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 10000;
+  private static final int MAX_VALUE = 1000;
+
+  ArrayList<ArrayList<Integer>> tuples;
+  HeapFile f;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTables() throws Exception {
+    tuples = new ArrayList<ArrayList<Integer>>();
+    f = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples);
+  }
+
+  /**
+   * Unit test for TableStats.totalTuples(), estimateScanCost() and
+   * estimateTableCardinality()
+   */
+  @Test public void sizes() {
+    TableStats s = new TableStats(f.getId(), 1000);
+    assertEquals(ROWS, s.totalTuples());
+    assertEquals(f.numPages() * 1000.0, s.estimateScanCost(), 0.0);
+    assertEquals(ROWS / 2, s.estimateTableCardinality(0.5));
+  }
+
+  /**
+   * Unit test for TableStats.estimateSelectivity() against the actual data
+   */
+  @Test public void selectivity() {
+    TableStats s = new TableStats(f.getId(), 1000);
+    int[] constants = { -1, 0, 100, 500, 999, 2000 };
+    for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+        Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+      for (int c : constants) {
+        int matching = 0;
+        for (ArrayList<Integer> t : tuples) {
+          if (new IntField(t.get(1)).compare(op, new IntField(c)))
+            matching++;
+        }
+        double actual = (double) matching / ROWS;
+        double estimate = s.estimateSelectivity(1, op, new IntField(c));
+        assertEquals(op + " " + c, actual, estimate, 0.02);
+      }
+    }
+  }
+
+  /**
+   * Unit test for TableStats min/max values and distinct counts
+   */
+  @Test public void columns() {
+    TableStats s = new TableStats(f.getId(), 1000);
+    for (int col = 0; col < 3; col++) {
+      HashSet<Integer> values = new HashSet<Integer>();
+      int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+      for (ArrayList<Integer> t : tuples) {
+        values.add(t.get(col));
+        min = Math.min(min, t.get(col));
+        max = Math.max(max, t.get(col));
+      }
+      // HyperLogLog estimate, standard error ~1.6%
+      assertEquals(values.size(), s.numDistinctValues(col), values.size() * 0.05);
+      assertEquals(min, s.minValue(col));
+      assertEquals(max, s.maxValue(col));
+    }
+    assertTrue(s.avgSelectivity(0, Predicate.Op.EQUALS) < 0.01);
+  }
+
+  /**
+   * Values read after the histogram's range was chosen from the first
+   * HISTOGRAM_BUFFER values of a sorted column are still estimated from the
+   * overflow buckets
+   */
+  @Test public void sortedColumn() throws Exception {
+    ArrayList<ArrayList<Integer>> sorted = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < ROWS; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(i);
+      sorted.add(t);
+    }
+    File temp = File.createTempFile("sorted", ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(sorted, temp, BufferPool.PAGE_SIZE, 1);
+    HeapFile g = Utility.openHeapFile(1, temp);
+    TableStats s = new TableStats(g.getId(), 1000);
+    assertEquals(ROWS - 1, s.maxValue(0));
+    for (int c : new int[] { 1000, 5000, 7000, 9500 }) {
+      double estimate = s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(c));
+      assertEquals("< " + c, (double) c / ROWS, estimate, 0.02);
+    }
+  }
+
+  /**
+   * Unit test for TableStats on a column stored in sorted order whose values
+   * are not spread evenly: the histogram must cover the whole column, not
+   * just the values read first
+   */
+  @Test public void sortedSkewedColumn() throws Exception {
+    int rows = 4 * ROWS;
+    ArrayList<ArrayList<Integer>> sorted = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < rows; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(i * i);
+      sorted.add(t);
+    }
+    File temp = File.createTempFile("sorted", ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(sorted, temp, BufferPool.PAGE_SIZE, 1);
+    HeapFile g = Utility.openHeapFile(1, temp);
+    TableStats s = new TableStats(g.getId(), 1000);
+    int median = (rows / 2) * (rows / 2);
+    assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(median)), 0.02);
+    for (int q : new int[] { 10, 25, 75, 90 }) {
+      int c = (rows * q / 100) * (rows * q / 100);
+      assertEquals("< " + c, q / 100.0,
+          s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(c)), 0.02);
+    }
+  }
+
+  /**
+   * Unit test for block-sampled TableStats on a table of ~200 pages
+   */
+  @Test public void sampling() throws Exception {
+    ArrayList<ArrayList<Integer>> big = new ArrayList<ArrayList<Integer>>();
+    HeapFile g = SystemTestUtil.createRandomHeapFile(2, 100000, MAX_VALUE, null, big);
+    TableStats s = new TableStats(g.getId(), 1000, 0.25);
+
+    assertEquals(0.25, s.getSampleRate(), 0.01);
+    assertEquals(g.numPages() * 1000.0, s.estimateScanCost(), 0.0);
+    // pages are full except the last, so the scaled count is nearly exact
+    assertEquals(100000, s.totalTuples(), 1000 + s.totalTuplesErrorBound());
+    assertTrue(s.selectivityErrorBound() > 0 && s.selectivityErrorBound() < 0.01);
+
+    int matching = 0;
+    for (ArrayList<Integer> t : big) {
+      if (t.get(0) < 250)
+        matching++;
+    }
+    assertEquals(matching / 100000.0,
+        s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(250)),
+        0.02 + s.selectivityErrorBound());
+    assertEquals(MAX_VALUE, s.numDistinctValues(1), MAX_VALUE * 0.1);
+
+    // small tables are read in full whatever the sample rate
+    TableStats full = new TableStats(f.getId(), 1000, 0.01);
+    assertEquals(1.0, full.getSampleRate(), 0.0);
+    assertEquals(ROWS, full.totalTuples());
+    assertEquals(0.0, full.selectivityErrorBound(), 0.0);
+  }
+
+  /**
+   * Statistics written to a stats file are read back lazily, and recomputed
+   * once the table has grown past the drift threshold
+   */
+  @Test public void persistence() throws Exception {
+    File file = File.createTempFile("tablestats", ".stats");
+    file.delete();
+    file.deleteOnExit();
+    Database.getCatalog().addTable(f, "persist_f");
+    try {
+      TableStats.loadStatistics(file, 1.0);
+      assertTrue(file.length() > 0);
+      TableStats computed = TableStats.getTableStats("persist_f");
+
+      // a restart reads the stats back instead of scanning the table
+      TableStats.loadStatistics(file, 1.0);
+      TableStats loaded = TableStats.getTableStats("persist_f");
+      assertTrue(loaded != computed);
+      assertEquals(computed.totalTuples(), loaded.totalTuples());
+      assertEquals(computed.estimateScanCost(), loaded.estimateScanCost(), 0.0);
+      for (int col = 0; col < 3; col++) {
+        assertEquals(computed.numDistinctValues(col), loaded.numDistinctValues(col));
+        assertEquals(computed.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(300)),
+            loaded.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(300)), 0.0);
+      }
+
+      // grow the table by more than DRIFT_THRESHOLD
+      TransactionId tid = new TransactionId();
+      for (int i = 0; i < ROWS / 2; i++) {
+        Tuple t = new Tuple(f.getTupleDesc());
+        for (int col = 0; col < 3; col++)
+          t.setField(col, new IntField(i % MAX_VALUE));
+        f.insertTuple(tid, t);
+      }
+      Database.getBufferPool().transactionComplete(tid);
+      TableStats.loadStatistics(file, 1.0);
+      assertEquals(ROWS + ROWS / 2, TableStats.getTableStats("persist_f").totalTuples());
+    } finally {
+      TableStats.unloadStatistics();
+    }
+  }
+
+  /**
+   * Inserts and deletes update the statistics in memory when their
+   * transaction commits, not when it aborts, and passing REANALYZE_THRESHOLD
+   * recomputes them in the background
+   */
+  @Test public void incrementalMaintenance() throws Exception {
+    Database.getCatalog().addTable(f, "incr_f");
+    TableStats s = new TableStats(f.getId(), 1000);
+    TableStats.setTableStats("incr_f", s);
+    double before = s.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(MAX_VALUE - 1));
+    assertEquals(0.0, before, 0.0);
+    double cost = s.estimateScanCost();
+
+    // values above the old maximum show up in the histogram on commit
+    TransactionId tid = new TransactionId();
+    int inserted = (int) (ROWS * TableStats.REANALYZE_THRESHOLD) / 2;
+    for (int i = 0; i < inserted; i++) {
+      Tuple t = new Tuple(f.getTupleDesc());
+      for (int col = 0; col < 3; col++)
+        t.setField(col, new IntField(MAX_VALUE + i));
+      Database.getBufferPool().insertTuple(tid, f.getId(), t);
+    }
+    assertEquals(ROWS, s.totalTuples());
+    Database.getBufferPool().transactionComplete(tid);
+    assertTrue(TableStats.getTableStats("incr_f") == s);
+    assertEquals(ROWS + inserted, s.totalTuples());
+    assertEquals(inserted, s.getModificationCount());
+    assertEquals(MAX_VALUE + inserted - 1, s.maxValue(0));
+    assertEquals((double) inserted / (ROWS + inserted),
+        s.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(MAX_VALUE - 1)), 0.01);
+    assertEquals(f.numPages() * 1000.0, s.estimateScanCost(), 0.0);
+    assertTrue(s.estimateScanCost() > cost);
+
+    // an aborted transaction leaves the statistics alone
+    tid = new TransactionId();
+    for (int i = 0; i < inserted; i++) {
+      Tuple t = new Tuple(f.getTupleDesc());
+      for (int col = 0; col < 3; col++)
+        t.setField(col, new IntField(-1));
+      Database.getBufferPool().insertTuple(tid, f.getId(), t);
+    }
+    Database.getBufferPool().transactionComplete(tid, false);
+    assertEquals(ROWS + inserted, s.totalTuples());
+    assertEquals(inserted, s.getModificationCount());
+    assertTrue(s.minValue(0) >= 0);
+
+    // deleting the same number of tuples again passes the threshold
+    tid = new TransactionId();
+    DbFileIterator it = f.iterator(tid);
+    it.open();
+    ArrayList<Tuple> victims = new ArrayList<Tuple>();
+    while (victims.size() <= inserted && it.hasNext())
+      victims.add(it.next());
+    it.close();
+    for (Tuple t : victims)
+      Database.getBufferPool().deleteTuple(tid, t);
+    Database.getBufferPool().transactionComplete(tid);
+    assertEquals(ROWS - 1, s.totalTuples());
+
+    assertTrue(TableStats.awaitReanalysis(60000));
+    TableStats fresh = TableStats.getTableStats("incr_f");
+    assertTrue(fresh != s);
+    assertEquals(0, fresh.getModificationCount());
+    assertEquals(ROWS - 1, fresh.totalTuples());
+  }
+
+  /**
+   * A re-analysis whose scan is aborted keeps the old statistics, and the
+   * next modification schedules it again
+   */
+  @Test public void failedReanalysis() throws Exception {
+    Database.getCatalog().addTable(f, "retry_f");
+    TableStats s = new TableStats(f.getId(), 1000);
+    assertTrue(s.isComplete());
+    TableStats.setTableStats("retry_f", s);
+    ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+    for (int i = 0; i <= ROWS * TableStats.REANALYZE_THRESHOLD; i++) {
+      Tuple t = new Tuple(f.getTupleDesc());
+      for (int col = 0; col < 3; col++)
+        t.setField(col, new IntField(i));
+      inserted.add(t);
+    }
+    ArrayList<Tuple> none = new ArrayList<Tuple>();
+
+    LockManager lm = Database.getBufferPool().getLockManager();
+    lm.setTimeout(100);
+    TransactionId writer = new TransactionId();
+    try {
+      Database.getBufferPool().getPage(writer, new HeapPageId(f.getId(), 0),
+          Permissions.READ_WRITE);
+      TableStats.tuplesCommitted(f.getId(), inserted, none);
+      assertTrue(TableStats.awaitReanalysis(60000));
+      assertTrue(TableStats.getTableStats("retry_f") == s);
+    } finally {
+      Database.getBufferPool().transactionComplete(writer);
+      lm.setTimeout(LockManager.DEFAULT_TIMEOUT);
+    }
+
+    TableStats.tuplesCommitted(f.getId(), inserted.subList(0, 1), none);
+    assertTrue(TableStats.awaitReanalysis(60000));
+    TableStats fresh = TableStats.getTableStats("retry_f");
+    assertTrue(fresh != s);
+    assertTrue(fresh.isComplete());
+    assertEquals(ROWS, fresh.totalTuples());
+  }
+
+  /**
+   * Unit test for TableStats.computeStatistics() over several tables
+   */
+  @Test public void computeStatistics() throws Exception {
+    HeapFile g = SystemTestUtil.createRandomHeapFile(2, 500, null, null);
+    Database.getCatalog().addTable(f, "stats_f");
+    Database.getCatalog().addTable(g, "stats_g");
+    TableStats.computeStatistics();
+    assertNotNull(TableStats.getTableStats("stats_f"));
+    assertEquals(ROWS, TableStats.getTableStats("stats_f").totalTuples());
+    assertEquals(500, TableStats.getTableStats("stats_g").totalTuples());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableStatsTest.class);
+  }
+}
@@ -0,0 +1,106 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures how many transactions per second commit with growing numbers of
+ * threads, each transaction inserting a row and committing, when every
+ * commit forces the log itself and when commits are forced in groups by
+ * the log's flusher thread (see {@link LogFile#setGroupCommit}), with no
+ * delay and with the given delay, and how many commits each force of the
+ * log covers.
+ * <p>
+ * Usage: <tt>ant runbench -Dbench=CommitBenchmark [-Dargs="maxThreads
+ * seconds delay"]</tt>; by default 1 to 16 threads run for 2 seconds each,
+ * and the flusher waits up to 200 microseconds in the last column.
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Database.getCatalog().addTable(f, "bench");
+        LogFile log = Database.getLogFile();
+
+        // warm up before measuring
+        commits(f.getId(), 1, seconds / 2, false, 0);
+        System.out.println("threads  forced (txn/s)  group (txn/s, txn/force)  group, "
+                + delay + "us delay (txn/s, txn/force)");
+        for (int n = 1; n <= maxThreads; n *= 2) {
+            double forced = commits(f.getId(), n, seconds, false, 0);
+            long forces = log.getForceCount();
+            double group = commits(f.getId(), n, seconds, true, 0);
+            double groupBatch = group * seconds / (log.getForceCount() - forces);
+            forces = log.getForceCount();
+            double delayed = commits(f.getId(), n, seconds, true, delay);
+            double delayedBatch = delayed * seconds / (log.getForceCount() - forces);
+            System.out.println(String.format("%7d  %14.0f  %11.0f, %11.1f  %21.0f, %11.1f", n,
+                    forced, group, groupBatch, delayed, delayedBatch));
+        }
+        log.setGroupCommit(true);
+        log.setGroupCommitDelay(LogFile.DEFAULT_GROUP_COMMIT_DELAY);
+    }
+
+    /** @return the transactions per second n Committers commit */
+    private static double commits(int tableid, int n, double seconds,
+            boolean groupCommit, long delay) throws InterruptedException {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(groupCommit);
+        log.setGroupCommitDelay(delay);
+        AtomicLong commits = new AtomicLong();
+        ArrayList<Committer> committers = new ArrayList<Committer>();
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        for (int i = 0; i < n; i++) {
+            Committer c = new Committer(tableid, i, end, commits);
+            committers.add(c);
+            c.start();
+        }
+        for (Committer c : committers)
+            c.join();
+        return commits.get() / seconds;
+    }
+
+    /** Inserts a row and commits, over and over. */
+    private static class Committer extends Thread {
+        final int tableid, id;
+        final long end;
+        final AtomicLong commits;
+
+        Committer(int tableid, int id, long end, AtomicLong commits) {
+            this.tableid = tableid;
+            this.id = id;
+            this.end = end;
+            this.commits = commits;
+        }
+
+        public void run() {
+            BufferPool bp = Database.getBufferPool();
+            TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+            try {
+                for (int i = 0; System.nanoTime() < end; i++) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    Tuple row = new Tuple(td);
+                    row.setField(0, new IntField(id));
+                    row.setField(1, new IntField(i));
+                    try {
+                        bp.insertTuple(t.getId(), tableid, row);
+                        t.commit();
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        t.abort();
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    /** The Exchange of several scans returns the union of their tuples. */
+    @Test public void testGather()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        TransactionId tid = new TransactionId();
+        DbIterator[] fragments = new DbIterator[3];
+        for (int i = 0; i < fragments.length; i++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000 * (i + 1), null, tuples);
+            expected.addAll(tuples);
+            fragments[i] = new SeqScan(tid, f.getId(), "t");
+        }
+        Exchange ex = new Exchange(fragments);
+        SystemTestUtil.matchTuples(ex, expected);
+
+        // rewinding restarts every fragment
+        ex.open();
+        for (int i = 0; i < 100; i++)
+            ex.next();
+        ex.rewind();
+        int count = 0;
+        while (ex.hasNext()) {
+            ex.next();
+            count++;
+        }
+        assertEquals(expected.size(), count);
+
+        // closing in the middle of the stream stops the workers
+        ex.rewind();
+        ex.next();
+        ex.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An exception thrown on a worker is rethrown to the consumer, and
+        again on every later call until the Exchange is closed. */
+    @Test public void testFailure() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        TransactionId tid = new TransactionId();
+        Exchange ex = new Exchange(new DbIterator[] {
+                new SeqScan(tid, f.getId(), "t"), new FailingIterator(f, tid) });
+        ex.open();
+        for (int i = 0; i < 2; i++) {
+            try {
+                while (ex.hasNext())
+                    ex.next();
+                fail("expected the worker's DbException");
+            } catch (DbException e) {
+                assertEquals("boom", e.getMessage());
+            }
+        }
+        ex.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A parallel plan returns the same tuples as a single-threaded one. */
+    @Test public void testParallelPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, tuples, "c");
+        Database.getCatalog().addTable(f, "big");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("big", new TableStats(f.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 100)
+                expected.add(t);
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "b");
+        lp.addFilter("b.c1", Predicate.Op.LESS_THAN, "100");
+        lp.addProjectField("b.c0", null);
+        lp.addProjectField("b.c1", null);
+        lp.setDegreeOfParallelism(4);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(plan.getClass() == Project.class);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof ParallelSeqScan);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An Exchange set to replay its output runs its fragments once, however
+        often it is rewound. */
+    @Test public void testReplay() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        TransactionId tid = new TransactionId();
+        CountingIterator[] fragments = new CountingIterator[] {
+                new CountingIterator(f, tid), new CountingIterator(f, tid) };
+        Exchange ex = new Exchange(fragments);
+        ex.setReplayOnRewind(true);
+        ex.open();
+        for (int i = 0; i < 3; i++) {
+            int count = 0;
+            while (ex.hasNext()) {
+                ex.next();
+                count++;
+            }
+            assertEquals(4000, count);
+            ex.rewind();
+        }
+        assertEquals(1, fragments[0].opens);
+        assertEquals(1, fragments[1].opens);
+        ex.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The right side of a nested-loops join in a parallel plan replays its
+        parallel scan when rewound. */
+    @Test public void testNestedLoopsInner() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples1 = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 100, 100, null, tuples1, "c");
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 100, 100, null, tuples2, "c");
+        Database.getCatalog().addTable(f1, "a");
+        Database.getCatalog().addTable(f2, "b");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("a", new TableStats(f1.getId(), 1000));
+        stats.put("b", new TableStats(f2.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : tuples1) {
+            for (ArrayList<Integer> t2 : tuples2) {
+                if (t1.get(0) < t2.get(0))
+                    expected.add(new ArrayList<Integer>(t1.subList(0, 1)));
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f1.getId(), "a");
+        lp.addScan(f2.getId(), "b");
+        lp.addJoin("a.c0", "b.c0", Predicate.Op.LESS_THAN);
+        lp.addProjectField("a.c0", null);
+        lp.setDegreeOfParallelism(4);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        Join j = (Join) ((Operator) plan).getChildren()[0];
+        assertTrue(((Exchange) j.getChildren()[1]).getReplayOnRewind());
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Counts the times a scan of a table is opened. */
+    private static class CountingIterator implements DbIterator {
+        private static final long serialVersionUID = 1L;
+        private final SeqScan scan;
+        volatile int opens = 0;
+
+        CountingIterator(HeapFile f, TransactionId tid) {
+            scan = new SeqScan(tid, f.getId(), "t");
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            opens++;
+            scan.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return scan.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            return scan.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            scan.rewind();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return scan.getTupleDesc();
+        }
+
+        public void close() {
+            scan.close();
+        }
+    }
+
+    /** Returns a few tuples from a table, then fails. */
+    private static class FailingIterator implements DbIterator {
+        private static final long serialVersionUID = 1L;
+        private final SeqScan scan;
+        private int returned = 0;
+
+        FailingIterator(HeapFile f, TransactionId tid) {
+            scan = new SeqScan(tid, f.getId(), "t");
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            scan.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (returned == 10)
+                throw new DbException("boom");
+            return scan.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            returned++;
+            return scan.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            scan.rewind();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return scan.getTupleDesc();
+        }
+
+        public void close() {
+            scan.close();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+
+import simpledb.*;
+
+/**
+ * Measures how long {@link JoinOptimizer#orderJoins} takes to plan chain and
+ * star queries over a growing number of tables.
+ * <p>
+ * Usage: <tt>ant runbench -Dbench=JoinOrderBenchmark [-Dargs="maxTables
+ * repetitions"]</tt>; by default queries of 2 to 20 tables are planned 5
+ * times each and the median time is reported.
+ */
+public class JoinOrderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxTables = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int reps = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Database.reset();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> selectivities = new HashMap<String, Double>();
+        int[] ids = new int[maxTables];
+        for (int i = 0; i < maxTables; i++) {
+            // tables of different sizes, so that the order matters
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 200 * (i % 5 + 1), 1000,
+                    null, null, "c");
+            String name = "bench" + i;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 1000));
+            selectivities.put("t" + i, 1.0 / (i % 3 + 1));
+            ids[i] = f.getId();
+        }
+
+        System.out.println("tables  chain (ms)  star (ms)");
+        for (int n = 2; n <= maxTables; n++) {
+            double chain = time(ids, n, false, stats, selectivities, reps);
+            double star = time(ids, n, true, stats, selectivities, reps);
+            System.out.println(String.format("%6d  %10.2f  %9.2f", n, chain, star));
+        }
+    }
+
+    /** @return the median time in milliseconds to order the joins of one query */
+    private static double time(int[] ids, int n, boolean star,
+            HashMap<String, TableStats> stats, HashMap<String, Double> selectivities,
+            int reps) throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream())); // addScan is chatty
+        try {
+            for (int i = 0; i < n; i++)
+                lp.addScan(ids[i], "t" + i);
+        } finally {
+            System.setOut(out);
+        }
+        double[] times = new double[reps];
+        for (int r = 0; r < reps; r++) {
+            Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+            for (int i = 1; i < n; i++) {
+                String other = star ? "t0" : "t" + (i - 1);
+                joins.add(new LogicalJoinNode(other, "t" + i, other + ".c0",
+                        "t" + i + ".c1", Predicate.Op.EQUALS));
+            }
+            long start = System.nanoTime();
+            new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+            times[r] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        return times[reps / 2];
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+    /** Checks that the parallel aggregate matches Aggregate over the same table. */
+    private void validateAggregate(HeapFile f, Aggregator.Op op, int afield,
+            int gfield, int dop) throws IOException, DbException,
+            TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        Aggregate serial = new Aggregate(new SeqScan(tid, f.getId(), "t"),
+                afield, gfield, op);
+        serial.open();
+        while (serial.hasNext())
+            expected.add(SystemTestUtil.tupleToList(serial.next()));
+        serial.close();
+
+        ParallelAggregate par = new ParallelAggregate(
+                new ParallelSeqScan(tid, f.getId(), "t", dop), afield, gfield, op);
+        SystemTestUtil.matchTuples(par, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testAllOps()
+            throws IOException, DbException, TransactionAbortedException {
+        // 20000 tuples with 50 groups span many morsels per worker
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 50, null, null);
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN,
+                Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.AVG,
+                Aggregator.Op.COUNT }) {
+            validateAggregate(f, op, 1, 0, 4);
+            validateAggregate(f, op, 2, Aggregator.NO_GROUPING, 4);
+        }
+    }
+
+    @Test public void testSingleWorker()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 20, null, null);
+        validateAggregate(f, Aggregator.Op.AVG, 1, 0, 1);
+    }
+
+    @Test public void testRewind() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, null);
+        TransactionId tid = new TransactionId();
+        ParallelAggregate par = new ParallelAggregate(
+                new ParallelSeqScan(tid, f.getId(), "t", 3), 1, 0, Aggregator.Op.COUNT);
+        par.open();
+        int groups = 0, total = 0;
+        while (par.hasNext()) {
+            total += ((IntField) par.next().getField(1)).getValue();
+            groups++;
+        }
+        assertEquals(5000, total);
+        par.rewind();
+        int again = 0;
+        while (par.hasNext()) {
+            par.next();
+            again++;
+        }
+        assertEquals(groups, again);
+        par.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A GROUP BY over one table in a parallel plan runs on the workers. */
+    @Test public void testParallelPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, "agg");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("agg", new TableStats(f.getId(), 1000));
+
+        HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) >= 50)
+                continue;
+            Integer s = sums.get(t.get(0));
+            sums.put(t.get(0), (s == null ? 0 : s) + t.get(1));
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Integer g : sums.keySet()) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(g);
+            row.add(sums.get(g));
+            expected.add(row);
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "a");
+        lp.addFilter("a.c1", Predicate.Op.LESS_THAN, "50");
+        lp.addProjectField("a.c0", null);
+        lp.addProjectField("a.c1", "sum");
+        lp.addAggregate("sum", "a.c1", "a.c0");
+        lp.setDegreeOfParallelism(4);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof ParallelAggregate);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+
+    /** @return the expected result of joining left.c0 = right.c0 */
+    private static ArrayList<ArrayList<Integer>> join(
+            ArrayList<ArrayList<Integer>> left, ArrayList<ArrayList<Integer>> right) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> l : left) {
+            for (ArrayList<Integer> r : right) {
+                if (l.get(0).equals(r.get(0))) {
+                    ArrayList<Integer> t = new ArrayList<Integer>(l);
+                    t.addAll(r);
+                    result.add(t);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void validateJoin(int leftRows, int rightRows, int dop, boolean parallelBuild)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> right = new ArrayList<ArrayList<Integer>>();
+        HeapFile lf = SystemTestUtil.createRandomHeapFile(2, leftRows, 2000, null, left);
+        HeapFile rf = SystemTestUtil.createRandomHeapFile(2, rightRows, 2000, null, right);
+
+        TransactionId tid = new TransactionId();
+        DbIterator build = parallelBuild
+                ? new ParallelSeqScan(tid, rf.getId(), "r", dop)
+                : new SeqScan(tid, rf.getId(), "r");
+        ParallelHashJoin j = new ParallelHashJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new ParallelSeqScan(tid, lf.getId(), "l", dop), build);
+        ArrayList<ArrayList<Integer>> expected = join(left, right);
+        SystemTestUtil.matchTuples(j, expected);
+
+        // a rewound join probes again with the same table
+        j.open();
+        j.rewind();
+        int count = 0;
+        while (j.hasNext()) {
+            j.next();
+            count++;
+        }
+        j.close();
+        assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParallelBuild()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(10000, 5000, 4, true);
+    }
+
+    @Test public void testSerialBuild()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(10000, 3000, 3, false);
+        validateJoin(0, 3000, 2, false);
+        validateJoin(3000, 0, 2, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonEquiJoin() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId tid = new TransactionId();
+        new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+                new ParallelSeqScan(tid, f.getId(), "a", 2),
+                new SeqScan(tid, f.getId(), "b"));
+    }
+
+    /** Equi-joins in a parallel plan are instantiated as parallel hash joins. */
+    @Test public void testParallelPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> right = new ArrayList<ArrayList<Integer>>();
+        HeapFile lf = SystemTestUtil.createRandomHeapFile(2, 8000, 1000, null, left, "c");
+        HeapFile rf = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, right, "c");
+        Database.getCatalog().addTable(lf, "l");
+        Database.getCatalog().addTable(rf, "r");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("l", new TableStats(lf.getId(), 1000));
+        stats.put("r", new TableStats(rf.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(lf.getId(), "l");
+        lp.addScan(rf.getId(), "r");
+        lp.addJoin("l.c0", "r.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("*", null);
+        lp.setDegreeOfParallelism(4);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof ParallelHashJoin);
+        SystemTestUtil.matchTuples(plan, join(left, right));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return whether plan is a join or has one below it */
+    private static boolean hasJoin(DbIterator plan) {
+        if (plan instanceof Join || plan instanceof ParallelHashJoin)
+            return true;
+        if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (hasJoin(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return whether some join in plan joins the results of two other joins */
+    private static boolean isBushy(DbIterator plan) {
+        if (!(plan instanceof Operator))
+            return false;
+        DbIterator[] children = ((Operator) plan).getChildren();
+        if ((plan instanceof Join || plan instanceof ParallelHashJoin)
+                && hasJoin(children[0]) && hasJoin(children[1]))
+            return true;
+        for (DbIterator child : children) {
+            if (isBushy(child))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A chain whose filtered ends are cheap to join to their neighbours is
+     * planned and run as a bushy plan.
+     */
+    @Test public void testBushyPlan() throws Exception {
+        String[] names = { "e1", "m1", "m2", "e2" };
+        ArrayList<ArrayList<ArrayList<Integer>>> rows = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        LogicalPlan lp = new LogicalPlan();
+        for (String name : names) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, name.startsWith("e") ? 2000 : 4000,
+                    1000, null, tuples, "c");
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 1000));
+            lp.addScan(f.getId(), name);
+            rows.add(tuples);
+        }
+        lp.addFilter("e1.c1", Predicate.Op.LESS_THAN, "20");
+        lp.addFilter("e2.c1", Predicate.Op.LESS_THAN, "20");
+        lp.addJoin("e1.c0", "m1.c0", Predicate.Op.EQUALS);
+        lp.addJoin("m1.c1", "m2.c1", Predicate.Op.EQUALS);
+        lp.addJoin("m2.c0", "e2.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("*", null);
+        lp.setDegreeOfParallelism(4);
+
+        // count the matches from the ends inwards
+        int[] e1 = new int[1000], e2 = new int[1000], m2 = new int[1000];
+        for (ArrayList<Integer> t : rows.get(0))
+            if (t.get(1) < 20)
+                e1[t.get(0)]++;
+        for (ArrayList<Integer> t : rows.get(3))
+            if (t.get(1) < 20)
+                e2[t.get(0)]++;
+        for (ArrayList<Integer> t : rows.get(2))
+            m2[t.get(1)] += e2[t.get(0)];
+        int expected = 0;
+        for (ArrayList<Integer> t : rows.get(1))
+            expected += e1[t.get(0)] * m2[t.get(1)];
+
+        TransactionId tid = new TransactionId();
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(isBushy(plan));
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelHashJoinTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+
+    /** Scans a table with dop workers and checks every tuple comes back once. */
+    private void validateScan(int columns, int rows, int dop)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(columns, rows, null, tuples);
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", dop);
+        SystemTestUtil.matchTuples(scan, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSmall()
+            throws IOException, DbException, TransactionAbortedException {
+        validateScan(2, 0, 4);
+        validateScan(2, 1, 4);
+        validateScan(2, 1000, 1);
+    }
+
+    @Test public void testManyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        // 20000 2-column tuples span ~40 pages, i.e. several morsels per worker
+        validateScan(2, 20000, 4);
+    }
+
+    /** Each worker runs its own Filter over the pages it scans. */
+    @Test public void testPipeline()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10000, 100, null, tuples);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 10)
+                expected.add(t);
+        }
+
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", 3,
+                new PipelineBuilder() {
+                    private static final long serialVersionUID = 1L;
+
+                    public DbIterator build(DbIterator child) {
+                        return new Filter(new Predicate(0, Predicate.Op.LESS_THAN,
+                                new IntField(10)), child);
+                    }
+                });
+        SystemTestUtil.matchTuples(scan, expected);
+
+        // a rewound scan reads every page again
+        scan.open();
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        org.junit.Assert.assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}
@@ -0,0 +1,228 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.*;
+
+/**
+ * Simulates crashes by dropping the buffer pool and the log's in-memory
+ * state in the middle of transactions, then checks that
+ * {@link LogFile#recover} restores the table to exactly the rows of the
+ * committed transactions.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int ROWS = 600; // a full page and a partial one
+
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> expected;
+
+    @Before public void createTable() throws Exception {
+        expected = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, expected);
+    }
+
+    /** Loses the state of the database in memory and recovers from the log */
+    private void crash() throws IOException {
+        File f = table.getFile();
+        Database.reset();
+        table = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+    }
+
+    private Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    private ArrayList<Integer> insert(Transaction t, int a, int b) throws Exception {
+        Tuple tuple = new Tuple(table.getTupleDesc());
+        tuple.setField(0, new IntField(a));
+        tuple.setField(1, new IntField(b));
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), tuple);
+        return SystemTestUtil.tupleToList(tuple);
+    }
+
+    /** Deletes the first row of the table t sees */
+    private ArrayList<Integer> deleteFirst(Transaction t) throws Exception {
+        DbFileIterator it = table.iterator(t.getId());
+        it.open();
+        Tuple tuple = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(t.getId(), tuple);
+        return SystemTestUtil.tupleToList(tuple);
+    }
+
+    private byte[] readTable() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(table.getFile(), "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Sets the table file back to data, as if writes since were lost */
+    private void writeTable(byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(table.getFile(), "rw");
+        try {
+            raf.setLength(0);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Committed changes are redone even if their pages never reached disk */
+    @Test public void redoCommitted() throws Exception {
+        byte[] old = readTable();
+        Transaction t = begin();
+        expected.add(insert(t, 1, 2));
+        expected.add(insert(t, 3, 4));
+        expected.remove(deleteFirst(t));
+        t.commit();
+
+        writeTable(old);
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** A transaction killed after writing its pages but before its commit
+        record is undone, and recovering again changes nothing */
+    @Test public void undoUncommitted() throws Exception {
+        Transaction t = begin();
+        insert(t, 1, 2);
+        deleteFirst(t);
+        Database.getBufferPool().flushPages(t.getId());
+
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** Rows of a committed and an uncommitted transaction on the same page
+        are redone and undone independently */
+    @Test public void sharedPage() throws Exception {
+        Transaction loser = begin();
+        insert(loser, 5, 6);
+        Transaction winner = begin();
+        expected.add(insert(winner, 7, 8));
+        expected.remove(deleteFirst(winner));
+        winner.commit();
+        insert(loser, 9, 10);
+        Database.getBufferPool().flushPages(loser.getId());
+
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** A page a running transaction holds exclusively is written before a
+        checkpoint and undone after a crash, while the commits after the
+        checkpoint are redone */
+    @Test public void checkpoint() throws Exception {
+        Database.getBufferPool().setRowLocking(false);
+        Transaction loser = begin();
+        insert(loser, 5, 6);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        byte[] stolen = readTable();
+
+        // the loser holds the last page, so the winner changes the first
+        Transaction winner = begin();
+        expected.remove(deleteFirst(winner));
+        winner.commit();
+        writeTable(stolen);
+
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** An aborted transaction's pages written before a checkpoint are
+        rolled back on disk */
+    @Test public void rollback() throws Exception {
+        Database.getBufferPool().setRowLocking(false);
+        Transaction t = begin();
+        insert(t, 5, 6);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        t.abort();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(table, expected);
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** A page changed by an aborted transaction and then by a committed one
+        is recovered with the aborted changes undone where they were
+        aborted and the committed ones redone after */
+    @Test public void abortThenCommit() throws Exception {
+        Database.getBufferPool().setRowLocking(false);
+        byte[] old = readTable();
+        Transaction loser = begin();
+        insert(loser, 5, 6);
+        Database.getBufferPool().flushAllPages();
+        loser.abort();
+
+        Transaction winner = begin();
+        expected.add(insert(winner, 7, 8));
+        winner.commit();
+
+        writeTable(old);
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** The pages logged but not written at the time of a checkpoint are
+        redone from their first update logged, even if it precedes the
+        checkpoint */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        Transaction winner = begin();
+        expected.add(insert(winner, 7, 8));
+        // log the winner's pages and commit without writing them
+        Database.getLogFile().logCommit(winner.getId());
+        Database.getLogFile().logCheckpoint();
+
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** Records are kept in the log buffer until the log is forced, and a
+        page is only written once the log is forced through its pageLSN */
+    @Test public void logBuffer() throws Exception {
+        LogFile log = Database.getLogFile();
+        Database.getBufferPool().setRowLocking(false);
+        Transaction t = begin();
+        long writes = log.getWriteCount();
+        long lsn = log.getLastLsn();
+        insert(t, 5, 6);
+        Transaction other = begin();
+        assertEquals(writes, log.getWriteCount());
+        assertTrue(log.getLastLsn() > lsn);
+
+        Database.getBufferPool().flushPages(t.getId());
+        assertEquals(writes + 1, log.getWriteCount());
+        other.commit();
+        t.abort();
+
+        crash();
+        SystemTestUtil.matchTuples(table, expected);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
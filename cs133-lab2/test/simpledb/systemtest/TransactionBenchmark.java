@@ -0,0 +1,209 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures the throughput of concurrent transactions that read a few random
+ * pages of a table and update one, with growing numbers of threads, and the
+ * cost of an uncontended lock acquisition in the {@link LockManager}.
+ * Transactions aborted by the lock manager to break deadlocks are retried
+ * and counted.
+ * <p>
+ * A second workload updates (deletes and reinserts) random rows of a small
+ * table, each thread its own rows, once with row locking and once with
+ * page locking (see {@link BufferPool#setRowLocking}).
+ * <p>
+ * Usage: <tt>ant runbench -Dbench=TransactionBenchmark [-Dargs="maxThreads
+ * seconds pages reads rows"]</tt>; by default 1 to 8 threads run for 2
+ * seconds each over a table of 200 pages, reading 4 pages per transaction,
+ * and update a table of 1000 rows.
+ */
+public class TransactionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int reads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int rows = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+        Database.reset();
+        // two int columns fit 504 tuples on a page
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        Database.getCatalog().addTable(f, "bench");
+        Database.resetBufferPool(pages + 16);
+
+        System.out.println(String.format("uncontended acquire+release: %.1f ns",
+                uncontended(f.getId(), pages)));
+        LockManager lm = Database.getBufferPool().getLockManager();
+        System.out.println("threads  txn/s  aborts  deadlocks/s");
+        for (int n = 1; n <= maxThreads; n *= 2) {
+            lm.resetStats();
+            AtomicLong commits = new AtomicLong(), aborts = new AtomicLong();
+            Worker[] workers = new Worker[n];
+            long end = System.nanoTime() + (long) (seconds * 1e9);
+            for (int i = 0; i < n; i++) {
+                workers[i] = new Worker(f.getId(), pages, reads, end, commits, aborts, i);
+                workers[i].start();
+            }
+            for (Worker w : workers)
+                w.join();
+            System.out.println(String.format("%7d  %5.0f  %6d  %11.1f", n,
+                    commits.get() / seconds, aborts.get(), lm.getDeadlockRate()));
+        }
+
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        Database.getCatalog().addTable(small, "small");
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = small.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        // warm up both ways of locking before measuring either
+        update(small.getId(), tuples, 1, seconds / 2, true);
+        update(small.getId(), tuples, 1, seconds / 2, false);
+        System.out.println("row updates on " + rows + " rows");
+        System.out.println("threads  rows (txn/s)  pages (txn/s)");
+        for (int n = 1; n <= maxThreads; n *= 2) {
+            System.out.println(String.format("%7d  %12.0f  %13.0f", n,
+                    update(small.getId(), tuples, n, seconds, true),
+                    update(small.getId(), tuples, n, seconds, false)));
+        }
+        Database.getBufferPool().setRowLocking(true);
+    }
+
+    /** @return the transactions per second n Updaters commit */
+    private static double update(int tableid, ArrayList<Tuple> tuples, int n,
+            double seconds, boolean rowLocking) throws InterruptedException {
+        Database.getBufferPool().setRowLocking(rowLocking);
+        AtomicLong commits = new AtomicLong(), aborts = new AtomicLong();
+        Updater[] updaters = new Updater[n];
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        for (int i = 0; i < n; i++) {
+            updaters[i] = new Updater(tableid, tuples, i, n, end, commits, aborts);
+            updaters[i].start();
+        }
+        for (Updater u : updaters)
+            u.join();
+        return commits.get() / seconds;
+    }
+
+    /** @return the mean time in nanoseconds to lock and unlock a page */
+    private static double uncontended(int tableid, int pages)
+            throws TransactionAbortedException {
+        LockManager lm = Database.getBufferPool().getLockManager();
+        TransactionId tid = new TransactionId();
+        int n = 1000000;
+        long start = 0;
+        for (int r = 0; r < 2; r++) { // the first round warms up
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                PageId pid = new HeapPageId(tableid, i % pages);
+                lm.lockPage(tid, pid, (i & 1) == 0 ? LockManager.Mode.X : LockManager.Mode.S);
+                lm.release(tid, pid);
+            }
+        }
+        return (System.nanoTime() - start) / (double) n;
+    }
+
+    private static class Worker extends Thread {
+        final int tableid, pages, reads;
+        final long end;
+        final AtomicLong commits, aborts;
+        final Random random;
+
+        Worker(int tableid, int pages, int reads, long end, AtomicLong commits,
+                AtomicLong aborts, int seed) {
+            this.tableid = tableid;
+            this.pages = pages;
+            this.reads = reads;
+            this.end = end;
+            this.commits = commits;
+            this.aborts = aborts;
+            this.random = new Random(seed);
+        }
+
+        public void run() {
+            BufferPool bp = Database.getBufferPool();
+            try {
+                while (System.nanoTime() < end) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (int i = 0; i < reads; i++)
+                            bp.getPage(tid, page(), Permissions.READ_ONLY);
+                        Page p = bp.getPage(tid, page(), Permissions.READ_WRITE);
+                        p.markDirty(true, tid);
+                        bp.transactionComplete(tid, true);
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        bp.transactionComplete(tid, false);
+                        aborts.incrementAndGet();
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private PageId page() {
+            return new HeapPageId(tableid, random.nextInt(pages));
+        }
+    }
+
+    /** Replaces random rows among those at positions first, first + step, ...
+        of tuples with new rows of the same values. */
+    private static class Updater extends Thread {
+        final int tableid, first, step;
+        final ArrayList<Tuple> tuples;
+        final long end;
+        final AtomicLong commits, aborts;
+        final Random random;
+
+        Updater(int tableid, ArrayList<Tuple> tuples, int first, int step, long end,
+                AtomicLong commits, AtomicLong aborts) {
+            this.tableid = tableid;
+            this.tuples = tuples;
+            this.first = first;
+            this.step = step;
+            this.end = end;
+            this.commits = commits;
+            this.aborts = aborts;
+            this.random = new Random(first);
+        }
+
+        public void run() {
+            BufferPool bp = Database.getBufferPool();
+            int mine = (tuples.size() - first + step - 1) / step;
+            try {
+                while (System.nanoTime() < end) {
+                    int i = first + step * random.nextInt(mine);
+                    Tuple old = tuples.get(i);
+                    Tuple t = new Tuple(old.getTupleDesc());
+                    for (int f = 0; f < t.getTupleDesc().numFields(); f++)
+                        t.setField(f, old.getField(f));
+                    TransactionId tid = new TransactionId();
+                    try {
+                        bp.deleteTuple(tid, old);
+                        bp.insertTuple(tid, tableid, t);
+                        bp.transactionComplete(tid, true);
+                        tuples.set(i, t);
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        bp.transactionComplete(tid, false);
+                        aborts.incrementAndGet();
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}